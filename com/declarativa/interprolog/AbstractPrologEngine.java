@@ -11,7 +11,10 @@ import com.declarativa.interprolog.util.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 import java.lang.reflect.*;
+import java.security.MessageDigest;
 
 /** The heart of InterProlog; a PrologEngine represents a Prolog machine instance. 
 This is an abstract class; you should use it just to declare variables, but must instantiate only subclasses.
@@ -29,6 +32,10 @@ public abstract class AbstractPrologEngine implements PrologEngine{
     
     /** Table of object references that can be referred from Prolog without being serialized */
     protected ObjectRegistry knownObjects;
+    volatile boolean releaseObjectsAtGoalEnd = false;
+    volatile boolean goalScopedObjects = false;
+    /** The goal on whose behalf the javaMessage executing in the current thread was sent */
+    final ThreadLocal<GoalToExecute> callbackGoal = new ThreadLocal<GoalToExecute>();
     protected boolean shutingDown = false;
     /** Prolog is handling an interrupt */
     public boolean interrupting = false;
@@ -39,19 +46,32 @@ public abstract class AbstractPrologEngine implements PrologEngine{
     /** goal counter */
     protected int goalTimestamp;
     protected boolean threadedCallbacks = true; // old behavior
-    /** Threads currently having a pending deterministicGoal computation on the Prolog side */
-    protected Stack dgThreads = new Stack();
+    /** Executes javaMessage callbacks, unless threadedCallbacks is false */
+    protected CallbackExecutor callbackExecutor = CallbackExecutor.threadPerCallback("InterProlog callback");
     
-    /** Prolog Goals whose execution has not yet finished or whose results have not yet been returned to their Java clients */
-    Vector goalsToExecute;
+    /** Prolog Goals whose execution has not yet finished or whose results have not yet been returned to their Java clients; 
+    those executing in Prolog are stacked there, so their caller threads are the ones having a pending deterministicGoal computation */
+    PendingGoals goalsToExecute;
     /** javaMessage requests that have started execution and whose results have not yet been returned to Prolog. */
     Vector messagesExecuting;
+    /** SolutionIterators whose goals have not yet terminated, oldest first */
+    final Vector openIterators = new Vector();
+    /** Timestamps of goals whose TermModel results may be decoded straight into Terms, if the wire format allows it */
+    protected final Set<Integer> compactResults = ConcurrentHashMap.newKeySet();
+    /** Set by deterministicGoal(Term) for the next goal object made by its thread, whose timestamp is stored there */
+    final ThreadLocal<int[]> compactResultGoal = new ThreadLocal<int[]>();
     
     /** The thread that handles javaMessage callbacks, and deterministicGoal results */
     protected Thread prologHandler = null; 
+    /** Threads in waitUntilAvailable() block on this; subclasses must call availabilityChanged() when isAvailable() may have become true */
+    protected final Object availabilityMonitor = new Object();
     
     /** "Constant" used for some special javaMessage handling */
 	final Method getRealJavaObjectMethod;
+	/** Resolved javaMessage call sites */
+	protected final CallSiteCache callSites = new CallSiteCache();
+	/** Where timings and traffic are recorded; null (the default) means none are measured */
+	protected volatile EngineMetrics metrics = null;
     /** Name of first message sent to Java*/
 	public final String firstJavaMessageName = "firstJavaMessage";
 	
@@ -96,7 +116,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		this.prologBinDirectoryOrCommand = prologBinDirectoryOrCommand;
 		makeTempDirectory(); // not just for InterProlog startup! That's why this is NOT conditional
 		knownObjects = new ObjectRegistry();
-		goalsToExecute = new Vector();
+		goalsToExecute = new PendingGoals();
 		messagesExecuting = new Vector();
         try{ getRealJavaObjectMethod = findMethod (getClass(),"getRealJavaObject",new Class[]{Object.class});} 
         catch(Exception ex){throw new IPException("could not find special getRealJavaObject method:"+ex);}
@@ -106,12 +126,18 @@ public abstract class AbstractPrologEngine implements PrologEngine{
     	progressMessage("Setting up Prolog library paths...");
     	String tempPath = peer.unescapedFilePath(tempDirectory.getAbsolutePath());
         command("assertz(library_directory('"+tempPath+"'))"); // used to be asserta until Aug 2005
+        if (isInterPrologPreloaded()) return;
         progressMessage("Loading initial file...");
         String F = peer.interprologFilename();
         if (loadFromJar) consultFromPackage(F,AbstractPrologEngine.class);
         else consultRelative(F,AbstractPrologEngine.class);
 	}
 	
+	/** True if Prolog starts with InterProlog's file already loaded, e.g. from a saved state; this implementation returns false */
+	protected boolean isInterPrologPreloaded(){
+		return false;
+	}
+	
 	protected abstract PrologImplementationPeer makeImplementationPeer();
 	
 	public PrologImplementationPeer getImplementationPeer(){
@@ -160,6 +186,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		if (isShutingDown()) progressMessage("Was already shuting down");
 		shutingDown = true;
 		abortTasks();
+		unregisterMetrics(metrics);
 		// prologHandler.interrupt(); // cannot do this here, in NativeEngine crashes the whole JVM
 	}
 
@@ -446,6 +473,17 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		return loadFromJar;
 	}
 	
+	/** A quoted Prolog atom with the text s */
+	protected static String quotedAtom(String s){
+		StringBuffer quoted = new StringBuffer("'");
+		for (int i=0; i<s.length(); i++){
+			char c = s.charAt(i);
+			if (c=='\'' || c=='\\') quoted.append(c);
+			quoted.append(c);
+		}
+		return quoted.append('\'').toString();
+	}
+	
 	/** Convenience for debugging deterministicGoal() messages */
 	public static void printBindings(Object[] b){
 		if (b==null) System.out.println("Empty bindings");
@@ -551,6 +589,75 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		obs.writeObject(new ObjectExamplePair("ArrayOfObject",new Object[0]));
 	}
 
+	/** Directory for the ipObjectSpec/ipObjectTemplate facts learned from examples, or null for no cache */
+	private static File learnedObjectsCache = (System.getProperty("interprolog.cache")==null ? null : new File(System.getProperty("interprolog.cache")));
+	
+	/** Caches the facts Prolog learns from object examples, at startup and in teachMoreObjects, in files in directory; 
+	engines built afterwards (of any kind) load the facts from there rather than analysing the same examples again. 
+	Each file is named by a hash of the serialized examples, which covers their classes' names, fields and serialVersionUIDs, 
+	plus the InterProlog version and Prolog file; so changed classes are learned anew, but changes to the Prolog side 
+	analysis within the same version require clearing the directory. 
+	By default there is no cache, unless the interprolog.cache system property names a directory.
+	@param directory null to stop caching */
+	public static void setLearnedObjectsCache(File directory){
+		learnedObjectsCache = directory;
+	}
+	
+	public static File getLearnedObjectsCache(){
+		return learnedObjectsCache;
+	}
+	
+	/** The examples taught by the constructor, serialized */
+	protected byte[] serializedStartupExamples() throws IOException{
+		ByteArrayOutputStream serializedTemp = new ByteArrayOutputStream();
+		ObjectOutputStream bootObjects = new ObjectOutputStream(serializedTemp);
+		teachIPobjects(bootObjects);
+		teachBasicObjects(bootObjects);
+		bootObjects.flush();
+		return serializedTemp.toByteArray();
+	}
+	
+	/** The cache file for the facts learned from these serialized examples, which may not exist yet; null if there is no cache
+	@see #setLearnedObjectsCache(File) */
+	protected File learnedObjectsFile(byte[] serializedExamples){
+		File directory = learnedObjectsCache;
+		if (directory==null) return null;
+		try{
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update((version+" "+peer.interprologFilename()+" ").getBytes("UTF-8"));
+			byte[] hash = digest.digest(serializedExamples);
+			StringBuffer name = new StringBuffer("learned");
+			for (int i=0; i<10; i++) name.append(Integer.toHexString((hash[i]&0xFF)|0x100).substring(1));
+			directory.mkdirs();
+			return new File(directory,name+".pl");
+		} catch (Exception e){
+			throw new IPException("Could not name learned objects file:"+e);
+		}
+	}
+	
+	/** Has Prolog write the facts learned for the named examples (a Prolog list of atoms, or all) into the file; 
+	writes go to a temporary file first, renamed once Prolog is done, so other engines never see a partial file */
+	protected void saveLearnedObjects(File file, String names){
+		try{
+			File temp = File.createTempFile("learned",".tmp",file.getParentFile());
+			boolean saved = deterministicGoal("ipSaveLearnedObjects("+quotedAtom(peer.unescapedFilePath(temp.getAbsolutePath()))+","+names+")");
+			if (saved && temp.length()>0 && (temp.renameTo(file) || isLearnedObjectsFile(file))) progressMessage("Saved learned objects to "+file);
+			else progressMessage("Could not save learned objects to "+file);
+			temp.delete();
+		} catch (IOException e){
+			progressMessage("Could not save learned objects:"+e);
+		}
+	}
+	
+	/** The file was saved by saveLearnedObjects; an empty one never was */
+	protected static boolean isLearnedObjectsFile(File file){
+		return file!=null && file.isFile() && file.length()>0;
+	}
+	
+	protected String learnedObjectsPath(File file){
+		return quotedAtom(peer.unescapedFilePath(file.getAbsolutePath()));
+	}
+	
 	/** Same as #teachMoreObjects(ObjectExamplePair[]), but the single example pair is constructed repeating the object
 	@see #teachMoreObjects(ObjectExamplePair[]) */
 	public boolean teachOneObject(Object example){
@@ -569,15 +676,36 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	}
 	
 	/** Send an array of object example pairs to Prolog and generate ipObjectSpec facts. 
-	Returns true if this succeeds, false otherwise.
+	Returns true if this succeeds, false otherwise. If there is a learned objects cache, the facts may come from there instead.
 	@param examples The examples
-	@see ObjectExamplePair */
+	@see ObjectExamplePair
+	@see #setLearnedObjectsCache(File) */
 	public boolean teachMoreObjects(ObjectExamplePair[] examples){
+		File learned = null;
+		if (learnedObjectsCache!=null){
+			try{
+				ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+				ObjectOutputStream oos = new ObjectOutputStream(serialized);
+				oos.writeObject(examples); oos.close();
+				learned = learnedObjectsFile(serialized.toByteArray());
+			} catch (IOException e){
+				throw new IPException("Could not serialize examples:"+e);
+			}
+			if (isLearnedObjectsFile(learned) && deterministicGoal("ipLoadLearnedObjects("+learnedObjectsPath(learned)+")")) 
+				return true;
+		}
 		// simply call "dg" to teach examples...
 		Object[] temp = new Object[examples.length];
 		for (int i=0;i<examples.length;i++)
 			temp[i] = examples[i];
-		return deterministicGoal("ipProcessExamples(Examples)", "Examples", temp);
+		boolean taught = deterministicGoal("ipProcessExamples(Examples)", "Examples", temp);
+		if (taught && learned!=null){
+			StringBuffer names = new StringBuffer("[");
+			for (int i=0;i<examples.length;i++)
+				names.append((i>0?",":"")+quotedAtom(examples[i].name));
+			saveLearnedObjects(learned,names+"]");
+		}
+		return taught;
 	}
 
 	public boolean teachMoreObjects(ObjectExamplePair example){
@@ -596,6 +724,13 @@ public abstract class AbstractPrologEngine implements PrologEngine{
         	throw new IPException("objectsP argument must be an array of Object");
         if (G.trim ().endsWith ("."))
             throw new IPException ("Goal argument should have no trailing '.', in deterministicGoal");
+        int[] compact = compactResultGoal.get();
+        if (compact!=null){
+        	// only this goal: callbacks executed by this thread meanwhile may make others
+        	compactResultGoal.remove();
+        	compact[0] = timestamp;
+        	compactResults.add(new Integer(timestamp));
+        }
         return new GoalFromJava(timestamp,G,OVar,objectsP,RVars);
 	}
 	
@@ -627,18 +762,7 @@ public abstract class AbstractPrologEngine implements PrologEngine{
             ResultFromProlog result = goalToDo.waitForResult();
             progressMessage("Got result for "+goalToDo);
             // goalToDo is forgotten by handleCallback
-                       
-            if (result==null) throw new IPException("Problems in goal result");
-            if (goalToDo.wasAborted()) throw new IPAbortedException(G+" was aborted by Java-side cascading");
-            if (goalToDo.wasInterrupted()) throw new IPInterruptedException(G+" was interrupted by Java-side cascading"); 
-            if (result.wasInterrupted(this)) 
-            	throw new IPInterruptedException(G+" was interrupted, Prolog detected"); 
-            if (result.error!=null)
-                throw new IPPrologError(result.error);
-            if (result.timestamp!=mytimestamp)
-                throw new IPException("bad timestamp in deterministicGoal, got "+result.timestamp+" instead of "+goalTimestamp);
-            if (result.succeeded)
-                resultToReturn = result.rVars;
+            resultToReturn = goalBindings(goalToDo,result,G);
         } catch (IPException e) {
             throw e;
         } catch (Exception e) {
@@ -647,6 +771,172 @@ public abstract class AbstractPrologEngine implements PrologEngine{
         return resultToReturn;
     }
 	
+	/** Interprets the result of a deterministicGoal, throwing the appropriate IPException if it did not succeed normally
+	@return the result bindings, or null if the goal failed */
+	protected Object[] goalBindings(GoalToExecute goalToDo, ResultFromProlog result, String G){
+		if (result==null) throw new IPException("Problems in goal result");
+		if (goalToDo.wasAborted()) throw new IPAbortedException(G+" was aborted by Java-side cascading");
+		if (goalToDo.wasTimedOut() && result.error!=null || result.error!=null && getImplementationPeer().isTimeout(result.error))
+			throw new IPTimeoutException(G+" did not end before its deadline");
+		if (goalToDo.wasInterrupted()) throw new IPInterruptedException(G+" was interrupted by Java-side cascading"); 
+		if (result.wasInterrupted(this)) 
+			throw new IPInterruptedException(G+" was interrupted, Prolog detected"); 
+		if (result.error!=null)
+			throw new IPPrologError(result.error);
+		if (result.timestamp!=goalToDo.getTimestamp())
+			throw new IPException("bad timestamp in deterministicGoal, got "+result.timestamp+" instead of "+goalToDo.getTimestamp());
+		if (result.succeeded) return result.rVars;
+		else return null;
+	}
+	
+	/** Asynchronous version of deterministicGoal(String,String,Object[],String): the goal is scheduled and this method returns immediately, 
+	without parking the calling thread. The future is completed by the Prolog handler thread when the ResultFromProlog arrives, 
+	with the result bindings (null if the goal fails), or exceptionally with an IPPrologError, IPInterruptedException, IPAbortedException or IPException. 
+	Dependent actions run in the completing thread, so they must not block on this engine; use the ...Async CompletableFuture 
+	methods for those that call Prolog again. If threaded callbacks are off, javaMessages from this goal still execute in new threads, 
+	as there is no caller thread waiting.
+	@see #deterministicGoal(String,String,Object[],String) */
+	public CompletableFuture<Object[]> deterministicGoalAsync(String G, String OVar, Object[] objectsP, String RVars){
+		CompletableFuture<Object[]> future = new CompletableFuture<Object[]>();
+		startAsynchronousGoal(G,OVar,objectsP,RVars,future);
+		return future;
+	}
+	
+	/** Schedules a goal that will complete the future, returning it */
+	protected GoalToExecute startAsynchronousGoal(String G, String OVar, Object[] objectsP, String RVars, CompletableFuture<Object[]> future){
+		int mytimestamp = incGoalTimestamp();
+		GoalFromJava GO = makeDGoalObject(G, OVar, objectsP, RVars, mytimestamp);
+		progressMessage("Schedulling (in PrologEngine) asynchronous goal "+G+", timestamp "+mytimestamp);
+		GoalToExecute goalToDo = makeAsynchronousGoal(GO,G,future);
+		scheduleGoal(goalToDo);
+		return goalToDo;
+	}
+	
+	/** A GoalToExecute with no caller thread, which completes the future when its result is set */
+	protected GoalToExecute makeAsynchronousGoal(GoalFromJava GO, final String G, final CompletableFuture<Object[]> future){
+		return new GoalToExecute(GO,null){
+			protected void resultWasSet(){
+				completeGoalFuture(this,G,future);
+			}
+		};
+	}
+	
+	/** Same as deterministicGoalAsync(G,null,null,RVars) */
+	public CompletableFuture<Object[]> deterministicGoalAsync(String G, String RVars){
+		return deterministicGoalAsync(G,null,null,RVars);
+	}
+	
+	/** Same as deterministicGoal(G,OVar,objectsP,RVars), but if the goal does not end within timeoutMillis an IPTimeoutException 
+	is thrown then, and the goal is dropped or stopped. Other goals, including those of other threads, are not affected. 
+	@see #deterministicGoalAsync(String,String,Object[],String,long) */
+	public Object[] deterministicGoal(String G, String OVar, Object[] objectsP, String RVars, long timeoutMillis){
+		try{
+			return deterministicGoalAsync(G,OVar,objectsP,RVars,timeoutMillis).get();
+		} catch (ExecutionException e){
+			if (e.getCause() instanceof IPException) throw (IPException)e.getCause();
+			throw new IPException("Problem in deterministicGoal:"+e.getCause());
+		} catch (InterruptedException e){
+			throw new IPInterruptedException("Java thread interrupted while waiting for "+G);
+		}
+	}
+	
+	/** Same as deterministicGoal(G,null,null,RVars,timeoutMillis) */
+	public Object[] deterministicGoal(String G, String RVars, long timeoutMillis){
+		return deterministicGoal(G,null,null,RVars,timeoutMillis);
+	}
+	
+	/** Asynchronous goal with a deadline, timeoutMillis from now; when it passes the future completes with an IPTimeoutException,
+	and a goal not yet sent to Prolog is dropped. 
+	If the Prolog implementation supports time limits (cf. PrologImplementationPeer.timeLimitedGoal) the goal executing is stopped on the Prolog side.
+	Otherwise the engine interrupts it if it is the only one executing in Prolog, as interrupts may unwind all goals nested in the Prolog stack;
+	a goal with others executing keeps running until it ends, and its result is ignored. Other goals are never affected. */
+	public CompletableFuture<Object[]> deterministicGoalAsync(final String G, String OVar, Object[] objectsP, String RVars, long timeoutMillis){
+		if (timeoutMillis<=0) throw new IPException("Bad timeout:"+timeoutMillis);
+		final CompletableFuture<Object[]> future = new CompletableFuture<Object[]>();
+		String limitedGoal = getImplementationPeer().timeLimitedGoal(G,timeoutMillis);
+		final GoalToExecute goalToDo;
+		if (limitedGoal!=null){
+			if (RVars==null) {
+				// the TermModel must be of the original goal
+				limitedGoal += ", buildTermModel(( "+G+" ),IPTermModel_)";
+				RVars = "[IPTermModel_]";
+			}
+			goalToDo = startAsynchronousGoal(limitedGoal,OVar,objectsP,RVars,future);
+		} else goalToDo = startAsynchronousGoal(G,OVar,objectsP,RVars,future);
+		final boolean interruptible = (limitedGoal==null);
+		final ScheduledFuture deadline = deadlines.schedule(new Runnable(){
+			public void run(){
+				expireGoal(goalToDo,interruptible);
+				future.completeExceptionally(new IPTimeoutException(G+" did not end before its deadline"));
+			}
+		},timeoutMillis,TimeUnit.MILLISECONDS);
+		future.whenComplete(new BiConsumer<Object[],Throwable>(){
+			public void accept(Object[] bindings, Throwable problem){
+				deadline.cancel(false);
+			}
+		});
+		return future;
+	}
+	
+	/** Timer for goal deadlines enforced on the Java side, shared by all engines */
+	static final ScheduledThreadPoolExecutor deadlines = new ScheduledThreadPoolExecutor(1,new ThreadFactory(){
+		public Thread newThread(Runnable r){
+			Thread t = new Thread(r,"InterProlog goal deadlines");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	static { deadlines.setRemoveOnCancelPolicy(true); }
+	
+	/** The goal's deadline has passed: drop it if not yet sent to Prolog, otherwise, if interruptible, interrupt Prolog 
+	if it is the only goal executing */
+	protected void expireGoal(GoalToExecute goalToDo, boolean interruptible){
+		synchronized(this){
+			if (goalToDo.hasEnded() || shutingDown) return;
+			if (goalToDo.hasStarted()){
+				if (interruptible && goalsToExecute.innermostStarted()==goalToDo && goalsToExecute.startedSize()==1){
+					goalToDo.timeOut();
+					interruptExpiredGoal(goalToDo);
+				}
+				return;
+			}
+			goalsToExecute.remove(goalToDo.getTimestamp());
+		}
+		goalToDo.timeOut();
+		synchronized(this){notifyAll();}
+	}
+	
+	/** Interrupts Prolog in a new thread, as doInterrupt() may take long (e.g. running a process and waiting for Prolog's prompt), 
+	and the deadline timer serves all engines; skipped if the goal ended, or others started, meanwhile. 
+	doInterrupt() locks this engine itself, so the goal is checked again under that same lock */
+	protected void interruptExpiredGoal(final GoalToExecute goalToDo){
+		Thread interrupter = new Thread("InterProlog deadline interrupt"){
+			public void run(){
+				synchronized(AbstractPrologEngine.this){
+					if (goalToDo.hasEnded() || shutingDown || goalsToExecute.innermostStarted()!=goalToDo || goalsToExecute.startedSize()!=1) 
+						return;
+					progressMessage("Interrupting goal "+goalToDo+", as its deadline has passed");
+					try{ doInterrupt(); }
+					catch (IPException e){ progressMessage("Could not interrupt expired goal:"+e); }
+				}
+			}
+		};
+		interrupter.setDaemon(true);
+		interrupter.start();
+	}
+	
+	/** Completes the future of an asynchronous goal, with its bindings or with the exception deterministicGoal would throw */
+	protected void completeGoalFuture(GoalToExecute goalToDo, String G, CompletableFuture<Object[]> future){
+		Object[] bindings;
+		try{
+			bindings = goalBindings(goalToDo,goalToDo.getResult(),G);
+		} catch (IPException e){
+			future.completeExceptionally(e);
+			return;
+		}
+		future.complete(bindings);
+	}
+	
 	/** A parameterless goal with no result other than success/failure. Same as deterministicGoal(G, null,null,"[]") */
 	public boolean deterministicGoal(String G){
 		return (deterministicGoal(G, null,null,"[]")!=null);
@@ -670,59 +960,167 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		else return (TermModel)bindings[0];
 	}
 	
+	/** Same as deterministicGoal(TermModel), for compact terms. With the binary wire format (cf. SubprocessEngine.setBinaryTerms) 
+	numbers are sent exactly and the solution is decoded straight into a Term; otherwise the goal may only have integers in 
+	the int range and floats (cf. Term.toTermModel()), and the solution arrives as a TermModel and is converted
+	@return the goal solution, or null if it failed */
+	public Term deterministicGoal(Term G){
+		int[] timestamp = new int[]{-1};
+		compactResultGoal.set(timestamp);
+		Object[] bindings;
+		try{
+			bindings = deterministicGoal("recoverTermModel(GM,G), call(G), buildTermModel(G,SM)","[GM]",new Object[]{G.toTermModel(sendsWideNumbers())},"[SM]");
+		} finally{
+			compactResultGoal.remove();
+			compactResults.remove(new Integer(timestamp[0]));
+		}
+		if (bindings==null) return null;
+		if (bindings[0] instanceof Term) return (Term)bindings[0];
+		else return Term.fromTermModel((TermModel)bindings[0]);
+	}
+	
+	/** Calls a batch of deterministic goals in a single message exchange with Prolog, which pays off for many small goals. 
+	Each goal is called independently, in list order: its failure or Prolog error is recorded in its GoalSpec and does not affect the others. 
+	Throws an IPException only if the batch as a whole could not be executed, e.g. if a goal's result bindings could not be serialized.
+	@return the same list, with the outcome of each goal in its GoalSpec
+	@see GoalSpec#getResult() */
+	public List<GoalSpec> deterministicGoals(List<GoalSpec> goals){
+		Object[] subgoals = new Object[goals.size()];
+		for (int i=0;i<subgoals.length;i++){
+			GoalSpec gs = goals.get(i);
+			subgoals[i] = makeDGoalObject(gs.G, gs.OVar, gs.objects, gs.RVars, i);
+		}
+		Object[] results = deterministicGoal("ipDeterministicGoals(IPGoals,IPResults)", "IPGoals", subgoals, "IPResults");
+		if (results==null || results.length!=subgoals.length) 
+			throw new IPException("Bad result for batch of deterministicGoals");
+		for (int i=0;i<subgoals.length;i++)
+			goals.get(i).setResult((ResultFromProlog)results[i],this);
+		return goals;
+	}
+	
+	/** Calls a Prolog goal for all its solutions, which are fetched incrementally: Prolog computes and sends them in chunks, 
+	keeping the goal's choice point while the previous chunk is consumed. The goal runs asynchronously, and the engine remains available 
+	for other goals while Prolog waits for the iterator's consumer; but unless goals run concurrently, these execute nested above the 
+	suspended goal, which can not resume before they end. So iterators open together must be drained or closed in LIFO order: 
+	hasNext() throws an IPException, rather than waiting forever, if asked for more solutions of an older iterator while a newer one is open. 
+	Closing the iterator early cuts the remaining solutions. 
+	@return an iterator over the solutions, each an array with the objects specified by RVars as for deterministicGoal
+	@param chunkSize Number of solutions sent to Java in each message
+	@see #deterministicGoal(String,String,Object[],String) */
+	public SolutionIterator nondeterministicGoal(String G, String OVar, Object[] objectsP, String RVars, int chunkSize){
+		if (chunkSize<1) throw new IPException("Bad chunk size in nondeterministicGoal:"+chunkSize);
+		if (G==null) throw new IPException ("Null Goal in nondeterministicGoal");
+		final SolutionIterator solutions = new SolutionIterator(this,chunkSize);
+		final int ID = registerJavaObject(solutions);
+		openIterators.addElement(solutions);
+		String streamingGoal = "ipStreamSolutions("+ID+", ( "+G+" ), ("+(RVars==null?"null":RVars)+"), "+chunkSize+")";
+		CompletableFuture<Object[]> future;
+		try{
+			future = deterministicGoalAsync(streamingGoal,OVar,objectsP,"[]");
+		} catch (IPException e){
+			openIterators.removeElement(solutions);
+			unregisterJavaObject(ID);
+			throw e;
+		}
+		future.whenComplete(new BiConsumer<Object[],Throwable>(){
+			public void accept(Object[] bindings, Throwable problem){
+				unregisterJavaObject(ID);
+				solutions.goalEnded(problem);
+				openIterators.removeElement(solutions);
+			}
+		});
+		return solutions;
+	}
+	
+	/** Goals carry TermModels with Long and Double nodes exactly to Prolog; this implementation returns false */
+	protected boolean sendsWideNumbers(){
+		return false;
+	}
+	
+	/** Goals given to this engine run nested in Prolog, one at a time, above those waiting for javaMessages; 
+	this implementation returns true */
+	protected boolean goalsNest(){
+		return true;
+	}
+	
+	/** Same as nondeterministicGoal(G,null,null,RVars,100) */
+	public SolutionIterator nondeterministicGoal(String G, String RVars){
+		return nondeterministicGoal(G,null,null,RVars,100);
+	}
+	
 	// Increment the goal counter
-	protected int incGoalTimestamp(){
+	protected synchronized int incGoalTimestamp(){
 		goalTimestamp++; 
 		if (goalTimestamp<0) throw new IPException("goalTimestamp did wrap around, please improve it...");
 		return goalTimestamp;
 	}
 	
-	/** Adds goal to pool awaiting execution by Prolog */
+	/** Adds goal to pool awaiting execution by Prolog, and wakes up the Prolog handler thread */
 	protected synchronized void scheduleGoal(GoalToExecute g){
-		goalsToExecute.addElement(g);
+		goalsToExecute.add(g);
+		notifyAll();
 	}	
 	
-	protected synchronized GoalToExecute moreRecentToExecute(){
-		for (int i=goalsToExecute.size()-1; i>=0; i--){
-			GoalToExecute gte = (GoalToExecute)goalsToExecute.elementAt(i);
-			if (!gte.hasStarted()) return gte;
-		}
-		return null;
+	/** Takes the more recently scheduled goal not yet sent to Prolog, or returns null if none; 
+	the caller must then mark it with prologWasCalled() and pushDGoal() */
+	protected GoalToExecute moreRecentToExecute(){
+		return goalsToExecute.pollMoreRecentNotStarted();
 	}
 	
-	protected synchronized GoalToExecute findLastGTEWithProperThread(){
-		for (int i=goalsToExecute.size()-1; i>=0; i--){
-			GoalToExecute gte = (GoalToExecute)goalsToExecute.elementAt(i);
-			// System.out.println("findLastGTEWithProperThread:"+gte.getCallerThread());
-			if (gte.hasStarted()&&!gte.hasEnded()&&gte.getCallerThread()==currentDGthread()) 
-				return gte;
-		}
-		throw new IPException("Could not find thread for callback; currentDGthread=="+currentDGthread()+"; "+goalsToExecute.size()+" GTEs");
+	/** The goal executing innermost in Prolog, which must be the one whose thread is waiting for javaMessages */
+	protected GoalToExecute findLastGTEWithProperThread(){
+		GoalToExecute gte = goalsToExecute.innermostStarted();
+		if (gte==null || gte.hasEnded())
+			throw new IPException("Could not find thread for callback; currentDGthread=="+currentDGthread()+"; "+goalsToExecute);
+		return gte;
 	}
 	
-	void pushDGthread(Thread t){
-		dgThreads.push(t);
+	void pushDGoal(GoalToExecute gte){
+		goalsToExecute.pushStarted(gte);
 	}
 	
-	void popDGthread(){
-		dgThreads.pop();
+	void popDGoal(){
+		goalsToExecute.popStarted();
 	}
 	
 	Thread currentDGthread(){
-		return (Thread)dgThreads.peek();
+		GoalToExecute gte = goalsToExecute.innermostStarted();
+		if (gte==null) return null;
+		else return gte.getCallerThread();
 	}
 	
-	/** Currently does a dumb linear search, enough for our scenarios. 
-	2 future possibilities: use Hashtable; make ResultFromProlog bring back a reference to GoalFromJava */
-	protected synchronized GoalToExecute forgetGoal(int timestamp){
-		for (int i=0; i<goalsToExecute.size(); i++){
-			GoalToExecute gte = (GoalToExecute)goalsToExecute.elementAt(i);
-			if (gte.getTimestamp()==timestamp){
-				goalsToExecute.removeElementAt(i);
-				return gte;
-			}
+	/** Same as forgetGoal, but does not forget it; returns null if not found */
+	protected GoalToExecute findGoal(int timestamp){
+		return goalsToExecute.get(timestamp);
+	}
+	
+	/** Removes the goal from the pending goals, waking up threads in waitUntilIdle() if none is left */
+	protected GoalToExecute forgetGoal(int timestamp){
+		GoalToExecute gte = goalsToExecute.remove(timestamp);
+		if (gte!=null && goalsToExecute.isEmpty()){
+			if (releaseObjectsAtGoalEnd) knownObjects.releaseAll();
+			synchronized(this){ notifyAll(); }
 		}
-		return null;
+		return gte;
+	}
+	
+	/** Records the goal's timings, if metrics are enabled; called just before setting its result */
+	protected void goalResultArrived(GoalToExecute gte){
+		EngineMetrics m = metrics;
+		if (m==null) return;
+		long now = System.nanoTime();
+		if (gte.getCalledNanos()!=0) m.recordTime(EngineMetrics.PROLOG_EXECUTION,now-gte.getCalledNanos());
+		m.recordTime(EngineMetrics.GOAL_LATENCY,now-gte.getCreatedNanos());
+	}
+	
+	/** Goals scheduled or executing whose results were not yet handled */
+	public int pendingGoalsCount(){
+		return goalsToExecute.size();
+	}
+	
+	/** javaMessages executing or whose results were not yet sent to Prolog */
+	public int executingMessagesCount(){
+		return messagesExecuting.size();
 	}
 	
 	/** Just adds to messagesExecuting */
@@ -732,6 +1130,13 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	
 	protected synchronized void forgetMessage(MessageExecuting m){
 		messagesExecuting.removeElement(m);
+		notifyAll();
+	}
+	
+	/** Do not invoke this. Wakes up the Prolog handler thread, waiting in doSomething() for the javaMessage result. 
+	Due to the use of several Java packages in InterProlog this method must be qualified as public */
+	public synchronized void messageHasEnded(MessageExecuting m){
+		notifyAll();
 	}
 	
 	protected synchronized MessageExecuting lastMessageRequest(){
@@ -744,43 +1149,41 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	/** The engine is doing nothing: no pending Prolog goals nor Java callbacks */
 	public synchronized boolean isIdle(){
 		//System.out.println("messagesExecuting.size()=="+messagesExecuting.size()+",goalsToExecute.size()=="+goalsToExecute.size());
-		return messagesExecuting.size()==0 && goalsToExecute.size()==0;
+		return messagesExecuting.size()==0 && goalsToExecute.isEmpty();
 	}
 	
 	/** Do not invoke this */
     public synchronized void endAllTasks(Exception e) {
-        for (int i=0; i<goalsToExecute.size(); i++){
-            GoalToExecute gte = (GoalToExecute)goalsToExecute.elementAt(i);
-            gte.setResult(new ResultFromProlog(gte.getTimestamp(), false, 0, e));
-        }
+        GoalToExecute[] goals = goalsToExecute.goals();
+        for (int i=0; i<goals.length; i++)
+            goals[i].fail(new ResultFromProlog(goals[i].getTimestamp(), false, 0, e));
         cleanupTasks();
     }
     
     /** Do not invoke this. Due to the use of several Java packages in InterProlog this method must be qualified as public */
 	public synchronized void abortTasks(){
-		for (int i=0; i<goalsToExecute.size(); i++){
-			GoalToExecute gte = (GoalToExecute)goalsToExecute.elementAt(i);
-			gte.abort();
-		}
+		GoalToExecute[] goals = goalsToExecute.goals();
+		for (int i=0; i<goals.length; i++)
+			goals[i].abort();
 		cleanupTasks();
 	}
 	
     /** Do not invoke this. Due to the use of several Java packages in InterProlog this method must be qualified as public */
 	public synchronized void interruptTasks(){
-		for (int i=0; i<goalsToExecute.size(); i++){
-			GoalToExecute gte = (GoalToExecute)goalsToExecute.elementAt(i);
-			gte.interrupt();
-		}
+		GoalToExecute[] goals = goalsToExecute.goals();
+		for (int i=0; i<goals.length; i++)
+			goals[i].interrupt();
 		cleanupTasks();
 	}
 	
-	protected void cleanupTasks(){
-		goalsToExecute.removeAllElements();
+	protected synchronized void cleanupTasks(){
+		GoalToExecute[] executing = goalsToExecute.clear();
 		messagesExecuting.removeAllElements();
-		while(!dgThreads.empty()){
-			Thread t = (Thread)dgThreads.pop();
-			if (t.isAlive() && shutingDown) t.interrupt();
+		for (int i=0; i<executing.length; i++){
+			Thread t = executing[i].getCallerThread();
+			if (t!=null && t.isAlive() && shutingDown) t.interrupt();
 		}
+		notifyAll();
 	}
 	
 	/** Present implementation is always available, so this always returns true. Subclass implementations should return false if the Prolog engine 
@@ -790,17 +1193,26 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 	}
 	
 	public void waitUntilAvailable(){
-		try{
-            while(!isAvailable()) Thread.sleep(0,1);
-		} catch (InterruptedException e){
-			throw new IPException("Bad interrupt:"+e); 
+		synchronized(availabilityMonitor){
+			try{
+				while(!isAvailable()) availabilityMonitor.wait();
+			} catch (InterruptedException e){
+				throw new IPException("Bad interrupt:"+e); 
+			}
+		}
+	}
+	
+	/** Wakes up threads in waitUntilAvailable(), so they check isAvailable() again */
+	protected void availabilityChanged(){
+		synchronized(availabilityMonitor){
+			availabilityMonitor.notifyAll();
 		}
 	}
 	
-	/** Sleeps the current Java thread until this engine is idle. If this never happens, we're in trouble. */
-	public void waitUntilIdle(){
+	/** Blocks the current Java thread until this engine is idle. If this never happens, we're in trouble. */
+	public synchronized void waitUntilIdle(){
 		try{
-			while(!isIdle()) Thread.sleep(0,1);
+			while(!isIdle()) wait();
 		} catch (InterruptedException e){
 			throw new IPException("Bad interrupt:"+e); 
 		}
@@ -817,38 +1229,35 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 			progressMessage("handling "+mfp);
 			// first message is a dummy just to get us here:
 			if (!isFirstJavaMessage(mfp)){
-				MessageExecuting me = new MessageExecuting(mfp,this);
+				MessageExecuting me = new MessageExecuting(mfp,this,goalsToExecute.innermostStarted());
 				addMessage(me); // here?
-				if (threadedCallbacks) new Thread(me).start();
+				if (threadedCallbacks && !callbackExecutor.isCallerRuns()) callbackExecutor.execute(me);
 				else {
 					GoalToExecute lastGTE = findLastGTEWithProperThread();
-					lastGTE.executeInThread(me);
+					// asynchronous goals have no caller thread waiting to execute the message:
+					if (lastGTE.getCallerThread()==null) new Thread(callbackExecutor.instrument(me)).start();
+					else lastGTE.executeInThread(callbackExecutor.instrument(me));
 				}
 				// not here anymore ??? addMessage(me);
 			} else progressMessage("received first (dummy) javaMessage");
 		} else if (x instanceof ResultFromProlog){
 			ResultFromProlog rfp = (ResultFromProlog)x;
-			popDGthread();
+			popDGoal();
 			progressMessage("handling "+rfp);
 			GoalToExecute gte = forgetGoal(rfp.timestamp);
 			progressMessage("forgot goal "+gte+"; isIdle()=="+isIdle());
 			if (gte==null) throw new IPException("Could not find goal "+rfp.timestamp);
+			goalResultArrived(gte);
 			gte.setResult(rfp);
 		} else throw new IPException("bad object in handleCallback:"+x);
 		// no errors so far
 		progressMessage("About to leave handleCallback");
 		return doSomething();
 	}
-	/** return result to last javaMessage or pick more recent GoalToExecute */	
-	protected Object doSomething(){
+	/** return result to last javaMessage or pick more recent GoalToExecute. Blocks on the engine monitor until 
+	scheduleGoal(), messageHasEnded() or cleanupTasks() provide something to do */	
+	protected synchronized Object doSomething(){
 		while(!shutingDown){
-			// let some work proceed elsewhere; this seems light enough for now, if not use wait/notify around here too:
-			if (isIdle())
-				try { Thread.sleep(0,100); }
-				catch (InterruptedException e){throw new IPException("Bad interrupt:"+e);}
-			else // Thread.yield(): too heavy, for ex. when in a modal dialog
-				try { Thread.sleep(0,1); }
-				catch (InterruptedException e){throw new IPException("Bad interrupt:"+e);}
 			MessageExecuting last = lastMessageRequest();
 			if (last!=null && last.hasEnded()) {
 				forgetMessage(last);
@@ -858,10 +1267,12 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 			GoalToExecute gte = moreRecentToExecute();
 			if (gte!=null){
 				// insufficient! currentDGthread = gte.getCallerThread();
-				pushDGthread(gte.getCallerThread());
 				gte.prologWasCalled();
+				pushDGoal(gte);
 				return gte.getGoal();
 			}
+			try { wait(); }
+			catch (InterruptedException e){throw new IPException("Bad interrupt:"+e);}
 		}
 		return null;
 	}
@@ -878,6 +1289,18 @@ public abstract class AbstractPrologEngine implements PrologEngine{
 		throw new IPException("This should never be called, bad javaMessage handling");
 	}
 	
+	/** Executes the javaMessage sent by Prolog while executing goal, which owns the objects registered meanwhile for Prolog,
+	as described in setGoalScopedObjects(boolean); goal may be null */
+	public ResultFromJava doCallback(MessageFromProlog m, GoalToExecute goal){
+		GoalToExecute previous = callbackGoal.get();
+		callbackGoal.set(goal);
+		try{
+			return doCallback(m);
+		} finally{
+			callbackGoal.set(previous);
+		}
+	}
+	
 	/** Execute a Prolog->Java call */
     public ResultFromJava doCallback(Object x){
         progressMessage ("Starting handling of XSB->Java callback:"+nl+x);
@@ -894,10 +1317,10 @@ public abstract class AbstractPrologEngine implements PrologEngine{
             if (callback.target instanceof InvisibleObject){
                 target = getRealJavaObject((InvisibleObject)callback.target);
             } else if(callback.target instanceof IPClassObject){
-                target = Class.forName(((IPClassObject)(callback.target)).classname);
+                target = callSites.classForName(((IPClassObject)(callback.target)).classname);
             } else if (callback.target instanceof IPClassVariable) {
                 IPClassVariable tempTarget = (IPClassVariable)(callback.target);
-                Class tempClass = Class.forName(tempTarget.className);
+                Class tempClass = callSites.classForName(tempTarget.className);
                 target = tempClass.getField(tempTarget.variableName).get(tempClass);
             } else
                 target = callback.target;
@@ -913,43 +1336,41 @@ public abstract class AbstractPrologEngine implements PrologEngine{
                         localArguments[a] = getRealJavaObject((InvisibleObject)localArguments[a]);
                         formalArguments[a] = localArguments[a].getClass();
                     } else if (localArguments[a] instanceof IPClassObject) {
-                        localArguments[a] = Class.forName(((IPClassObject)(localArguments[a])).classname);
+                        localArguments[a] = callSites.classForName(((IPClassObject)(localArguments[a])).classname);
                         formalArguments[a] = Class.class;
                     } else if (localArguments[a] instanceof IPClassVariable) {
                         IPClassVariable IPCV = (IPClassVariable)(localArguments[a]);
-                        Class tempClass = Class.forName(IPCV.className);
+                        Class tempClass = callSites.classForName(IPCV.className);
                         localArguments[a] = tempClass.getField(IPCV.variableName).get(null);
                         formalArguments[a] = localArguments[a].getClass();
                     } else formalArguments[a] = localArguments[a].getClass();
                 }
             }
-            Method method=null;
+            Member method=null;
+            CallSiteCache.Entry callSite;
             if (target instanceof Class){
                 if (shortClassName ((Class)target).equals (callback.methodName)) {
                     // It's a (public...) constructor invocation
-                    //Constructor constructor = ((Class)target).getConstructor(formalArguments);
-                    Constructor constructor = findConstructor ((Class)target,formalArguments);
-                    result = constructor.newInstance(localArguments);
+                    callSite = callSites.lookup((Class)target,callback.methodName,formalArguments,true);
                 } else {
                     // It's a class (static) method invocation
-                    // Method method = ((Class)target).getMethod(callback.methodName,formalArguments);
-                    method = findMethod((Class)target,callback.methodName,formalArguments);
-                    //result = method.invoke(target,localArguments);
-                    result = method.invoke(target,localArguments);
+                    callSite = callSites.lookup((Class)target,callback.methodName,formalArguments,false);
+                    method = callSite.member;
                 }
             } else {
                 // An instance method invocation
-                // Method method = target.getClass().getMethod(callback.methodName,formalArguments);
-                //result = findMethod(target.getClass(),callback.methodName,formalArguments).invoke(target,localArguments);
-                method = findMethod(target.getClass (),callback.methodName,formalArguments);
-                result = method.invoke(target,localArguments);
+                callSite = callSites.lookup(target.getClass (),callback.methodName,formalArguments,false);
+                method = callSite.member;
             }
+            result = callSite.invoke(target,localArguments);
+            // Terms go as TermModels, for recoverTermModel:
+            if (result instanceof Term) result = ((Term)result).toTermModel();
             // The result will be an invisible object, except if a String or a wrapper or a TermModel...
             // ...or if this is a getRealJavaObject message sent to the PrologEngine
             if (result!=null && !(target==this && method.equals(getRealJavaObjectMethod)) && !(result instanceof InvisibleObject) 
             && !(result instanceof String) && !(result instanceof TermModel)
             && ! BasicTypeWrapper.instanceOfWrapper(result))
-                result = makeInvisible(result);
+                result = (goalScopedObjects ? makeGoalInvisible(result) : makeInvisible(result));
         } catch (Exception e) {
             exception=e;
         }
@@ -963,6 +1384,11 @@ public abstract class AbstractPrologEngine implements PrologEngine{
             return new ResultFromJava (callback.timestamp,result,exception,null);
     }
 
+    /** The cache of methods and classes resolved by doCallback, with its hit/miss counters */
+    public CallSiteCache getCallSiteCache(){
+        return callSites;
+    }
+
     /** An utility building on the functionality of getMethod(), to provide the javaMessage predicate with method argument
      * polimorphism. If the type signatures do not match exactly, searches all method signatures to see if their arguments
      * are type-compatible.
@@ -1123,10 +1549,120 @@ public abstract class AbstractPrologEngine implements PrologEngine{
             return knownObjects.unregisterJavaObjects(cls);
         }
         
-	/** If true, the Java execution of javaMessage predicates will happen in new threads (default);
-	if false, execution will be under the thread of the deterministicGoal currently executing in Prolog */
+	/** If true, objects registered from now on are held weakly, and forgotten once garbage collected; objects sent to Prolog
+	as InvisibleObjects (e.g. javaMessage results) are kept until Prolog releases them with ipReleaseObjects/1,
+	or until all goals end, if setReleaseObjectsAtGoalEnd(true). Use this when Prolog gets many short lived objects
+	@see ObjectRegistry#setWeak(boolean) */
+	public void setWeakObjectRegistry(boolean yes){
+		knownObjects.setWeak(yes);
+	}
+	
+	/** If true, in a weak object registry the objects sent to Prolog are released whenever no goal is pending, 
+	so Prolog must not keep their references across goals */
+	public void setReleaseObjectsAtGoalEnd(boolean yes){
+		releaseObjectsAtGoalEnd = yes;
+	}
+	
+	/** If true, the objects that javaMessages return to Prolog as InvisibleObjects are registered in an arena of the goal 
+	that sent the javaMessage, and unregistered when the goal ends, except those promoted with promoteJavaObject; objects
+	already registered are not affected. javaMessages of concurrent goals are not scoped, as they can not be traced to their goal
+	@see #registerGoalObject(Object) */
+	public void setGoalScopedObjects(boolean yes){
+		goalScopedObjects = yes;
+	}
+	
+	/** The goal on whose behalf the current thread is executing a javaMessage, or null if none */
+	protected GoalToExecute currentCallbackGoal(){
+		return callbackGoal.get();
+	}
+	
+	/** Registers the object until the goal on whose behalf the current thread executes a javaMessage ends; 
+	if it was already registered it is not affected. This thread must be executing a javaMessage
+	@return the object ID
+	@see #promoteJavaObject(int) */
+	public int registerGoalObject(Object x){
+		GoalToExecute goal = currentCallbackGoal();
+		if (goal==null) throw new IPException("registerGoalObject must be called while executing a javaMessage");
+		return knownObjects.registerJavaObject(x,goal.getArena(knownObjects));
+	}
+	
+	/** Same as makeInvisible, but registers the object as registerGoalObject does, or as usual if no javaMessage is executing in the current thread */
+	public Object makeGoalInvisible(Object x){
+		GoalToExecute goal = currentCallbackGoal();
+		if (goal==null) return makeInvisible(x);
+		return knownObjects.makeInvisible(x,goal.getArena(knownObjects));
+	}
+	
+	/** The object with this ID, registered for the duration of a goal, will stay registered when the goal ends. 
+	From Prolog use javaMessage(Engine,promoteJavaObject(Object))
+	@return whether it was registered for a goal */
+	public boolean promoteJavaObject(int ID){
+		return knownObjects.promote(ID);
+	}
+	
+	public boolean promoteJavaObject(Object x){
+		return knownObjects.promote(x);
+	}
+	
+	/** Releases the objects with the given (Integer) IDs, which Prolog no longer references, so that a weak object registry
+	may forget them; called by ipReleaseObjects/1
+	@return how many were held */
+	public int releaseJavaObjects(Object[] IDs){
+		int released = 0;
+		for (int i=0; i<IDs.length; i++)
+			if (knownObjects.release(((Integer)IDs[i]).intValue())) released++;
+		return released;
+	}
+        
+        
+	/** If true, the Java execution of javaMessage predicates will happen in threads of the callback executor, by default a new thread for each;
+	if false, execution will be under the thread of the deterministicGoal currently executing in Prolog 
+	@see #setCallbackExecutor(CallbackExecutor) */
 	public void setThreadedCallbacks(boolean yes){
 		threadedCallbacks = yes;
+		if (yes && callbackExecutor.isCallerRuns()) 
+			callbackExecutor = CallbackExecutor.threadPerCallback(callbackExecutor.getName());
+	}
+	
+	/** Chooses how javaMessage callbacks are executed, e.g. CallbackExecutor.boundedPool("callbacks",8); 
+	a caller-runs executor is the same as setThreadedCallbacks(false). An executor may be shared by several engines */
+	public void setCallbackExecutor(CallbackExecutor executor){
+		if (executor==null) throw new IPException("Null CallbackExecutor");
+		callbackExecutor = executor;
+		threadedCallbacks = !executor.isCallerRuns();
+	}
+	
+	public CallbackExecutor getCallbackExecutor(){
+		return callbackExecutor;
+	}
+	
+	/** Starts measuring this engine with a new DefaultEngineMetrics, which is returned; call its registerMBean() for JMX access */
+	public DefaultEngineMetrics enableMetrics(){
+		DefaultEngineMetrics m = new DefaultEngineMetrics(this);
+		setMetrics(m);
+		return m;
+	}
+	
+	/** Where to record timings and traffic; null stops measuring altogether. Replaced metrics are unregistered from JMX */
+	public void setMetrics(EngineMetrics metrics){
+		EngineMetrics old = this.metrics;
+		this.metrics = metrics;
+		if (old!=metrics) unregisterMetrics(old);
+	}
+	
+	/** So that the platform MBeanServer does not keep metrics, and their engine, reachable */
+	void unregisterMetrics(EngineMetrics m){
+		if (!(m instanceof DefaultEngineMetrics)) return;
+		try{
+			((DefaultEngineMetrics)m).unregisterMBean();
+		} catch (IPException e){
+			progressMessage("Could not unregister metrics: "+e);
+		}
+	}
+	
+	/** null if this engine is not being measured */
+	public EngineMetrics getMetrics(){
+		return metrics;
 	}
 
 }
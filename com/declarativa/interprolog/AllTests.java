@@ -24,6 +24,7 @@ public class AllTests{
 		suite.addTest(new XSBNativeEngineTest("testNativeEngine")); // new tests must be added by hand to testNativeEngine
 		suite.addTestSuite(SWISubprocessEngineTest.class);
 		suite.addTestSuite(YAPSubprocessEngineTest.class);
+		suite.addTestSuite(com.declarativa.interprolog.util.ObjectRegistryTest.class);
 		return suite;
 	}
 }
\ No newline at end of file
@@ -0,0 +1,136 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog;
+import com.declarativa.interprolog.util.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.*;
+
+/** Latency histograms for each timing kind, plus traffic counters, for one engine; also an MXBean, so that they can be
+inspected with JConsole or any other JMX client once registerMBean() is called. Example:
+<pre>
+DefaultEngineMetrics metrics = engine.enableMetrics();
+metrics.registerMBean();
+...
+System.out.println(metrics);
+</pre>
+*/
+public class DefaultEngineMetrics implements EngineMetrics, EngineMetricsMXBean{
+	final AbstractPrologEngine engine;
+	final LatencyHistogram[] histograms = new LatencyHistogram[TIMING_NAMES.length];
+	final AtomicLong sent = new AtomicLong(), received = new AtomicLong();
+	volatile long since = System.nanoTime();
+	ObjectName registeredName = null;
+
+	public DefaultEngineMetrics(AbstractPrologEngine engine){
+		this.engine = engine;
+		for (int k=0; k<histograms.length; k++) histograms[k] = new LatencyHistogram();
+	}
+
+	public void recordTime(int kind, long nanos){
+		histograms[kind].record(nanos);
+	}
+
+	public void bytesSent(long n){
+		sent.addAndGet(n);
+	}
+
+	public void bytesReceived(long n){
+		received.addAndGet(n);
+	}
+
+	public LatencyHistogram getHistogram(int kind){
+		return histograms[kind];
+	}
+
+	public long getBytesSent(){
+		return sent.get();
+	}
+
+	public long getBytesReceived(){
+		return received.get();
+	}
+
+	/** deterministicGoals completed since the last reset */
+	public long getGoals(){
+		return histograms[GOAL_LATENCY].getCount();
+	}
+
+	/** javaMessages executed since the last reset */
+	public long getCallbacks(){
+		return histograms[CALLBACK_EXECUTION].getCount();
+	}
+
+	/** Average since the last reset */
+	public double getCallbacksPerSecond(){
+		double seconds = (System.nanoTime()-since)/1.0e9;
+		return seconds<=0 ? 0 : getCallbacks()/seconds;
+	}
+
+	public int getPendingGoals(){
+		return engine.pendingGoalsCount();
+	}
+
+	public int getExecutingMessages(){
+		return engine.executingMessagesCount();
+	}
+
+	public Map<String,Double> getTimings(){
+		Map<String,Double> timings = new LinkedHashMap<String,Double>();
+		for (int k=0; k<histograms.length; k++){
+			LatencyHistogram h = histograms[k];
+			timings.put(TIMING_NAMES[k]+".count",new Double(h.getCount()));
+			timings.put(TIMING_NAMES[k]+".mean",new Double(h.getMean()/1.0e6));
+			timings.put(TIMING_NAMES[k]+".p50",new Double(h.getValueAtPercentile(50)/1.0e6));
+			timings.put(TIMING_NAMES[k]+".p99",new Double(h.getValueAtPercentile(99)/1.0e6));
+			timings.put(TIMING_NAMES[k]+".max",new Double(h.getMax()/1.0e6));
+		}
+		return timings;
+	}
+
+	public void reset(){
+		for (int k=0; k<histograms.length; k++) histograms[k].reset();
+		sent.set(0); received.set(0);
+		since = System.nanoTime();
+	}
+
+	/** Registers this in the platform MBeanServer, as com.declarativa.interprolog:type=EngineMetrics,engine=...
+	@return the name under which it was registered */
+	public synchronized ObjectName registerMBean(){
+		if (registeredName!=null) return registeredName;
+		try{
+			ObjectName name = new ObjectName("com.declarativa.interprolog:type=EngineMetrics,engine="+
+				engine.getClass().getName()+"@"+Integer.toHexString(System.identityHashCode(engine)));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,name);
+			registeredName = name;
+			return name;
+		} catch (JMException e){
+			throw new IPException("Could not register engine metrics MBean", e);
+		}
+	}
+
+	public synchronized void unregisterMBean(){
+		if (registeredName==null) return;
+		try{
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+		} catch (JMException e){
+			throw new IPException("Could not unregister engine metrics MBean", e);
+		} finally{
+			registeredName = null;
+		}
+	}
+
+	public String toString(){
+		StringBuffer s = new StringBuffer("EngineMetrics: "+getGoals()+" goals, "+getCallbacks()+" callbacks ("+
+			Math.round(getCallbacksPerSecond())+"/sec), "+getBytesSent()+" bytes sent, "+getBytesReceived()+" bytes received");
+		for (int k=0; k<histograms.length; k++)
+			if (histograms[k].getCount()>0) s.append("\n  "+TIMING_NAMES[k]+": "+histograms[k]);
+		return s.toString();
+	}
+}
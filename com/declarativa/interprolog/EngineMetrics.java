@@ -0,0 +1,40 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog;
+import com.declarativa.interprolog.util.LatencyHistogram;
+
+/** Receives timings and traffic counts from a PrologEngine. Engines have no metrics by default, and then spend no time measuring.
+Timings are in nanoseconds and cover both deterministicGoals and javaMessages, as these share the same socket and serialization machinery.
+@see AbstractPrologEngine#setMetrics(EngineMetrics)
+@see DefaultEngineMetrics */
+public interface EngineMetrics{
+	/** Java serialization of an object sent to Prolog */
+	public static final int SERIALIZATION = 0;
+	/** Time blocked on the socket: writing a message, or reading the rest of an encoded message from Prolog once its first byte arrived; 
+	waiting for that first byte is part of PROLOG_EXECUTION */
+	public static final int SOCKET_WAIT = 1;
+	/** From sending a goal to Prolog until its result arrives */
+	public static final int PROLOG_EXECUTION = 2;
+	/** Java deserialization of an object received from Prolog */
+	public static final int DESERIALIZATION = 3;
+	/** Whole deterministicGoal, from scheduling until its result arrives */
+	public static final int GOAL_LATENCY = 4;
+	/** Java execution of a javaMessage */
+	public static final int CALLBACK_EXECUTION = 5;
+	public static final String[] TIMING_NAMES = {"serialization","socketWait","prologExecution","deserialization","goalLatency","callbackExecution"};
+
+	public void recordTime(int kind, long nanos);
+	public void bytesSent(long n);
+	public void bytesReceived(long n);
+
+	public LatencyHistogram getHistogram(int kind);
+	public long getBytesSent();
+	public long getBytesReceived();
+	/** Clears all histograms and counters */
+	public void reset();
+}
@@ -0,0 +1,24 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog;
+import java.util.Map;
+
+/** JMX view of an engine's metrics; times are in milliseconds
+@see DefaultEngineMetrics#registerMBean() */
+public interface EngineMetricsMXBean{
+	public long getGoals();
+	public long getCallbacks();
+	public double getCallbacksPerSecond();
+	public long getBytesSent();
+	public long getBytesReceived();
+	public int getPendingGoals();
+	public int getExecutingMessages();
+	/** For each timing kind, its count, mean, 50% and 99% percentiles and max, e.g. "prologExecution.p99" */
+	public Map<String,Double> getTimings();
+	public void reset();
+}
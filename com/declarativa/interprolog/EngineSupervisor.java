@@ -0,0 +1,321 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog;
+import com.declarativa.interprolog.util.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** A PrologEnginePool that replaces member engines whose Prolog process died, or that fail a health check, by standby engines
+booted in advance, on which all consults, taught objects and registered objects were already replayed.
+Only the goals executing in the failed engine fail, with an IPException; later goals go to its replacement,
+and a new standby starts booting in background. With size 1 this supervises a single engine:
+<pre>
+EngineSupervisor engine = new EngineSupervisor(SWISubprocessEngine.class,null);
+engine.consultAbsolute(new File("myprogram.pl"));
+Object[] bindings = engine.deterministicGoal(...);
+</pre>
+Death is detected by SubprocessEngine.isAlive(), checked periodically and before routing each goal;
+the health check is a "true" goal that must answer within a timeout, sent only to member engines with no goals routed to them,
+which get no goals until it ends; an engine that got goals otherwise meanwhile, e.g. directly through getEngine(int), is busy rather than unhealthy.
+Objects registered through the supervisor are replayed on new engines, so that they get the same IDs. */
+public class EngineSupervisor extends PrologEnginePool{
+	/** Booted engines with all setup steps applied, ready to replace a failed member */
+	protected Vector standbys = new Vector();
+	/** Failed engines replaced so far */
+	protected Vector retired = new Vector();
+	protected int standbyCount;
+	/** Standby engines still booting */
+	protected int booting = 0;
+	/** Why the last standby engine failed to boot, if it did */
+	protected RuntimeException standbyProblem = null;
+	protected long checkInterval = 200, healthCheckInterval = 5000, healthCheckTimeout = 5000;
+	Thread monitor = null;
+	/** Member engines being health checked, which get no goals meanwhile */
+	protected boolean[] checking;
+	volatile boolean supervising = true;
+
+	/** Launches size member engines and standbyCount standby engines of the given class,
+	using its (String prologCommand, boolean debug, boolean loadFromJar) constructor
+	@see PrologEnginePool#PrologEnginePool(Class,String,boolean,boolean,int) */
+	public EngineSupervisor(Class engineClass, String prologCommand, boolean debug, boolean loadFromJar, int size, int standbyCount){
+		super(engineClass,prologCommand,debug,loadFromJar,size);
+		startSupervising(standbyCount);
+	}
+
+	/** A single supervised engine, with one standby */
+	public EngineSupervisor(Class engineClass, String prologCommand){
+		this(engineClass,prologCommand,false,true,1,1);
+	}
+
+	public EngineSupervisor(Class engineClass){
+		this(engineClass,null);
+	}
+
+	/** For subclasses redefining makeEngine() */
+	protected EngineSupervisor(int size, int standbyCount){
+		super(size);
+		startSupervising(standbyCount);
+	}
+
+	protected void startSupervising(int standbyCount){
+		if (standbyCount<0) throw new IPException("Bad standby engine count:"+standbyCount);
+		checking = new boolean[engines.length];
+		this.standbyCount = standbyCount;
+		for (int s=0; s<standbyCount; s++) bootStandby();
+		monitor = new Thread("EngineSupervisor monitor"){
+			public void run(){
+				supervise();
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	/** Sets how often member engines are checked for a dead process (default 200 mS),
+	and how often idle ones must answer a goal, and within which time (default 5000 mS both) */
+	public synchronized void setChecks(long checkInterval, long healthCheckInterval, long healthCheckTimeout){
+		if (checkInterval<=0 || healthCheckInterval<=0 || healthCheckTimeout<=0) throw new IPException("Bad check interval or timeout");
+		this.checkInterval = checkInterval;
+		this.healthCheckInterval = healthCheckInterval;
+		this.healthCheckTimeout = healthCheckTimeout;
+	}
+
+	/** Number of failed member engines replaced so far */
+	public synchronized int getReplacements(){
+		return retired.size();
+	}
+
+	/** Number of standby engines ready to replace a member engine */
+	public synchronized int standbysReady(){
+		return standbys.size();
+	}
+
+	/** Boots a new standby engine in background, replaying on it all setup steps, including those performed meanwhile */
+	protected synchronized void bootStandby(){
+		booting++;
+		Thread booter = new Thread("EngineSupervisor standby"){
+			public void run(){
+				AbstractPrologEngine standby = null;
+				try{
+					standby = makeEngine();
+					int applied = 0;
+					while(true){
+						SetupStep step;
+						synchronized(EngineSupervisor.this){
+							if (!supervising) break;
+							if (applied==setupSteps.size()){
+								standbys.addElement(standby);
+								standby = null;
+								break;
+							}
+							step = (SetupStep)setupSteps.elementAt(applied);
+						}
+						if (!step.applyTo(standby)) throw new IPException("Setup step failed in standby engine");
+						applied++;
+					}
+				} catch (RuntimeException e){
+					synchronized(EngineSupervisor.this){ standbyProblem = e; }
+				} finally{
+					synchronized(EngineSupervisor.this){
+						booting--;
+						EngineSupervisor.this.notifyAll();
+					}
+					if (standby!=null) standby.shutdown();
+				}
+			}
+		};
+		booter.setDaemon(true);
+		booter.start();
+	}
+
+	/** Setup steps also go to standby engines */
+	protected boolean setup(SetupStep step){
+		Vector targets = new Vector();
+		synchronized(this){
+			setupSteps.addElement(step);
+			for (int i=0; i<engines.length; i++)
+				if (isAlive(engines[i])) targets.addElement(engines[i]);
+			targets.addAll(standbys);
+		}
+		AbstractPrologEngine[] engineArray = new AbstractPrologEngine[targets.size()];
+		targets.copyInto(engineArray);
+		return applyTo(step,engineArray);
+	}
+
+	/** Registers the object in all engines, including future ones, which must agree on its ID; synchronized, so that 
+	setup steps are recorded and applied in the order of the IDs */
+	public synchronized int registerJavaObject(final Object x){
+		final int ID = engines[0].registerJavaObject(x);
+		setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				if (engine.registerJavaObject(x)!=ID)
+					throw new IPException("Object registries of supervised engines diverged; borrow an engine to use its objects");
+				return true;
+			}
+		});
+		return ID;
+	}
+
+	public synchronized boolean unregisterJavaObject(final int ID){
+		return setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				return engine.unregisterJavaObject(ID);
+			}
+		});
+	}
+
+	public synchronized boolean unregisterJavaObject(final Object obj){
+		return setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				return engine.unregisterJavaObject(obj);
+			}
+		});
+	}
+
+	public synchronized boolean unregisterJavaObjects(final Class cls){
+		return setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				return engine.unregisterJavaObjects(cls);
+			}
+		});
+	}
+
+	protected boolean isAlive(AbstractPrologEngine engine){
+		if (engine instanceof SubprocessEngine) return ((SubprocessEngine)engine).isAlive();
+		return !engine.isShutingDown();
+	}
+
+	/** The engine answers a trivial goal within healthCheckTimeout, or is busy with other goals, given to it directly */
+	protected boolean isHealthy(AbstractPrologEngine engine){
+		try{
+			return engine.deterministicGoalAsync("true","[]").get(healthCheckTimeout,TimeUnit.MILLISECONDS)!=null;
+		} catch (TimeoutException e){
+			// the health check goal itself is pending
+			return engine.goalsToExecute.size()>1;
+		} catch (Exception e){
+			return false;
+		}
+	}
+
+	/** Engines being health checked get no goals */
+	protected boolean isRoutable(int i){
+		return super.isRoutable(i) && !checking[i];
+	}
+
+	/** Never routes to a dead engine: it is replaced first, waiting for a standby if none is ready */
+	protected synchronized int routeGoal(){
+		while(true){
+			int i = super.routeGoal();
+			if (isAlive(engines[i])) return i;
+			outstanding[i]--;
+			if (!replaceEngine(i)) waitForStandby();
+		}
+	}
+
+	protected synchronized void waitForStandby(){
+		if (!supervising) throw new IPException("EngineSupervisor is shuting down");
+		if (booting==0){
+			if (standbyProblem!=null){
+				RuntimeException problem = standbyProblem;
+				standbyProblem = null;
+				throw new IPException("Could not boot an engine to replace a failed one:"+problem,problem);
+			}
+			bootStandby();
+		}
+		try { wait(); }
+		catch (InterruptedException e){throw new IPException("Bad interrupt:"+e);}
+	}
+
+	/** Replaces member engine i by a standby engine, if one is ready; the failed engine is shut down in background,
+	which fails its goals, and a new standby engine starts booting
+	@return false if no standby engine was ready */
+	protected synchronized boolean replaceEngine(int i){
+		AbstractPrologEngine replacement = null;
+		while (replacement==null && !standbys.isEmpty()){
+			replacement = (AbstractPrologEngine)standbys.remove(0);
+			if (!isAlive(replacement)){
+				replacement.shutdown();
+				replacement = null;
+				bootStandby();
+			}
+		}
+		if (replacement==null){
+			if (booting==0) bootStandby();
+			return false;
+		}
+		final AbstractPrologEngine failed = engines[i];
+		engines[i] = replacement;
+		borrowed[i] = false;
+		retired.addElement(failed);
+		notifyAll();
+		bootStandby();
+		Thread reaper = new Thread("EngineSupervisor reaper"){
+			public void run(){
+				failed.shutdown();
+			}
+		};
+		reaper.setDaemon(true);
+		reaper.start();
+		return true;
+	}
+
+	/** Checks member engines every checkInterval, replacing dead or unhealthy ones */
+	protected void supervise(){
+		long lastHealthCheck = System.currentTimeMillis();
+		while(supervising){
+			try{ Thread.sleep(checkInterval); }
+			catch (InterruptedException e){ return; }
+			boolean healthCheck = System.currentTimeMillis()-lastHealthCheck >= healthCheckInterval;
+			if (healthCheck) lastHealthCheck = System.currentTimeMillis();
+			for (int i=0; i<engines.length && supervising; i++){
+				AbstractPrologEngine engine;
+				boolean check;
+				synchronized(this){
+					engine = engines[i];
+					check = healthCheck && outstanding[i]==0 && !borrowed[i];
+					if (check) checking[i] = true;
+				}
+				boolean failed = !isAlive(engine);
+				if (check) 
+					try{
+						failed = failed || !isHealthy(engine);
+					} finally{
+						synchronized(this){
+							checking[i] = false;
+							notifyAll();
+						}
+					}
+				if (failed)
+					synchronized(this){
+						if (supervising && engines[i]==engine) replaceEngine(i);
+					}
+			}
+		}
+	}
+
+	/** Engines replaced while borrowed may still be returned */
+	public synchronized void returnEngine(PrologEngine engine){
+		if (retired.contains(engine)) return;
+		super.returnEngine(engine);
+	}
+
+	/** Shuts down member and standby engines */
+	public void shutdown(){
+		Object[] spare;
+		synchronized(this){
+			supervising = false;
+			spare = standbys.toArray();
+			standbys.removeAllElements();
+			notifyAll();
+		}
+		if (monitor!=null) monitor.interrupt();
+		for (int s=0; s<spare.length; s++) ((AbstractPrologEngine)spare[s]).shutdown();
+		super.shutdown();
+	}
+}
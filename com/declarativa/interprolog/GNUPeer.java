@@ -80,4 +80,8 @@ public class GNUPeer extends PrologImplementationPeer{
 	public boolean isInterrupt(Object error){
 		return false; // TODO! error.toString().startsWith("?????");
 	}
+	/** gprolog is the Prolog process itself, cf. SubprocessEngine.prepareInterrupt */
+	public boolean launchesPrologDirectly(){
+		return true;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,73 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog;
+import com.declarativa.interprolog.util.*;
+
+/** A goal for a batch of deterministic goals, with the same arguments as AbstractPrologEngine.deterministicGoal(String,String,Object[],String);
+after the batch executes it also holds its outcome. A GoalSpec should be in a single batch at a time.
+@see AbstractPrologEngine#deterministicGoals(java.util.List) */
+public class GoalSpec{
+	String G, OVar, RVars;
+	Object[] objects;
+	Object[] bindings;
+	IPException error;
+	boolean executed;
+
+	/** @see AbstractPrologEngine#deterministicGoal(String,String,Object[],String) */
+	public GoalSpec(String G, String OVar, Object[] objects, String RVars){
+		this.G=G; this.OVar=OVar; this.objects=objects; this.RVars=RVars;
+	}
+	/** A goal returning the bindings in RVars */
+	public GoalSpec(String G, String RVars){
+		this(G,null,null,RVars);
+	}
+	/** A goal with no bindings other than success or failure */
+	public GoalSpec(String G){
+		this(G,null,null,"[]");
+	}
+
+	void setResult(ResultFromProlog result, AbstractPrologEngine engine){
+		executed = true;
+		bindings = null; error = null;
+		if (result.wasInterrupted(engine))
+			error = new IPInterruptedException(G+" was interrupted, Prolog detected");
+		else if (result.error!=null)
+			error = new IPPrologError(result.error);
+		else if (result.succeeded)
+			bindings = result.rVars;
+	}
+
+	public String getGoal(){return G;}
+
+	/** The goal was executed and succeeded */
+	public boolean succeeded(){
+		return bindings!=null;
+	}
+
+	/** The result bindings, null if the goal failed, raised an error or was not executed yet */
+	public Object[] getBindings(){
+		return bindings;
+	}
+
+	/** The IPPrologError or IPInterruptedException the goal raised, or null if none */
+	public IPException getError(){
+		return error;
+	}
+
+	/** Same result as deterministicGoal would return for this goal: the bindings, or null if it failed;
+	throws its error if it had one */
+	public Object[] getResult(){
+		if (!executed) throw new IPException("Goal was not executed yet:"+G);
+		if (error!=null) throw error;
+		return bindings;
+	}
+
+	public String toString(){
+		return "GoalSpec: "+G+(executed?(error!=null?", error=="+error:", succeeded=="+succeeded()):"");
+	}
+}
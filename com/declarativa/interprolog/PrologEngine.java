@@ -10,6 +10,7 @@ package com.declarativa.interprolog;
 
 import com.declarativa.interprolog.util.InvisibleObject;
 import java.io.File;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The heart of InterProlog; a PrologEngine represents a Prolog machine instance.
@@ -112,6 +113,21 @@ public interface PrologEngine{
      */
     public TermModel deterministicGoal(TermModel G);
     
+    /** Same as deterministicGoal(TermModel), with compact terms
+     * @see Term
+     */
+    public Term deterministicGoal(Term G);
+    
+    /** Asynchronously calls a Prolog goal, without blocking the calling thread.
+     * The future is completed by the Prolog handler thread with the result bindings (null if the goal fails),
+     * or exceptionally with an IPPrologError, IPInterruptedException or IPAbortedException.
+     * @see #deterministicGoal(String,String,Object[],String)
+     */
+    public CompletableFuture<Object[]> deterministicGoalAsync(String G, String OVar, Object[] objectsP, String RVars);
+    
+    /** Same as deterministicGoalAsync(G,null,null,RVars) */
+    public CompletableFuture<Object[]> deterministicGoalAsync(String G, String RVars);
+    
     /**
      * Register an object with this Engine, so it later can be referred from Prolog without serializing it.
      * @param x Object to be registered
@@ -0,0 +1,452 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog;
+import com.declarativa.interprolog.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/** A PrologEngine made of several engines of the same kind, typically SubprocessEngines, each one a separate Prolog process.
+Consults and taught objects are replayed on every member engine, so that they all have the same program; deterministicGoals are routed
+to the member engine with less outstanding goals. Callers needing a sequence of goals to run on the same Prolog engine,
+e.g. because they assert facts, should borrowEngine() and later returnEngine().
+<p>Objects registered through the pool are registered in all member engines; this requires the same IDs on all of them,
+so objects registered directly on members (for example javaMessage results) can break this. */
+public class PrologEnginePool implements PrologEngine{
+	protected AbstractPrologEngine[] engines;
+	/** Goals routed by the pool and not yet finished, per member engine */
+	protected int[] outstanding;
+	protected boolean[] borrowed;
+	/** Setup operations replayed on each member engine */
+	protected Vector setupSteps = new Vector();
+
+	Class engineClass;
+	String prologCommand;
+	boolean debug, loadFromJar;
+
+	/** An operation that must be performed on every member engine, so they all have the same program and objects */
+	protected static abstract class SetupStep{
+		public abstract boolean applyTo(AbstractPrologEngine engine);
+	}
+
+	/** Launches size engines of the given class in parallel, using its (String prologCommand, boolean debug, boolean loadFromJar) constructor
+	@param engineClass A subclass of AbstractPrologEngine, e.g. SWISubprocessEngine.class
+	@param prologCommand As for the engine class constructor; may be null
+	@param size Number of member engines */
+	public PrologEnginePool(Class engineClass, String prologCommand, boolean debug, boolean loadFromJar, int size){
+		this.engineClass = engineClass;
+		this.prologCommand = prologCommand;
+		this.debug = debug;
+		this.loadFromJar = loadFromJar;
+		startEngines(size);
+	}
+
+	/** A pool with one engine per processor */
+	public PrologEnginePool(Class engineClass, String prologCommand){
+		this(engineClass,prologCommand,false,true,defaultSize());
+	}
+
+	public PrologEnginePool(Class engineClass){
+		this(engineClass,null);
+	}
+
+	/** For subclasses redefining makeEngine() */
+	protected PrologEnginePool(int size){
+		startEngines(size);
+	}
+
+	/** One engine per available processor */
+	public static int defaultSize(){
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/** Creates a new member engine */
+	protected AbstractPrologEngine makeEngine(){
+		try{
+			return (AbstractPrologEngine)engineClass.getConstructor(new Class[]{String.class,boolean.class,boolean.class}).newInstance(
+				new Object[]{prologCommand,new Boolean(debug),new Boolean(loadFromJar)});
+		} catch (java.lang.reflect.InvocationTargetException e){
+			if (e.getTargetException() instanceof IPException) throw (IPException)e.getTargetException();
+			throw new IPException("Could not create pool engine:"+e.getTargetException(),e.getTargetException());
+		} catch (Exception e){
+			throw new IPException("Could not create pool engine of "+engineClass+":"+e,e);
+		}
+	}
+
+	protected void startEngines(int size){
+		if (size<1) throw new IPException("Bad PrologEnginePool size:"+size);
+		engines = new AbstractPrologEngine[size];
+		outstanding = new int[size];
+		borrowed = new boolean[size];
+		final Exception[] problems = new Exception[size];
+		Thread[] starters = new Thread[size];
+		for (int i=0; i<size; i++){
+			final int e = i;
+			starters[i] = new Thread("PrologEnginePool starter "+i){
+				public void run(){
+					try{ engines[e] = makeEngine(); }
+					catch (Exception ex){ problems[e] = ex; }
+				}
+			};
+			starters[i].start();
+		}
+		joinAll(starters);
+		for (int i=0; i<size; i++)
+			if (problems[i]!=null){
+				shutdown();
+				if (problems[i] instanceof IPException) throw (IPException)problems[i];
+				else throw new IPException("Could not start pool engine "+i+":"+problems[i],problems[i]);
+			}
+	}
+
+	static void joinAll(Thread[] threads){
+		try{
+			for (int i=0; i<threads.length; i++) threads[i].join();
+		} catch (InterruptedException e){
+			throw new IPException("Bad interrupt:"+e);
+		}
+	}
+
+	/** Performs the step on all member engines in parallel, and remembers it
+	@return true if it succeeded in all engines */
+	protected boolean setup(SetupStep step){
+		setupSteps.addElement(step);
+		return applyToAll(step);
+	}
+
+	protected boolean applyToAll(final SetupStep step){
+		return applyTo(step,engines);
+	}
+
+	/** Performs the step on the given engines in parallel
+	@return true if it succeeded in all of them */
+	protected static boolean applyTo(final SetupStep step, final AbstractPrologEngine[] engines){
+		final boolean[] results = new boolean[engines.length];
+		final RuntimeException[] problems = new RuntimeException[engines.length];
+		Thread[] workers = new Thread[engines.length];
+		for (int i=0; i<engines.length; i++){
+			final int e = i;
+			workers[i] = new Thread("PrologEnginePool setup "+i){
+				public void run(){
+					try{ results[e] = step.applyTo(engines[e]); }
+					catch (RuntimeException ex){ problems[e] = ex; }
+				}
+			};
+			workers[i].start();
+		}
+		joinAll(workers);
+		boolean ok = true;
+		for (int i=0; i<engines.length; i++){
+			if (problems[i]!=null) throw problems[i];
+			ok = ok && results[i];
+		}
+		return ok;
+	}
+
+	/** Number of member engines */
+	public int size(){
+		return engines.length;
+	}
+
+	public AbstractPrologEngine getEngine(int i){
+		return engines[i];
+	}
+
+	/** Picks the member engine with less outstanding goals, excluding unroutable (e.g. borrowed) ones, and counts one more goal for it */
+	protected synchronized int routeGoal(){
+		while(true){
+			int best = -1;
+			for (int i=0; i<engines.length; i++)
+				if (isRoutable(i) && (best==-1 || outstanding[i]<outstanding[best])) best = i;
+			if (best!=-1) {
+				outstanding[best]++;
+				return best;
+			}
+			try { wait(); }
+			catch (InterruptedException e){throw new IPException("Bad interrupt:"+e);}
+		}
+	}
+
+	/** Member engine i may receive goals; this implementation excludes borrowed engines */
+	protected boolean isRoutable(int i){
+		return !borrowed[i];
+	}
+
+	protected synchronized void goalEnded(int i){
+		outstanding[i]--;
+		notifyAll();
+	}
+
+	/** Reserves a member engine for the exclusive use of the caller, waiting until one is not borrowed;
+	the pool will not route goals to it until returnEngine() */
+	public synchronized AbstractPrologEngine borrowEngine(){
+		int best = routeGoal();
+		outstanding[best]--;
+		borrowed[best] = true;
+		return engines[best];
+	}
+
+	/** Makes an engine obtained with borrowEngine() available for routing again */
+	public synchronized void returnEngine(PrologEngine engine){
+		for (int i=0; i<engines.length; i++)
+			if (engines[i]==engine) {
+				if (!borrowed[i]) throw new IPException("Engine was not borrowed");
+				borrowed[i] = false;
+				notifyAll();
+				return;
+			}
+		throw new IPException("Engine does not belong to this pool");
+	}
+
+	public Object[] deterministicGoal(String G, String OVar, Object[] objectsP, String RVars){
+		int i = routeGoal();
+		try{
+			return engines[i].deterministicGoal(G,OVar,objectsP,RVars);
+		} finally{
+			goalEnded(i);
+		}
+	}
+
+	public boolean deterministicGoal(String G){
+		return (deterministicGoal(G, null,null,"[]")!=null);
+	}
+
+	public Object[] deterministicGoal(String G, String OVar, Object[] objectsP, String RVars, long timeoutMillis){
+		int i = routeGoal();
+		try{
+			return engines[i].deterministicGoal(G,OVar,objectsP,RVars,timeoutMillis);
+		} finally{
+			goalEnded(i);
+		}
+	}
+
+	public Object[] deterministicGoal(String G,String RVars){
+		return deterministicGoal(G,null,null,RVars);
+	}
+
+	public boolean deterministicGoal(String G, String OVar, Object[] objectsP){
+		return (deterministicGoal(G, OVar,objectsP,"[]")!=null);
+	}
+
+	public TermModel deterministicGoal(TermModel G){
+		int i = routeGoal();
+		try{
+			return engines[i].deterministicGoal(G);
+		} finally{
+			goalEnded(i);
+		}
+	}
+
+	public Term deterministicGoal(Term G){
+		int i = routeGoal();
+		try{
+			return engines[i].deterministicGoal(G);
+		} finally{
+			goalEnded(i);
+		}
+	}
+
+	/** The batch is executed in a single member engine */
+	public List<GoalSpec> deterministicGoals(List<GoalSpec> goals){
+		int i = routeGoal();
+		try{
+			return engines[i].deterministicGoals(goals);
+		} finally{
+			goalEnded(i);
+		}
+	}
+
+	public CompletableFuture<Object[]> deterministicGoalAsync(String G, String OVar, Object[] objectsP, String RVars){
+		final int i = routeGoal();
+		CompletableFuture<Object[]> future;
+		try{
+			future = engines[i].deterministicGoalAsync(G,OVar,objectsP,RVars);
+		} catch (RuntimeException e){
+			goalEnded(i);
+			throw e;
+		}
+		future.whenComplete(new BiConsumer<Object[],Throwable>(){
+			public void accept(Object[] bindings, Throwable problem){
+				goalEnded(i);
+			}
+		});
+		return future;
+	}
+
+	public CompletableFuture<Object[]> deterministicGoalAsync(String G, String RVars){
+		return deterministicGoalAsync(G,null,null,RVars);
+	}
+
+	/** Executed in all member engines
+	@return true if it succeeded in all */
+	public boolean command(final String s){
+		return applyToAll(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				return engine.command(s);
+			}
+		});
+	}
+
+	public void consultFromPackage(final String filename,final Object requester){
+		setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				engine.consultFromPackage(filename,requester);
+				return true;
+			}
+		});
+	}
+
+	public boolean consultAbsolute(final File f){
+		return setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				return engine.consultAbsolute(f);
+			}
+		});
+	}
+
+	public void consultRelative(final String filename,final Object requester){
+		setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				engine.consultRelative(filename,requester);
+				return true;
+			}
+		});
+	}
+
+	public void load_dynRelative(final String filename,final Object requester){
+		setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				engine.load_dynRelative(filename,requester);
+				return true;
+			}
+		});
+	}
+
+	public boolean teachOneObject(Object example){
+		return teachMoreObjects(new Object[]{example});
+	}
+
+	public boolean teachMoreObjects(final Object[] examples){
+		return setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				return engine.teachMoreObjects(examples);
+			}
+		});
+	}
+
+	public boolean teachMoreObjects(final ObjectExamplePair[] examples){
+		return setup(new SetupStep(){
+			public boolean applyTo(AbstractPrologEngine engine){
+				return engine.teachMoreObjects(examples);
+			}
+		});
+	}
+
+	/** Registers the object in all member engines, which must agree on its ID */
+	public synchronized int registerJavaObject(Object x){
+		int ID = engines[0].registerJavaObject(x);
+		for (int i=1; i<engines.length; i++)
+			if (engines[i].registerJavaObject(x)!=ID)
+				throw new IPException("Object registries of pool engines diverged; borrow an engine to use its objects");
+		return ID;
+	}
+
+	public Object makeInvisible(Object x){
+		return new InvisibleObject(registerJavaObject(x));
+	}
+
+	public Object getRealJavaObject(InvisibleObject o){
+		return engines[0].getRealJavaObject(o);
+	}
+
+	public Object getRealJavaObject(int ID){
+		return engines[0].getRealJavaObject(ID);
+	}
+
+	public Object getRealJavaObject(Object o){
+		return o;
+	}
+
+	public synchronized boolean unregisterJavaObject(int ID){
+		boolean found = true;
+		for (int i=0; i<engines.length; i++)
+			found = engines[i].unregisterJavaObject(ID) && found;
+		return found;
+	}
+
+	public synchronized boolean unregisterJavaObject(Object obj){
+		boolean found = true;
+		for (int i=0; i<engines.length; i++)
+			found = engines[i].unregisterJavaObject(obj) && found;
+		return found;
+	}
+
+	public synchronized boolean unregisterJavaObjects(Class cls){
+		boolean found = true;
+		for (int i=0; i<engines.length; i++)
+			found = engines[i].unregisterJavaObjects(cls) && found;
+		return found;
+	}
+
+	public String getPrologVersion(){
+		return engines[0].getPrologVersion();
+	}
+
+	public PrologImplementationPeer getImplementationPeer(){
+		return engines[0].getImplementationPeer();
+	}
+
+	public String getPrologBaseDirectory(){
+		return engines[0].getPrologBaseDirectory();
+	}
+
+	/** Interrupts all member engines */
+	public void interrupt(){
+		for (int i=0; i<engines.length; i++) engines[i].interrupt();
+	}
+
+	public void shutdown(){
+		for (int i=0; i<engines.length; i++)
+			if (engines[i]!=null) engines[i].shutdown();
+	}
+
+	public boolean isDebug(){
+		return engines[0].isDebug();
+	}
+
+	public void setDebug(boolean d){
+		for (int i=0; i<engines.length; i++) engines[i].setDebug(d);
+	}
+
+	public void setThreadedCallbacks(boolean yes){
+		for (int i=0; i<engines.length; i++) engines[i].setThreadedCallbacks(yes);
+	}
+
+	/** All member engines are available */
+	public boolean isAvailable(){
+		for (int i=0; i<engines.length; i++)
+			if (!engines[i].isAvailable()) return false;
+		return true;
+	}
+
+	public void waitUntilAvailable(){
+		for (int i=0; i<engines.length; i++) engines[i].waitUntilAvailable();
+	}
+
+	/** All member engines are idle */
+	public boolean isIdle(){
+		for (int i=0; i<engines.length; i++)
+			if (!engines[i].isIdle()) return false;
+		return true;
+	}
+
+	public void waitUntilIdle(){
+		for (int i=0; i<engines.length; i++) engines[i].waitUntilIdle();
+	}
+}
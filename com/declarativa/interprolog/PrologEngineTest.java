@@ -8,6 +8,7 @@
 package com.declarativa.interprolog;
 import junit.framework.*;
 import java.util.*;
+import java.util.concurrent.*;
 import com.declarativa.interprolog.util.*;
 import javax.swing.*;
 import java.awt.*;
@@ -161,6 +162,30 @@ public abstract class PrologEngineTest extends TestCase{
     	assertTrue(bindings!=null);
     	assertEquals("a",bindings[0]);
     	assertEquals(new Integer(2),bindings[1]);
+    }
+    public void testCompactTerms(){
+    	TermModel model = (TermModel)engine.deterministicGoal("buildTermModel(f(a,[1,2.5,b|T],g(X,X),-7),M)","[M]")[0];
+    	Term t = Term.fromTermModel(model);
+    	assertEquals(model.toString(),t.toString());
+    	assertEquals(model,t.toTermModel());
+    	assertSame("atoms are interned",Term.atom("a"),t.getArg(0));
+    	assertEquals(2.5,t.getArg(1).listElements()[1].doubleValue(),0);
+    	assertTrue(t.getArg(1).getArg(1).getArg(1).getArg(1).getArg(1).isVar());
+    	assertEquals(t.getArg(2).getArg(0),t.getArg(2).getArg(1));
+    	assertEquals(-7,t.getArg(3).intValue());
+    	Term goal = Term.compound("append",new Term[]{Term.variable(1),Term.list(new Term[]{Term.atom("z")}),
+    		Term.list(new Term[]{Term.integer(1),Term.atom("z")})});
+    	assertEquals(Term.list(new Term[]{Term.integer(1)}),engine.deterministicGoal(goal).getArg(0));
+    	// doubles and longs reach Prolog exactly with binary terms, and are refused otherwise
+    	Term numbers = Term.compound("=",new Term[]{Term.variable(1),Term.list(new Term[]{Term.real(0.1),Term.integer(3000000000L)})});
+    	if (engine.sendsWideNumbers()){
+    		Term[] solution = engine.deterministicGoal(numbers).getArg(0).listElements();
+    		assertEquals(0.1,solution[0].doubleValue(),0);
+    		assertEquals(3.0e9,solution[1].doubleValue(),0);
+    	} else try{
+    		engine.deterministicGoal(numbers);
+    		fail("should throw IPException");
+    	} catch (IPException e){}
     }
 	public void testNumbers2(){
 		Object[] objects = {new Float(16.25),new Float(0.0), new Float(15.5)};
@@ -261,6 +286,26 @@ public abstract class PrologEngineTest extends TestCase{
 		// Win NT4 Wokstation, Pentium 400 MHz: 402 mS/goal
 		// Win 2k, Pentium 400 MHz: 36 mS/goal
 	}
+	/** Round trips of growing payloads, arrays of distinct 1000 character strings, to measure throughput against payload size */
+	public void testPayloadThroughput(){
+		char[] chars = new char[1000];
+		Arrays.fill(chars,'x');
+		String filler = new String(chars);
+		for (int nstrings=1; nstrings<=1000; nstrings*=10){
+			Object[] payload = new Object[nstrings];
+			for (int i=0; i<nstrings; i++) payload[i] = i+filler.substring(String.valueOf(i).length());
+			int rounds = Math.max(1,100/nstrings);
+			engine.waitUntilAvailable();
+			long start = System.currentTimeMillis();
+			Object[] bindings = null;
+			for (int r=0; r<rounds; r++)
+				bindings = engine.deterministicGoal("true","[P]",new Object[]{payload},"[P]");
+			long duration = Math.max(1,System.currentTimeMillis()-start);
+			assertTrue(Arrays.equals(payload,(Object[])bindings[0]));
+			System.out.println("Payload of "+nstrings*1000+" chars: "+duration/(float)rounds+" mS per round trip, "+
+				(2000000L*nstrings*rounds/duration)+" chars gone and returned / second");
+		}
+	}
 	/* Java programmers (should) never need this... use instead findall or findNsolutions on the Prolog side!
 	might be useful for Prolog engines with threads...
 	public void testNonDeterministicGoal(){
@@ -285,6 +330,154 @@ public abstract class PrologEngineTest extends TestCase{
 		assertEquals(2,solutions.length);
 		assertEquals("a",solutions[0].toString());
 	}
+	public void testDeterministicGoalAsync() throws Exception{
+		CompletableFuture<Object[]> f1 = engine.deterministicGoalAsync("X=1, ipObjectSpec('java.lang.Integer',I,[X],_)","[I]");
+		CompletableFuture<Object[]> f2 = engine.deterministicGoalAsync("fail","[]");
+		CompletableFuture<Object[]> f3 = engine.deterministicGoalAsync("nowaythisisdefined","[]");
+		assertEquals(new Integer(1),f1.get()[0]);
+		assertNull("failed goal",f2.get());
+		try{
+			f3.get();
+			fail("should complete with an IPException");
+		} catch (ExecutionException e){
+			assertTrue("IPException as cause:"+e.getCause(),e.getCause() instanceof IPException);
+		}
+		engine.waitUntilIdle();
+		
+		long tortureStart= System.currentTimeMillis();
+		int ngoals=100;
+		Vector futures = new Vector();
+		for (int i=0;i<ngoals;i++)
+			futures.addElement(engine.deterministicGoalAsync("ipObjectSpec('java.lang.Integer',I,["+i+"],_)","[I]"));
+		for (int i=0;i<ngoals;i++)
+			assertEquals(new Integer(i),((Object[])((CompletableFuture)futures.elementAt(i)).get())[0]);
+		System.out.println("Async torture took "+(System.currentTimeMillis()-tortureStart)/(float)ngoals+" mS/goal, with "+ngoals+" outstanding goals");
+	}
+	public void testDeterministicGoals(){
+		java.util.List<GoalSpec> batch = new ArrayList<GoalSpec>();
+		batch.add(new GoalSpec("atom_length(abc,L), ipObjectSpec('java.lang.Integer',I,[L],_)","[I]"));
+		batch.add(new GoalSpec("fail"));
+		batch.add(new GoalSpec("nowaythisisdefined"));
+		batch.add(new GoalSpec("Objects=[S]","Objects",new Object[]{"hello"},"[S]"));
+		engine.deterministicGoals(batch);
+		assertEquals(new Integer(3),batch.get(0).getResult()[0]);
+		assertFalse("failed goal",batch.get(1).succeeded());
+		assertNull("failed goal",batch.get(1).getError());
+		assertTrue("undefined predicate error",batch.get(2).getError() instanceof IPPrologError);
+		assertEquals("hello",batch.get(3).getResult()[0]);
+		
+		int ngoals=1000;
+		long tortureStart= System.currentTimeMillis();
+		for (int i=0;i<ngoals;i++)
+			engine.deterministicGoal("ipObjectSpec('java.lang.Integer',I,["+i+"],_)","[I]");
+		long batchStart= System.currentTimeMillis();
+		batch = new ArrayList<GoalSpec>();
+		for (int i=0;i<ngoals;i++)
+			batch.add(new GoalSpec("ipObjectSpec('java.lang.Integer',I,["+i+"],_)","[I]"));
+		engine.deterministicGoals(batch);
+		for (int i=0;i<ngoals;i++)
+			assertEquals(new Integer(i),batch.get(i).getResult()[0]);
+		System.out.println("Batch torture: single goals took "+(batchStart-tortureStart)/(float)ngoals+" mS/goal, batched goals took "+
+			(System.currentTimeMillis()-batchStart)/(float)ngoals+" mS/goal");
+	}
+	public void testNondeterministicGoal(){
+		SolutionIterator solutions = engine.nondeterministicGoal("countTo(5,X), ipObjectSpec('java.lang.Integer',I,[X],_)",null,null,"[I]",2);
+		int i=1;
+		while (solutions.hasNext())
+			assertEquals(new Integer(i++),solutions.next()[0]);
+		assertEquals(6,i);
+		
+		assertFalse("no solutions",engine.nondeterministicGoal("fail","[]").hasNext());
+		try{
+			engine.nondeterministicGoal("nowaythisisdefined","[]").hasNext();
+			fail("should throw IPException");
+		} catch (IPException e){}
+		
+		// closing must cut an infinite generator
+		solutions = engine.nondeterministicGoal("repeat, ipObjectSpec('java.lang.Integer',I,[7],_)","[I]");
+		for (i=0;i<250;i++)
+			assertEquals(new Integer(7),solutions.next()[0]);
+		solutions.close();
+		engine.waitUntilIdle();
+		assertTrue(engine.deterministicGoal("true"));
+		
+		// the newer goal runs nested above the older, so consuming them alternately must fail rather than hang
+		SolutionIterator older = engine.nondeterministicGoal("countTo(100,X), ipObjectSpec('java.lang.Integer',I,[X],_)",null,null,"[I]",1);
+		assertEquals(new Integer(1),older.next()[0]);
+		SolutionIterator newer = engine.nondeterministicGoal("countTo(100,X), ipObjectSpec('java.lang.Integer',I,[X],_)",null,null,"[I]",1);
+		assertEquals(new Integer(1),newer.next()[0]);
+		try{
+			for (i=0;i<3;i++) older.next();
+			fail("should throw IPException");
+		} catch (IPException e){}
+		newer.close();
+		assertTrue(older.hasNext());
+		older.close();
+		engine.waitUntilIdle();
+		
+		int nsolutions=10000;
+		long tortureStart= System.currentTimeMillis();
+		solutions = engine.nondeterministicGoal("countTo("+nsolutions+",X), ipObjectSpec('java.lang.Integer',I,[X],_)","[I]");
+		assertEquals(new Integer(1),solutions.next()[0]);
+		long firstSolution = System.currentTimeMillis()-tortureStart;
+		assertEquals(nsolutions-1,solutions.stream().count());
+		System.out.println("Solution streaming took "+(System.currentTimeMillis()-tortureStart)/(float)nsolutions+" mS/solution, first solution after "+firstSolution+" mS");
+	}
+	public void testGoalDeadlines() throws Exception{
+		Object[] bindings = engine.deterministicGoal("X=1, ipObjectSpec('java.lang.Integer',I,[X],_)","[I]",10000);
+		assertEquals(new Integer(1),bindings[0]);
+		assertNull("failed goal",engine.deterministicGoal("fail","[]",10000));
+		long start = System.currentTimeMillis();
+		try{
+			engine.deterministicGoal("repeat, fail","[]",300);
+			fail("should throw IPTimeoutException");
+		} catch (IPTimeoutException e){}
+		System.out.println("Goal deadline of 300 mS enforced after "+(System.currentTimeMillis()-start)+" mS");
+		// a runaway goal must not affect the others
+		CompletableFuture<Object[]> runaway = engine.deterministicGoalAsync("repeat, fail",null,null,"[]",300);
+		CompletableFuture<Object[]> other = engine.deterministicGoalAsync("X=2, ipObjectSpec('java.lang.Integer',I,[X],_)","[I]");
+		try{
+			runaway.get();
+			fail("should complete with an IPTimeoutException");
+		} catch (ExecutionException e){
+			assertTrue("IPTimeoutException as cause:"+e.getCause(),e.getCause() instanceof IPTimeoutException);
+		}
+		assertEquals(new Integer(2),other.get()[0]);
+		// a goal still queued behind a runaway one must fail at its own deadline, not at the runaway's
+		runaway = engine.deterministicGoalAsync("repeat, fail",null,null,"[]",2000);
+		// more recent goals are sent first, so make sure the runaway holds Prolog
+		while (engine.goalsToExecute.startedSize()==0) Thread.sleep(10);
+		start = System.currentTimeMillis();
+		CompletableFuture<Object[]> queued = engine.deterministicGoalAsync("true",null,null,"[]",100);
+		try{
+			queued.get();
+			fail("should complete with an IPTimeoutException");
+		} catch (ExecutionException e){
+			assertTrue("IPTimeoutException as cause:"+e.getCause(),e.getCause() instanceof IPTimeoutException);
+		}
+		assertTrue("queued goal failed at its own deadline",System.currentTimeMillis()-start<1000);
+		try{
+			runaway.get();
+			fail("should complete with an IPTimeoutException");
+		} catch (ExecutionException e){
+			assertTrue("IPTimeoutException as cause:"+e.getCause(),e.getCause() instanceof IPTimeoutException);
+		}
+		engine.waitUntilIdle();
+		assertTrue(engine.deterministicGoal("true"));
+	}
+	public void testManyPendingGoals() throws Exception{
+		// goal dispatch cost should not depend on how many goals are pending
+		for (int ngoals=1; ngoals<=10000; ngoals*=100){
+			Vector futures = new Vector();
+			long tortureStart= System.currentTimeMillis();
+			for (int i=0;i<ngoals;i++)
+				futures.addElement(engine.deterministicGoalAsync("true","[]"));
+			for (int i=0;i<ngoals;i++)
+				assertNotNull(((CompletableFuture)futures.elementAt(i)).get());
+			System.out.println("Pending goals torture took "+(System.currentTimeMillis()-tortureStart)/(float)ngoals+" mS/goal, with "+ngoals+" pending goals");
+			engine.waitUntilIdle();
+		}
+	}
 	public int luckyNumber(){return 13;}
 	public void testJavaMessage(){
 		assertEquals(engine.registerJavaObject(this),thisID);
@@ -301,6 +494,115 @@ public abstract class PrologEngineTest extends TestCase{
 		// Win NT4 Workstation, Pentium 400 MHz: 441 mS/message
 		// Win 2k, Pentium 400 MHz: 57 mS/message
 	}
+	public void testCallbackExecutors(){
+		String callback = "javaMessage("+thisID+",R,luckyNumber), ipObjectSpec('java.lang.Integer',R,[13],_)";
+		assertTrue(engine.deterministicGoal("assert((tortureCE(0) :- !)), assert((tortureCE(N) :- NN is N-1, "+callback+", tortureCE(NN)))"));
+		CallbackExecutor[] executors = new CallbackExecutor[]{
+			CallbackExecutor.threadPerCallback("test callback"), CallbackExecutor.boundedPool("test callback",4),
+			CallbackExecutor.virtualThreadPerCallback("test callback"), CallbackExecutor.callerRuns("test callback")
+		};
+		CallbackExecutor original = engine.getCallbackExecutor();
+		int ncallbacks=500;
+		try{
+			for (int e=0;e<executors.length;e++){
+				engine.setCallbackExecutor(executors[e]);
+				long tortureStart= System.currentTimeMillis();
+				assertTrue("Succeeded torture with "+executors[e].getStrategy(),engine.deterministicGoal("tortureCE("+ncallbacks+")"));
+				long elapsed = Math.max(1,System.currentTimeMillis()-tortureStart);
+				assertEquals(ncallbacks,executors[e].getSubmitted());
+				System.out.println("Callback executor torture: "+(ncallbacks*1000/elapsed)+" callbacks/S with "+executors[e]);
+				executors[e].shutdown();
+			}
+		} finally{
+			engine.setCallbackExecutor(original);
+		}
+	}
+	public int stringLength(Object s){return s.toString().length();}
+	public void testCallSiteCache(){
+		// stringLength is found by the slow search over all methods, as its argument is a String
+		String callback = "javaMessage("+thisID+",R,luckyNumber), javaMessage("+thisID+",L,stringLength(string(abc))), ";
+		callback += "ipObjectSpec('java.lang.Integer',L,[3],_)";
+		assertTrue(engine.deterministicGoal("assert((tortureCS(0) :- !)), assert((tortureCS(N) :- NN is N-1, "+callback+", tortureCS(NN)))"));
+		CallSiteCache cache = engine.getCallSiteCache();
+		int ngoals=500;
+		cache.setEnabled(false);
+		long tortureStart= System.currentTimeMillis();
+		assertTrue("Succeeded uncached torture",engine.deterministicGoal("tortureCS("+ngoals+")"));
+		long uncached = System.currentTimeMillis()-tortureStart;
+		cache.setEnabled(true);
+		cache.clear();
+		tortureStart= System.currentTimeMillis();
+		assertTrue("Succeeded cached torture",engine.deterministicGoal("tortureCS("+ngoals+")"));
+		long cached = System.currentTimeMillis()-tortureStart;
+		assertEquals(2,cache.getMisses());
+		assertEquals(2*ngoals-2,cache.getHits());
+		System.out.println("Call site cache torture: "+(uncached/(float)(2*ngoals))+" mS/message uncached, "+(cached/(float)(2*ngoals))+" mS/message cached; "+cache);
+	}
+	public void testEngineMetrics() throws Exception{
+		assertNull(engine.getMetrics());
+		DefaultEngineMetrics metrics = engine.enableMetrics();
+		try{
+			int ngoals = 200;
+			for (int i=0; i<ngoals; i++)
+				assertTrue(engine.deterministicGoal("javaMessage("+thisID+",R,luckyNumber)"));
+			assertEquals(ngoals,metrics.getGoals());
+			assertEquals(ngoals,metrics.getCallbacks());
+			LatencyHistogram latency = metrics.getHistogram(EngineMetrics.GOAL_LATENCY);
+			assertTrue(latency.getValueAtPercentile(50)<=latency.getValueAtPercentile(99));
+			assertTrue(latency.getValueAtPercentile(99)<=latency.getMax());
+			assertTrue(metrics.getHistogram(EngineMetrics.PROLOG_EXECUTION).getMax()<=latency.getMax());
+			if (engine instanceof SubprocessEngine){
+				assertTrue(metrics.getBytesSent()>0 && metrics.getBytesReceived()>0);
+				assertTrue(metrics.getHistogram(EngineMetrics.DESERIALIZATION).getCount()>=2*ngoals);
+			}
+			javax.management.ObjectName name = metrics.registerMBean();
+			javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+			assertEquals(new Long(ngoals),server.getAttribute(name,"Goals"));
+			assertEquals(new Integer(0),server.getAttribute(name,"PendingGoals"));
+			System.out.println(metrics);
+			metrics.reset();
+			assertEquals(0,metrics.getGoals());
+			engine.setMetrics(null);
+			assertFalse("replaced metrics are unregistered",server.isRegistered(name));
+		} finally{
+			engine.setMetrics(null);
+		}
+	}
+	public void testLearnedObjectsCache() throws Exception{
+		java.io.File previous = AbstractPrologEngine.getLearnedObjectsCache();
+		java.io.File directory = java.io.File.createTempFile("iplearned","");
+		directory.delete();
+		AbstractPrologEngine uncached=null, cold=null, warm=null;
+		try{
+			AbstractPrologEngine.setLearnedObjectsCache(null);
+			long start = System.currentTimeMillis();
+			uncached = buildNewEngine();
+			long uncachedTime = System.currentTimeMillis()-start;
+			AbstractPrologEngine.setLearnedObjectsCache(directory);
+			start = System.currentTimeMillis();
+			cold = buildNewEngine();
+			long coldTime = System.currentTimeMillis()-start;
+			assertEquals("one learned objects file saved",1,directory.list().length);
+			assertTrue("learned objects file written before caching it",directory.listFiles()[0].length()>0);
+			start = System.currentTimeMillis();
+			warm = buildNewEngine();
+			long warmTime = System.currentTimeMillis()-start;
+			System.out.println("Engine startup took "+uncachedTime+" mS uncached, "+coldTime+" mS with a cold cache, "+warmTime+" mS with a warm cache");
+			Object[] bindings = warm.deterministicGoal("ipObjectSpec('java.lang.Integer',I,[42],_), buildTermModel(f(b,[a]),TM)","[I,TM]");
+			assertEquals(new Integer(42),bindings[0]);
+			assertEquals("f(b,[a])",bindings[1].toString());
+			assertEquals(uncached.deterministicGoal("findall(C,ipObjectSpec(C,_,_,_),L), length(L,N)","[N]")[0],
+				warm.deterministicGoal("findall(C,ipObjectSpec(C,_,_,_),L), length(L,N)","[N]")[0]);
+		} finally{
+			AbstractPrologEngine.setLearnedObjectsCache(previous);
+			if (uncached!=null) uncached.shutdown();
+			if (cold!=null) cold.shutdown();
+			if (warm!=null) warm.shutdown();
+			java.io.File[] files = directory.listFiles();
+			if (files!=null) for (int f=0; f<files.length; f++) files[f].delete();
+			directory.delete();
+		}
+	}
 	public void testIPobjects(){
 		//assertTrue(engine.deterministicGoal("import length/2 from basics"));
 		assertTrue(engine.deterministicGoal("assert(myListLength([],0))"));
@@ -388,6 +690,53 @@ public abstract class PrologEngineTest extends TestCase{
 		g = g+ "ipPrologEngine(E), javaMessage(E,Obj,getRealJavaObject(Tref)), recoverTermModelArray(Obj,[a,b])";
 		assertTrue(engine.deterministicGoal(g));    	
     }
+    public Object freshObject(){return new Object();}
+    public void testWeakObjectRegistry() throws InterruptedException{
+    	int before = engine.knownObjects.size();
+    	String callback = "javaMessage("+thisID+",R,freshObject)";
+    	engine.setWeakObjectRegistry(true);
+    	try{
+    		for (int i=0; i<2000; i++) assertTrue(engine.deterministicGoal(callback+", ipReleaseObjects([R])"));
+    		assertEquals(0,engine.knownObjects.pinnedSize());
+    		assertTrue("released objects are forgotten",waitForRegistrySize(before+100));
+    		engine.setReleaseObjectsAtGoalEnd(true);
+    		for (int i=0; i<2000; i++) assertTrue(engine.deterministicGoal(callback));
+    		assertTrue("objects are released when goals end",waitForRegistrySize(before+100));
+    		Object kept = new Object();
+    		int keptID = engine.registerJavaObject(kept);
+    		System.gc();
+    		assertSame("objects referenced by Java are kept",kept,engine.getRealJavaObject(keptID));
+    	} finally{
+    		engine.setReleaseObjectsAtGoalEnd(false);
+    		engine.setWeakObjectRegistry(false);
+    	}
+    }
+    boolean waitForRegistrySize(int size) throws InterruptedException{
+    	for (int i=0; i<50 && engine.knownObjects.size()>size; i++){
+    		System.gc();
+    		Thread.sleep(100);
+    	}
+    	return engine.knownObjects.size()<=size;
+    }
+    public int goalObject(){return engine.registerGoalObject(new Object());}
+    public void testGoalScopedObjects(){
+    	int before = engine.knownObjects.size();
+    	engine.setGoalScopedObjects(true);
+    	try{
+    		for (int i=0; i<1000; i++) assertTrue(engine.deterministicGoal("javaMessage("+thisID+",R,freshObject)"));
+    		assertEquals("goal objects are unregistered when their goals end",before,engine.knownObjects.size());
+    		Object[] bindings = engine.deterministicGoal("javaMessage("+thisID+",ID,goalObject)","[ID]");
+    		assertNull(engine.getRealJavaObject(((Integer)bindings[0]).intValue()));
+    		bindings = engine.deterministicGoal(
+    			"javaMessage("+thisID+",R,freshObject), ipPrologEngine(E), javaMessage(E,promoteJavaObject(R))","[R]");
+    		Object promoted = engine.getRealJavaObject((InvisibleObject)bindings[0]);
+    		assertNotNull("promoted objects outlive their goals",promoted);
+    		assertTrue(engine.unregisterJavaObject(promoted));
+    	} finally{
+    		engine.setGoalScopedObjects(false);
+    	}
+    	assertEquals(before,engine.knownObjects.size());
+    }
     public void testStrangeChar(){
     	//assertEquals("R",engine.deterministicGoal("name(CircleR,[82])","[string(CircleR)]")[0]);
    		assertEquals(new String(new char[]{'\u0080'}),engine.deterministicGoal("name(CircleR,[128])","[string(CircleR)]")[0]);
@@ -45,6 +45,42 @@ public abstract class PrologImplementationPeer{
 	/** True if an error, as obtained in a ResultFromProlog object, looks like an interrupt detection on the Prolog side, 
 	cf. predicate handleDeterministicGoal in interprolog.P/pl/etc. resultError is not null*/
 	public abstract boolean isInterrupt(Object resultError);  
+	/** True if an error, as obtained in a ResultFromProlog object, is the one raised by a goal exceeding the time limit set by timeLimitedGoal */
+	public boolean isTimeout(Object resultError){
+		return resultError.toString().equals("interprolog_timeout");
+	}
+	/** Returns a goal calling G under a Prolog-side time limit, which raises interprolog_timeout when exceeded; 
+	or null if this Prolog has no such facility, in which case the engine enforces deadlines by interrupting Prolog. 
+	This default implementation returns null */
+	public String timeLimitedGoal(String G, long milliseconds){
+		return null;
+	}
+	/** True if the Prolog side can encode and decode messages in the BinaryTermCodec format, cf. ipNegotiateWireFormat/1. 
+	This default implementation returns false, so Java serialization is always used */
+	public boolean supportsBinaryTerms(){
+		return false;
+	}
+	/** True if the Prolog side can connect to Java through an AF_UNIX socket, cf. ipinitsockets/2.
+	This default implementation returns false, so loopback TCP is always used */
+	public boolean supportsUnixDomainSockets(){
+		return false;
+	}
+	/** True if the Prolog side can run goals in worker threads, cf. SubprocessEngine.setConcurrentGoals(int).
+	This default implementation returns false */
+	public boolean supportsConcurrentGoals(){
+		return false;
+	}
+	/** True if the command launching Prolog runs it in the same process (rather than e.g. in a child of a shell script),
+	so that SubprocessEngine can use the process ID it gets from Java, rather than asking Prolog for it.
+	This default implementation returns false */
+	public boolean launchesPrologDirectly(){
+		return false;
+	}
+	/** True if the Prolog side may be able to exchange messages through a SharedMemoryChannel, cf. ipUseSharedMemory/1.
+	This default implementation returns false */
+	public boolean supportsSharedMemory(){
+		return false;
+	}
 	/** Returns the path for the Prolog file that must be loaded for InterProlog to function, USING '/' AS THE SEPARATION CHARACTER independently of the OS platform*/
 	public abstract String interprologFilename();
 	/** Returns the path for the Prolog file that must be loaded for InterProlog's visualization predicates to function, typically
@@ -91,4 +91,24 @@ public class SWIPeer extends PrologImplementationPeer{
 	public boolean isInterrupt(Object error){
 		return error.toString().equals("interprolog_interrupt");
 	}
+	/** Uses call_with_time_limit/2, cf. ipCallWithTimeLimit/2 in interprolog.pl */
+	public String timeLimitedGoal(String G, long milliseconds){
+		return "ipCallWithTimeLimit("+(milliseconds/1000.0)+", ( "+G+" ))";
+	}
+	/** Cf. ipEncodeMessage/2 and ipDecodeMessage/2 in interprolog.pl */
+	public boolean supportsBinaryTerms(){
+		return true;
+	}
+	/** Cf. ipConnectSocket/4 in interprolog.pl; SWI Prolog has no unix_domain_socket/1 on Windows */
+	public boolean supportsUnixDomainSockets(){
+		return !AbstractPrologEngine.isWindowsOS();
+	}
+	/** Requires SWI-Prolog with multi-threading, the default for its binaries */
+	public boolean supportsConcurrentGoals(){
+		return true;
+	}
+	/** If the ipshm foreign library is not installed, ipUseSharedMemory/1 declines */
+	public boolean supportsSharedMemory(){
+		return supportsUnixDomainSockets();
+	}
 }
\ No newline at end of file
@@ -9,6 +9,7 @@ package com.declarativa.interprolog;
 import com.declarativa.interprolog.util.*;
 import java.io.*;
 import java.net.*;
+import java.util.*;
 
 /** A PrologEngine encapsulating a <a href='http://www.swi-prolog.org/'>SWI Prolog</a> engine, accessed over TCP/IP sockets. 
 */
@@ -19,6 +20,23 @@ public class SWISubprocessEngine extends SubprocessEngine{
     public SWISubprocessEngine(String prologCommand, boolean debug, boolean loadFromJar){
     	super(prologCommand, debug, loadFromJar);
     }
+    /** @param transport SubprocessEngine.UNIX_DOMAIN_TRANSPORT needs Java 16 or later and a non Windows OS; 
+    SHARED_MEMORY_TRANSPORT also needs the ipshm foreign library, cf. swi/ipshm.c
+    @see SubprocessEngine#SubprocessEngine(String,boolean,boolean,int) */
+    public SWISubprocessEngine(String prologCommand, boolean debug, boolean loadFromJar, int transport){
+    	super(prologCommand, debug, loadFromJar, transport);
+    }
+    protected SWISubprocessEngine(String prologCommand, boolean debug, boolean loadFromJar, int transport, boolean fromSnapshot){
+    	super(prologCommand, debug, loadFromJar, transport, fromSnapshot);
+    }
+    /** Launches an engine from a state saved by snapshot(File), which starts with this engine's program and objects: 
+    no files are consulted and no examples taught */
+    public static SWISubprocessEngine spawnFromSnapshot(File state, boolean debug, int transport){
+    	return new SWISubprocessEngine(state.getAbsolutePath(), debug, true, transport, true);
+    }
+    public static SWISubprocessEngine spawnFromSnapshot(File state, boolean debug){
+    	return spawnFromSnapshot(state, debug, TCP_TRANSPORT);
+    }
     public SWISubprocessEngine(String prologCommand, boolean debug){
     	super(prologCommand, debug);
     }
@@ -36,11 +54,66 @@ public class SWISubprocessEngine extends SubprocessEngine{
 		//sendAndFlushLn("ttyflush."); 
 		return true; // we do not really know
 	}
+	/** Saves a stand alone SWI Prolog state, an executable file from which spawnFromSnapshot(File,boolean) launches engines 
+	with InterProlog, the files consulted in this engine and all objects it learned, rather than consulting and teaching them again.
+	The state is built by a separate Prolog process, which consults the files anew; facts asserted by goals rather than 
+	consulted are not included. Cf. ipSnapshotScript/3 in interprolog.pl 
+	@return state */
+	public File snapshot(File state){
+		try{
+			File script = File.createTempFile("snapshot",".pl",tempDirectory);
+			File learned = File.createTempFile("learned",".pl",tempDirectory);
+			state.delete();
+			String goal = "ipSnapshotScript("+quotedAtom(unescapedFilePath(script.getAbsolutePath()))+","+
+				quotedAtom(unescapedFilePath(learned.getAbsolutePath()))+","+quotedAtom(unescapedFilePath(state.getAbsolutePath()))+")";
+			if (!deterministicGoal(goal))
+				throw new IPException("ipSnapshotScript failed");
+			Vector arguments = new Vector();
+			StringTokenizer tokens = new StringTokenizer(prologBinDirectoryOrCommand);
+			while (tokens.hasMoreTokens()) arguments.addElement(tokens.nextToken());
+			ProcessBuilder builder = new ProcessBuilder(arguments);
+			builder.redirectErrorStream(true);
+			builder.redirectInput(script);
+			progressMessage("Building snapshot "+state+" with "+arguments);
+			Process saver = builder.start();
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			InputStream is = saver.getInputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n=is.read(buffer))!=-1) output.write(buffer,0,n);
+			saver.waitFor();
+			script.delete(); learned.delete();
+			if (!state.exists()) throw new IPException("Could not save Prolog state:\n"+output);
+			return state;
+		} catch (IOException e){
+			throw new IPException("Could not save Prolog state:"+e,e);
+		} catch (InterruptedException e){
+			throw new IPInterruptedException("Java thread interrupted while saving Prolog state");
+		}
+	}
+	
+	/** Saves a snapshot in a temporary file, deleted when the JVM exits */
+	public File snapshot(){
+		try{
+			File state = File.createTempFile("ipstate","");
+			state.deleteOnExit();
+			return snapshot(state);
+		} catch (IOException e){
+			throw new IPException("Could not create snapshot file:"+e,e);
+		}
+	}
+	
 	/** Redefined in order to use in Unix the same approach as for Windows, using an SWI thread */
 	protected void prepareInterrupt(String myHost) throws IOException{ // requires successful startup steps
-		intServerSocket = new ServerSocket(0);
-		command("setupWindowsInterrupt('"+myHost+"',"+intServerSocket.getLocalPort()+")");
-		intSocket = intServerSocket.accept();
+		if (unixSocket!=null){
+			unixInterruptSocket = new UnixDomainSocket();
+			command("setupWindowsInterrupt(unix,"+quotedAtom(unixInterruptSocket.getPath())+")");
+			unixInterruptSocket.accept();
+		} else {
+			intServerSocket = new ServerSocket(0);
+			command("setupWindowsInterrupt('"+myHost+"',"+intServerSocket.getLocalPort()+")");
+			intSocket = intServerSocket.accept();
+		}
 		progressMessage("interrupt prepared");
 	}
 	protected synchronized void doInterrupt(){
@@ -49,7 +122,7 @@ public class SWISubprocessEngine extends SubprocessEngine{
 			// Always use the "Windows" strategy, relying on a SWI Prolog thread:
 		    byte[] ctrlc = {3};
 		    progressMessage("Attempting to interrupt Prolog...");
-		    OutputStream IS = intSocket.getOutputStream();
+		    OutputStream IS = (unixInterruptSocket!=null ? unixInterruptSocket.getOutputStream() : intSocket.getOutputStream());
 		    IS.write(ctrlc); IS.flush();
 		} /*else{
 				// Probably Solaris: we'll just use a standard UNIX signal
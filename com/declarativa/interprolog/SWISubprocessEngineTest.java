@@ -8,6 +8,7 @@
 package com.declarativa.interprolog;
 import junit.framework.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import com.declarativa.interprolog.util.*;
 
 public class SWISubprocessEngineTest extends SubprocessEngineTest {
@@ -20,4 +21,122 @@ public class SWISubprocessEngineTest extends SubprocessEngineTest {
 		//String path = new SWIPeer().executablePath(System.getProperties());
 		return new SWISubprocessEngine(/*path*/);
 	}
+	/** Latency of small goals over loopback TCP (this test's engine) and over an AF_UNIX socket */
+	public void testUnixDomainSocket(){
+		SWISubprocessEngine unixEngine = new SWISubprocessEngine(null,false,true,SubprocessEngine.UNIX_DOMAIN_TRANSPORT);
+		try{
+			boolean supported = UnixDomainSocket.isSupported() && unixEngine.getImplementationPeer().supportsUnixDomainSockets();
+			assertEquals(supported,unixEngine.isUsingUnixDomainSocket());
+			assertTrue(!((SubprocessEngine)engine).isUsingUnixDomainSocket());
+			Object[] objects = {"abc",new Integer(3)};
+			assertTrue(Arrays.equals(objects,unixEngine.deterministicGoal("true","[A,B]",objects,"[A,B]")));
+			int ngoals = 1000;
+			long tcp = goalLatency(engine,ngoals), unix = goalLatency(unixEngine,ngoals);
+			System.out.println("Goal latency: "+tcp/(float)ngoals+" mS over TCP, "+unix/(float)ngoals+" mS over "+
+				(supported?"AF_UNIX":"TCP (AF_UNIX not supported)"));
+		} finally{
+			unixEngine.shutdown();
+		}
+	}
+	/** Latency of small goals through shared memory, if the ipshm foreign library is installed, otherwise through the fallback socket */
+	public void testSharedMemory(){
+		SWISubprocessEngine shmEngine = new SWISubprocessEngine(null,false,true,SubprocessEngine.SHARED_MEMORY_TRANSPORT);
+		try{
+			assertTrue(!shmEngine.isUsingSharedMemory() || shmEngine.isUsingUnixDomainSocket());
+			Object[] objects = {"abc",new Integer(3)};
+			assertTrue(Arrays.equals(objects,shmEngine.deterministicGoal("true","[A,B]",objects,"[A,B]")));
+			Object[] payload = new Object[200];
+			for (int i=0; i<payload.length; i++) payload[i] = "string "+i;
+			assertTrue(Arrays.equals(payload,(Object[])shmEngine.deterministicGoal("true","[P]",new Object[]{payload},"[P]")[0]));
+			int ngoals = 1000;
+			long tcp = goalLatency(engine,ngoals), shm = goalLatency(shmEngine,ngoals);
+			System.out.println("Goal latency: "+tcp/(float)ngoals+" mS over TCP, "+shm/(float)ngoals+" mS over "+
+				(shmEngine.isUsingSharedMemory()?"shared memory":"the fallback socket (no ipshm library?)"));
+		} finally{
+			shmEngine.shutdown();
+		}
+	}
+	public void testSnapshot() throws Exception{
+		java.io.File program = java.io.File.createTempFile("ipsnapshot",".pl");
+		java.io.File state = java.io.File.createTempFile("ipstate","");
+		SWISubprocessEngine consulting = null, spawned = null;
+		try{
+			java.io.PrintWriter writer = new java.io.PrintWriter(new java.io.FileWriter(program));
+			int nfacts = 20000;
+			for (int i=0; i<nfacts; i++) writer.println("ipSnapshotFact("+i+",f"+i+").");
+			writer.close();
+			assertTrue(engine.consultAbsolute(program));
+			assertTrue(engine.teachOneObject(new Loop()));
+			long start = System.currentTimeMillis();
+			assertSame(state,((SWISubprocessEngine)engine).snapshot(state));
+			long saving = System.currentTimeMillis()-start;
+			
+			start = System.currentTimeMillis();
+			consulting = (SWISubprocessEngine)buildNewEngine();
+			assertTrue(consulting.consultAbsolute(program));
+			assertTrue(consulting.teachOneObject(new Loop()));
+			long consulted = System.currentTimeMillis()-start;
+			start = System.currentTimeMillis();
+			spawned = SWISubprocessEngine.spawnFromSnapshot(state,false);
+			long spawning = System.currentTimeMillis()-start;
+			System.out.println("Snapshot of "+nfacts+" facts saved in "+saving+" mS; new engine ready in "+consulted+
+				" mS by consulting, "+spawning+" mS from the snapshot");
+			
+			Object[] bindings = spawned.deterministicGoal("ipSnapshotFact("+(nfacts-1)+",A)","[string(A)]");
+			assertEquals("f"+(nfacts-1),bindings[0]);
+			assertTrue(spawned.deterministicGoal("true","[L]",new Object[]{new Loop()}));
+			assertTrue(spawned.deterministicGoal("javaMessage("+spawned.registerJavaObject(this)+",R,luckyNumber), ipObjectSpec('java.lang.Integer',R,[13],_)"));
+		} finally{
+			if (consulting!=null) consulting.shutdown();
+			if (spawned!=null) spawned.shutdown();
+			program.delete();
+			state.delete();
+		}
+	}
+	private SubprocessEngine concurrentEngine; // for the callback below
+	public int nestedGoalLength(Object s){
+		Object[] bindings = concurrentEngine.deterministicGoal("atom_length("+s+",L), ipObjectSpec('java.lang.Integer',I,[L],_)","[I]");
+		return ((Integer)bindings[0]).intValue();
+	}
+	/** CPU bound goals from several Java threads, serially and then in Prolog worker threads; 
+	also goals whose javaMessages call Prolog again, more than the workers */
+	public void testConcurrentGoals() throws Exception{
+		concurrentEngine = new SWISubprocessEngine();
+		try{
+			assertTrue(concurrentEngine.deterministicGoal("assert((busyTest(N) :- numlist(1,N,L), sum_list(L,_)))"));
+			int ngoals = 8;
+			String busy = "busyTest(300000)";
+			long start = System.currentTimeMillis();
+			for (int i=0; i<ngoals; i++) assertTrue(concurrentEngine.deterministicGoal(busy));
+			long serial = System.currentTimeMillis()-start;
+			
+			assertTrue(concurrentEngine.setConcurrentGoals(4));
+			assertTrue(concurrentEngine.isUsingConcurrentGoals());
+			CompletableFuture[] futures = new CompletableFuture[ngoals];
+			start = System.currentTimeMillis();
+			for (int i=0; i<ngoals; i++) futures[i] = concurrentEngine.deterministicGoalAsync(busy,"[]");
+			for (int i=0; i<ngoals; i++) assertNotNull(futures[i].get());
+			long concurrent = System.currentTimeMillis()-start;
+			System.out.println(ngoals+" busy goals: "+serial+" mS serially, "+concurrent+" mS with 4 workers, "+
+				Runtime.getRuntime().availableProcessors()+" processors");
+			
+			int ID = concurrentEngine.registerJavaObject(this);
+			String callback = "javaMessage("+ID+",R,nestedGoalLength(string(abcd))), ipObjectSpec('java.lang.Integer',R,[4],_)";
+			for (int i=0; i<ngoals; i++) futures[i] = concurrentEngine.deterministicGoalAsync(callback,"[]");
+			for (int i=0; i<ngoals; i++) assertNotNull(futures[i].get());
+			assertEquals("a",concurrentEngine.deterministicGoal("Y=a","[string(Y)]")[0]);
+			
+			assertTrue(!concurrentEngine.setConcurrentGoals(0));
+			assertTrue(concurrentEngine.deterministicGoal("true"));
+		} finally{
+			concurrentEngine.shutdown();
+		}
+	}
+	static long goalLatency(PrologEngine engine, int ngoals){
+		engine.deterministicGoal("true"); // warm up
+		long start = System.currentTimeMillis();
+		for (int i=0; i<ngoals; i++)
+			engine.deterministicGoal("true");
+		return System.currentTimeMillis()-start;
+	}
 }
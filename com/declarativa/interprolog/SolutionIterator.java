@@ -0,0 +1,114 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog;
+import com.declarativa.interprolog.util.*;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.stream.*;
+
+/** The solutions of a nondeterministicGoal, each an array of bindings as for deterministicGoal. Prolog sends them in chunks while
+keeping the goal's choice point, and is suspended while a chunk is waiting to be consumed, so memory use is bounded by (about) two chunks.
+close() stops Prolog from backtracking for further solutions. If the goal raises an error, it is thrown by hasNext() or next().<p>
+Unless the engine runs goals concurrently, goals started while Prolog is suspended for this iterator run nested above it, 
+including those of newer iterators; so iterators open together must be drained or closed in LIFO order, e.g. not consumed 
+alternately. Asking an older iterator for solutions it has not yet received, while a newer one is open, throws an IPException.
+@see AbstractPrologEngine#nondeterministicGoal(String,String,Object[],String,int) */
+public class SolutionIterator implements Iterator<Object[]>, AutoCloseable{
+	AbstractPrologEngine engine;
+	int chunkSize;
+	LinkedList<Object[]> buffered = new LinkedList<Object[]>();
+	volatile boolean ended = false;
+	volatile boolean closed = false;
+	IPException problem = null;
+
+	SolutionIterator(AbstractPrologEngine engine, int chunkSize){
+		this.engine = engine;
+		this.chunkSize = chunkSize;
+	}
+
+	/** Called from Prolog with each chunk of solutions; waits while a previous chunk is still being consumed.
+	Do not invoke this, it is for InterProlog internal use only.
+	@return 1 if more solutions are wanted, 0 if the iterator was closed */
+	public synchronized int addSolutions(Object[] solutions, int last){
+		try{
+			while (!closed && buffered.size()>=chunkSize) wait();
+		} catch (InterruptedException e){
+			throw new IPInterruptedException("Interrupted while waiting for solutions to be consumed");
+		}
+		if (closed) return 0;
+		for (int i=0; i<solutions.length; i++)
+			buffered.addLast((Object[])solutions[i]);
+		if (last==1) ended = true;
+		notifyAll();
+		return 1;
+	}
+
+	/** The goal has terminated in Prolog, possibly with a problem */
+	synchronized void goalEnded(Throwable t){
+		ended = true;
+		if (t instanceof CompletionException && t.getCause()!=null) t = t.getCause();
+		if (t instanceof IPException) problem = (IPException)t;
+		else if (t!=null) problem = new IPException("Problem in nondeterministicGoal:"+t,t);
+		notifyAll();
+	}
+
+	public synchronized boolean hasNext(){
+		try{
+			while (buffered.isEmpty() && !ended && !closed){
+				if (blockedByNewer())
+					throw new IPException("A newer SolutionIterator is open, so this one can not get more solutions; drain or close them in LIFO order");
+				wait();
+			}
+		} catch (InterruptedException e){
+			throw new IPInterruptedException("Interrupted while waiting for solutions");
+		}
+		if (!buffered.isEmpty()) return true;
+		if (problem!=null && !closed) throw problem;
+		return false;
+	}
+
+	/** A newer iterator of the same engine is open, so its goal runs nested above this one in Prolog, which can not resume before it ends */
+	boolean blockedByNewer(){
+		if (!engine.goalsNest()) return false;
+		Object[] open = engine.openIterators.toArray();
+		boolean newerOpen = false;
+		for (int i=open.length-1; i>=0; i--){
+			if (open[i]==this) return newerOpen;
+			SolutionIterator newer = (SolutionIterator)open[i];
+			if (!newer.ended && !newer.closed) newerOpen = true;
+		}
+		return false; // this goal has terminated
+	}
+
+	public synchronized Object[] next(){
+		if (!hasNext()) throw new NoSuchElementException("No more Prolog solutions");
+		Object[] solution = buffered.removeFirst();
+		notifyAll();
+		return solution;
+	}
+
+	/** Discards any buffered solutions and stops the Prolog goal, which cuts its remaining solutions */
+	public synchronized void close(){
+		closed = true;
+		buffered.clear();
+		notifyAll();
+	}
+
+	public synchronized boolean isClosed(){
+		return closed;
+	}
+
+	/** The remaining solutions as a sequential Stream, whose close() closes this iterator */
+	public Stream<Object[]> stream(){
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED), false).onClose(new Runnable(){
+			public void run(){
+				close();
+			}
+		});
+	}
+}
@@ -10,6 +10,7 @@ import com.declarativa.interprolog.util.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.lang.reflect.*;
 
 /** A PrologEngine implemented over TCP/IP sockets. A SubprocessEngine object represents and gives access to a running Prolog process in background.
@@ -23,9 +24,33 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
     ServerSocket serverSocket;
     protected Socket socket;
     ServerSocket intServerSocket=null; Socket intSocket=null; // Used only for a particular way of interrupting Prolog
+    /** The callback channel, if an AF_UNIX socket is used rather than socket and serverSocket */
+    protected UnixDomainSocket unixSocket = null;
+    /** Carries the messages instead of unixSocket, which then carries only its wake up bytes */
+    protected SharedMemoryChannel sharedMemory = null;
+    /** Transport for messages between Java and Prolog, cf. SubprocessEngine(String,boolean,boolean,int) */
+    public static final int TCP_TRANSPORT = 0, UNIX_DOMAIN_TRANSPORT = 1, SHARED_MEMORY_TRANSPORT = 2;
+    protected UnixDomainSocket unixInterruptSocket = null; // Used only for a particular way of interrupting Prolog
     String interruptCommand=null; // Used only for UNIX
     Vector listeners = new Vector();
-    protected boolean available;
+    protected volatile boolean available;
+    /** Messages to Prolog are encoded with BinaryTermCodec when possible */
+    protected volatile boolean binaryTerms = false;
+    /** Serialized messages to Prolog go through this session stream, if agreed with Prolog */
+    protected volatile PrologSessionOutputStream sessionOutput = null;
+    /** Messages from Prolog are read from here, as session streams span several messages */
+    private PushbackInputStream socketInput = null;
+    private CountingInputStream socketCounter = null;
+    /** The last session stream started by Prolog */
+    private PrologSessionInputStream sessionInput = null;
+    /** Keeps whole messages together on the socket, as with concurrent goals several threads send them */
+    private final Object sendLock = new Object();
+    /** Goals sent to Prolog worker threads and not yet answered, by timestamp; null unless setConcurrentGoals is on */
+    protected volatile HashMap<Integer,GoalToExecute> concurrentGoals = null;
+    /** Prolog starts from a saved state, already with InterProlog and the objects it learned */
+    protected boolean fromSnapshot;
+    /** While true, commands accumulate in prologStdin, to be flushed together */
+    private boolean pipeliningCommands = false;
     
     static class ClientRecognizer extends Recognizer implements RecognizerListener{
         PrologOutputListener client;
@@ -95,7 +120,27 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
          * @see SubprocessEngine#setDebug(boolean)
          */
 	public SubprocessEngine(String prologCommand, boolean debug, boolean loadFromJar) {
+		this(prologCommand,debug,loadFromJar,TCP_TRANSPORT);
+	}
+	
+        /** Construct a SubprocessEngine, launching a Prolog process in background.
+         * @param transport TCP_TRANSPORT; UNIX_DOMAIN_TRANSPORT, for AF_UNIX sockets rather than loopback TCP; 
+         * or SHARED_MEMORY_TRANSPORT, for messages through memory mapped rings, with an AF_UNIX socket to wake up the other side.
+         * Each falls back to the previous one if the JVM or the Prolog side can not support it
+         * @see SubprocessEngine#isUsingUnixDomainSocket()
+         * @see SubprocessEngine#isUsingSharedMemory()
+         * @see PrologImplementationPeer#supportsUnixDomainSockets()
+         */
+	public SubprocessEngine(String prologCommand, boolean debug, boolean loadFromJar, int transport) {
+		this(prologCommand,debug,loadFromJar,transport,false);
+	}
+	
+        /** @param fromSnapshot If true, prologCommand starts Prolog from a saved state that already has InterProlog's file loaded 
+         * and the objects learned, so these are neither consulted nor taught
+         * @see SWISubprocessEngine#snapshot(File) */
+	protected SubprocessEngine(String prologCommand, boolean debug, boolean loadFromJar, int transport, boolean fromSnapshot) {
             super(prologCommand,debug,loadFromJar);
+            this.fromSnapshot = fromSnapshot;
             // Let's make sure PrologEngines get their finalize() message when we exit
             if (System.getProperty("java.version").compareTo("1.3")>=0) {
                 Runtime.getRuntime().addShutdownHook(new Thread(){
@@ -121,6 +166,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
             	RecognizerListener availableSetter = new RecognizerListener(){
                     public void recognized(Recognizer source,Object extra){
                         available=true;
+                        availabilityChanged();
                         progressMessage("I'm available! source:"+source+" extra:"+extra);
                     }
                 };
@@ -128,6 +174,43 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
                 breakTrigger.addRecognizerListener(availableSetter);
                 if (prologCommand==null) 
                 	prologCommand = prologBinDirectoryOrCommand;
+                
+                // Whatever needs no Prolog is prepared before launching it, so that Prolog's startup overlaps less work
+                String myHost="127.0.0.1"; // to avoid annoying Windows dialup attempt
+                File learnedObjects = (getLearnedObjectsCache()==null || fromSnapshot ? null : learnedObjectsFile(serializedStartupExamples()));
+                boolean cached = fromSnapshot || isLearnedObjectsFile(learnedObjects);
+                // Prolog loads cached facts instead of reading examples, or already has them:
+                String learnedObjectsArgument = (fromSnapshot ? ",snapshot" : (cached ? ","+learnedObjectsPath(learnedObjects) : ""));
+                ByteArrayOutputStream examples = null;
+                if (!cached){
+	                progressMessage("Serializing examples...");
+	                examples = new ByteArrayOutputStream();
+	                PrologOutputObjectStream bootobjects = buildPrologOutputObjectStream(examples);
+	                ObjectOutputStream oos = bootobjects.getObjectStream();
+	                teachIPobjects(oos);
+	                teachBasicObjects(oos);
+	                bootobjects.flush();
+                }
+                String initialization;
+                if (transport!=TCP_TRANSPORT && peer.supportsUnixDomainSockets() && UnixDomainSocket.isSupported()){
+                	progressMessage("Allocating the AF_UNIX socket...");
+                	unixSocket = new UnixDomainSocket();
+                	progressMessage("socket file:"+unixSocket.getPath());
+	                initialization = "ipinitialize(unix,"+quotedAtom(unixSocket.getPath())+","+
+	                	registerJavaObject(this)+","+
+	                	debug + learnedObjectsArgument +
+	                ")";
+                } else {
+	            	progressMessage("Allocating the ServerSocket...");
+	            	serverSocket = new ServerSocket(0); // let the system pick a port
+	            	progressMessage("server port:"+serverSocket.getLocalPort());
+	                initialization = "ipinitialize('"+myHost+"',"+
+	                	serverSocket.getLocalPort()+","+
+	                	registerJavaObject(this)+","+
+	                	debug + learnedObjectsArgument +
+	                ")";
+                }
+                
                 prolog = createProcess(prologCommand);
                 
                 // No explicit buffering, because it's already being done by our Process's streams
@@ -140,32 +223,39 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
                 Thread.yield(); // let's try to catch Prolog output ASAP
                 prologStdin = new PrintWriter(prolog.getOutputStream());
                 
-                loadInitialFile();
-                
-                String myHost="127.0.0.1"; // to avoid annoying Windows dialup attempt
-            	progressMessage("Allocating the ServerSocket...");
-            	serverSocket = new ServerSocket(0); // let the system pick a port
-            	progressMessage("server port:"+serverSocket.getLocalPort());
-				//waitUntilAvailable(); Hangs Yap
-                command("ipinitialize('"+myHost+"',"+
-                	serverSocket.getLocalPort()+","+
-                	registerJavaObject(this)+","+
-                	debug +
-                ")");
+                // the initial file and ipinitialize reach Prolog in a single write, with no waiting for prompts in between:
+                pipeliningCommands = true;
+                try{
+	                loadInitialFile();
+					//waitUntilAvailable(); Hangs Yap
+	                command(initialization);
+                } finally{
+                	pipeliningCommands = false;
+                	prologStdin.flush();
+                }
                 progressMessage("Waiting for the socket to accept...");
-                socket = serverSocket.accept();
+                if (unixSocket!=null) unixSocket.accept();
+                else socket = serverSocket.accept();
                 
-                progressMessage("Teaching examples to Prolog...");
-                PrologOutputObjectStream bootobjects = buildPrologOutputObjectStream(socket.getOutputStream());
-                ObjectOutputStream oos = bootobjects.getObjectStream();
-                teachIPobjects(oos);
-                teachBasicObjects(oos);
-                bootobjects.flush();
-                progressMessage("Sent all examples...");
+                if (cached) progressMessage("Prolog already knows the examples, "+(fromSnapshot ? "from its saved state" : "from "+learnedObjects));
+                else {
+	                progressMessage("Teaching examples to Prolog...");
+	                OutputStream os = socketOutputStream();
+	                examples.writeTo(os);
+	                os.flush();
+	                progressMessage("Sent all examples...");
+                }
 	            waitUntilAvailable();
+	            if (transport==SHARED_MEMORY_TRANSPORT && unixSocket!=null && peer.supportsSharedMemory() && SharedMemoryChannel.isSupported()){
+	            	startSharedMemory();
+	            	waitUntilAvailable();
+	            }
 	            setupCallbackServer();
                 prepareInterrupt(myHost); // OS-dependent Prolog interrupt generation, must be after the previous step
 	            waitUntilAvailable();
+	            // now that Prolog knows our objects, it can build them from binary terms:
+	            if (peer.supportsBinaryTerms()) setBinaryTerms(true);
+	            if (learnedObjects!=null && !cached) saveLearnedObjects(learnedObjects,"all");
                 progressMessage("Ended SubprocessEngine constructor");
             } catch (IOException e){
                     throw new IPException("Could not launch Prolog executable:"+e);
@@ -188,10 +278,84 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 		this(false);
 	}
 	
+	/** Constructs an engine in a new thread, so that several engines (and their Prolog processes) can start concurrently, e.g.
+	<pre>
+	CompletableFuture a = SubprocessEngine.startAsync(SWISubprocessEngine.class,null,false,true);
+	CompletableFuture b = SubprocessEngine.startAsync(SWISubprocessEngine.class,null,false,true);
+	SWISubprocessEngine engineA = (SWISubprocessEngine)a.join(), engineB = (SWISubprocessEngine)b.join();
+	</pre>
+	An engine completing after the future was cancelled is shut down.
+	@param engineClass A subclass with a (String prologCommand, boolean debug, boolean loadFromJar) constructor
+	@return a future completed with the new engine, or exceptionally with the IPException preventing it */
+	public static <E extends SubprocessEngine> CompletableFuture<E> startAsync(final Class<E> engineClass, final String prologCommand, 
+		final boolean debug, final boolean loadFromJar){
+		final CompletableFuture<E> future = new CompletableFuture<E>();
+		Thread starter = new Thread("SubprocessEngine starter"){
+			public void run(){
+				try{
+					E engine = engineClass.getConstructor(new Class[]{String.class,boolean.class,boolean.class}).newInstance(
+						new Object[]{prologCommand,new Boolean(debug),new Boolean(loadFromJar)});
+					if (!future.complete(engine)) engine.shutdown();
+				} catch (InvocationTargetException e){
+					Throwable t = e.getTargetException();
+					future.completeExceptionally(t instanceof IPException ? t : new IPException("Could not start engine:"+t,t));
+				} catch (Exception e){
+					future.completeExceptionally(new IPException("Could not start engine of "+engineClass+":"+e,e));
+				}
+			}
+		};
+		starter.setDaemon(true);
+		starter.start();
+		return future;
+	}
+	
 	protected PrologOutputObjectStream buildPrologOutputObjectStream(OutputStream os) throws IOException{
 		return new PrologOutputObjectStream(os);
 	}
 	
+	protected PrologSessionOutputStream buildPrologSessionOutputStream() throws IOException{
+		return new PrologSessionOutputStream();
+	}
+	
+	protected boolean isInterPrologPreloaded(){
+		return fromSnapshot;
+	}
+	
+	/** Prolog is reached through an AF_UNIX socket rather than TCP */
+	public boolean isUsingUnixDomainSocket(){
+		return unixSocket!=null;
+	}
+	
+	/** Messages flow through shared memory rather than the socket, cf. ipUseSharedMemory/1 in swi/interprolog.pl */
+	public boolean isUsingSharedMemory(){
+		return sharedMemory!=null;
+	}
+	
+	/** Moves messages to a SharedMemoryChannel, if Prolog manages to map it; Prolog answers Y or N through the socket,
+	which from then on carries only wake up bytes */
+	protected void startSharedMemory() throws IOException{
+		SharedMemoryChannel channel = new SharedMemoryChannel(unixSocket.getInputStream(),unixSocket.getOutputStream());
+		progressMessage("shared memory file:"+channel.getPath());
+		try{
+			command("ipUseSharedMemory("+quotedAtom(channel.getPath())+")");
+			int answer = unixSocket.getInputStream().read();
+			if (answer=='Y') sharedMemory = channel;
+			else progressMessage("Prolog could not map the shared memory, staying with the socket");
+		} finally{
+			channel.deleteFile(); // mapped by both sides by now, or unused
+		}
+	}
+	
+	protected InputStream socketInputStream() throws IOException{
+		if (sharedMemory!=null) return sharedMemory.getInputStream();
+		return (unixSocket!=null ? unixSocket.getInputStream() : socket.getInputStream());
+	}
+	
+	protected OutputStream socketOutputStream() throws IOException{
+		if (sharedMemory!=null) return sharedMemory.getOutputStream();
+		return (unixSocket!=null ? unixSocket.getOutputStream() : socket.getOutputStream());
+	}
+	
 	protected Process createProcess(String prologCommand) throws IOException{
         progressMessage("Launching subprocess "+prologCommand);
         return Runtime.getRuntime().exec(prologCommand);
@@ -202,6 +366,11 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 		super.setDebug(debug);
 	}
 	
+	/** The Prolog process is running and its socket is still being read; false after shutdown() */
+	public boolean isAlive(){
+		return !shutingDown && prolog!=null && prolog.isAlive() && prologHandler!=null && prologHandler.isAlive();
+	}
+	
 	/** Prolog is thought to be idle */
 	public boolean isAvailable(){
 		return available;
@@ -236,28 +405,301 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 		prologHandler.start();
 	}
 	
+	/** Reads the next message from Prolog, serialized (in a stream of its own or in a session stream) or encoded by BinaryTermCodec, 
+	as the first byte tells */
 	protected Object receiveObject() throws IOException{
      	progressMessage("entering receiveObject()");
    		Object x=null;
+		EngineMetrics m = metrics;
+		if (socketInput==null) 
+			socketInput = new PushbackInputStream(socketCounter = new CountingInputStream(socketInputStream()));
+		PushbackInputStream in = socketInput;
+		long counted = socketCounter.count;
+		// waiting for the first byte is Prolog's think time, part of PROLOG_EXECUTION, so socket time is measured from it
+		int first = in.read();
+		if (first<0) throw new EOFException("Prolog closed the socket");
+		long arrived = (m==null ? 0 : System.nanoTime());
     	try{
-			ObjectInputStream ios = new ObjectInputStream(socket.getInputStream());
-			x = ios.readObject();
+			if (first==BinaryTermCodec.MAGIC){
+				DataInputStream data = new DataInputStream(in);
+				byte version = data.readByte();
+				byte[] message = new byte[data.readInt()+2];
+				message[0] = BinaryTermCodec.MAGIC; message[1] = version;
+				data.readFully(message,2,message.length-2);
+				if (m!=null){
+					long read = System.nanoTime();
+					m.recordTime(EngineMetrics.SOCKET_WAIT,read-arrived);
+					arrived = read;
+				}
+				x = BinaryTermCodec.decode(message,0,message.length,compactResults);
+			} else {
+				// deserialization reads the socket as it goes, so it includes the rest of the message's socket time
+				in.unread(first);
+				if (first==ObjectStreamConstants.TC_RESET && sessionInput!=null) x = sessionInput.readObject();
+				else {
+					PrologSessionInputStream ios = new PrologSessionInputStream(in);
+					if (ios.isSessionStream()) sessionInput = ios;
+					x = ios.readObject();
+				}
+			}
 		} catch (ClassNotFoundException e){
 			x = e;
+		} finally{
+			if (m!=null){
+				m.recordTime(EngineMetrics.DESERIALIZATION,System.nanoTime()-arrived);
+				m.bytesReceived(socketCounter.count-counted);
+			}
 		}
      	progressMessage("exiting receiveObject():"+x);
 		return x;
 	}
 	
+	/** Sends a message to Prolog preceded by its size, encoded by BinaryTermCodec if agreed with Prolog and possible, otherwise serialized,
+	in the session stream if there is one */
     protected void sendObject(Object y) throws IOException{
     	progressMessage("entering sendObject("+y+")");
-		PrologOutputObjectStream poos = 
-		    buildPrologOutputObjectStream(socket.getOutputStream());
-		poos.writeObject(y);
-		poos.flush(); // this actually writes to the socket stream
+		EngineMetrics m = metrics;
+		long start = (m==null ? 0 : System.nanoTime());
+		byte[] binary = (binaryTerms ? BinaryTermCodec.encode(y) : null);
+		if (binary!=null){
+			byte[] frame = new byte[binary.length+4];
+			frame[0] = (byte)(binary.length>>>24); frame[1] = (byte)(binary.length>>>16); 
+			frame[2] = (byte)(binary.length>>>8); frame[3] = (byte)binary.length;
+			System.arraycopy(binary,0,frame,4,binary.length);
+			long encoded = (m==null ? 0 : System.nanoTime());
+			OutputStream os = socketOutputStream();
+			synchronized(sendLock){
+				os.write(frame); os.flush();
+			}
+			if (m!=null){
+				m.recordTime(EngineMetrics.SERIALIZATION,encoded-start);
+				m.recordTime(EngineMetrics.SOCKET_WAIT,System.nanoTime()-encoded);
+				m.bytesSent(frame.length);
+			}
+		} else if (sessionOutput!=null){
+			PrologSessionOutputStream session = sessionOutput;
+			synchronized(session){
+				session.writeObject(y);
+				long serialized = (m==null ? 0 : System.nanoTime());
+				int size = session.size();
+				// other senders write frames under sendLock alone, e.g. binary terms, so the session must take it too
+				synchronized(sendLock){ session.flush(socketOutputStream()); }
+				if (m!=null){
+					m.recordTime(EngineMetrics.SERIALIZATION,serialized-start);
+					m.recordTime(EngineMetrics.SOCKET_WAIT,System.nanoTime()-serialized);
+					m.bytesSent(size+4);
+				}
+			}
+		} else {
+			PrologOutputObjectStream poos = 
+			    buildPrologOutputObjectStream(socketOutputStream());
+			poos.writeObject(y);
+			if (m==null) 
+				synchronized(sendLock){ poos.flush(); } // this actually writes to the socket stream
+			else {
+				long serialized = System.nanoTime();
+				m.recordTime(EngineMetrics.SERIALIZATION,serialized-start);
+				synchronized(sendLock){ poos.flush(); }
+				m.recordTime(EngineMetrics.SOCKET_WAIT,System.nanoTime()-serialized);
+				m.bytesSent(poos.size()+4); // plus the size prefix
+			}
+		}
     	progressMessage("exiting sendObject("+y+")");
 	}
 	
+	/** Chooses the wire format for messages to and from Prolog: the compact BinaryTermCodec format, or Java serialization. 
+	Binary terms are negotiated at startup if the Prolog implementation supports them (cf. PrologImplementationPeer.supportsBinaryTerms()); 
+	messages they can not encode are serialized anyway. Should not be called while goals are executing.
+	@return true if binary terms are now in use */
+	public boolean setBinaryTerms(boolean yes){
+		if (yes==binaryTerms) return yes;
+		if (yes && !peer.supportsBinaryTerms()) return false;
+		boolean agreed;
+		try{
+			agreed = deterministicGoal("ipNegotiateWireFormat("+(yes?"tlv1":"serialization")+")");
+		} catch (IPException e){
+			// probably an older interprolog Prolog file
+			agreed = false;
+		}
+		if (agreed) binaryTerms = yes;
+		return binaryTerms;
+	}
+	
+	public boolean isUsingBinaryTerms(){
+		return binaryTerms;
+	}
+	
+	/** Starts or stops session streams for the messages serialized to and from Prolog: rather than a serialization stream per message, 
+	with all its class descriptors, there is one stream per direction, and each class descriptor travels in full only once, 
+	cutting small messages from hundreds of bytes to tens. Messages encoded as binary terms are not affected.
+	Should not be called while goals are executing.
+	@see com.declarativa.interprolog.util.PrologSessionOutputStream
+	@return true if session streams are now in use */
+	public boolean setSessionStreams(boolean yes){
+		if (yes==isUsingSessionStreams()) return yes;
+		if (yes && concurrentGoals!=null) throw new IPException("Session streams can not be used with concurrent goals");
+		boolean agreed;
+		try{
+			agreed = deterministicGoal("ipNegotiateSessionStreams("+yes+")");
+		} catch (IPException e){
+			// probably an older interprolog Prolog file
+			agreed = false;
+		}
+		if (agreed){
+			if (!yes) sessionOutput = null;
+			else try{
+				sessionOutput = buildPrologSessionOutputStream();
+			} catch (IOException e){
+				throw new IPException("Could not create session stream:"+e);
+			}
+		}
+		return isUsingSessionStreams();
+	}
+	
+	public boolean isUsingSessionStreams(){
+		return sessionOutput!=null;
+	}
+	
+	/** Multiplexes goals over the socket: each deterministicGoal (or deterministicGoalAsync) is sent to Prolog at once, 
+	and executed by one of workers Prolog threads, which share the database; so goals from several Java threads run in parallel 
+	in this single Prolog process, their results arriving as they end, matched by timestamp. 
+	javaMessages from those goals always execute in threads of their own, and any goals they call are not nested in the calling goal, 
+	but independent goals for other (possibly temporary) workers. 
+	Must be called with no goals running; workers==0 waits for pending concurrent goals and returns to normal operation.
+	Session streams must be off, and interrupt() is not available meanwhile; use goal timeouts instead.
+	@return true if goals now run concurrently (false if the Prolog implementation does not support them)
+	@see PrologImplementationPeer#supportsConcurrentGoals() */
+	public boolean setConcurrentGoals(int workers){
+		if (workers<0) throw new IPException("Bad number of workers:"+workers);
+		if (concurrentGoals!=null) stopConcurrentGoals();
+		if (workers>0 && peer.supportsConcurrentGoals()) {
+			if (sessionOutput!=null) throw new IPException("Concurrent goals can not be used with session streams");
+			if (!isIdle()) throw new IPException("setConcurrentGoals must be called with no goals running");
+			if (!deterministicGoal("ipStartConcurrentGoals("+workers+")")) throw new IPException("Prolog could not start concurrent goals");
+			synchronized(this){
+				concurrentGoals = new HashMap<Integer,GoalToExecute>();
+				topGoalHasStarted = true; // Prolog will not be at its top level
+			}
+			realCommand("ipServeConcurrentGoals"); // until ipStopConcurrentGoals
+		}
+		return concurrentGoals!=null;
+	}
+	
+	public boolean isUsingConcurrentGoals(){
+		return concurrentGoals!=null;
+	}
+	
+	/** Binary terms send Long and Double TermModel nodes as decimal text */
+	protected boolean sendsWideNumbers(){
+		return binaryTerms;
+	}
+	
+	/** Concurrent goals run in separate Prolog threads */
+	protected boolean goalsNest(){
+		return !isUsingConcurrentGoals();
+	}
+	
+	protected void stopConcurrentGoals(){
+		synchronized(this){
+			while(!concurrentGoals.isEmpty()){
+				try { wait(); }
+				catch (InterruptedException e){throw new IPException("Unexpected:"+e);}
+			}
+		}
+		concurrentGoal("ipStopConcurrentGoals",null,null,"[]");
+		synchronized(this){
+			concurrentGoals = null;
+			topGoalHasStarted = false;
+		}
+		waitUntilAvailable();
+	}
+	
+	/** Sends the goal to a Prolog worker thread, and waits for its result */
+	protected Object[] concurrentGoal(String G, String OVar, Object[] objectsP, String RVars){
+		GoalFromJava GO = makeDGoalObject(G, OVar, objectsP, RVars, incGoalTimestamp());
+		GoalToExecute goalToDo = new GoalToExecute(GO,Thread.currentThread());
+		startConcurrentGoal(goalToDo);
+		return goalBindings(goalToDo,goalToDo.waitForResult(),G);
+	}
+	
+	protected void startConcurrentGoal(GoalToExecute goalToDo){
+		Integer timestamp = new Integer(goalToDo.getTimestamp());
+		synchronized(this){
+			if (concurrentGoals==null) throw new IPException("Concurrent goals were stopped");
+			concurrentGoals.put(timestamp,goalToDo);
+		}
+		goalToDo.prologWasCalled();
+		try{
+			sendObject(goalToDo.getGoal());
+		} catch (IOException e){
+			synchronized(this){
+				concurrentGoals.remove(timestamp);
+			}
+			throw new IPException("Could not send goal to Prolog", e);
+		}
+	}
+	
+	/** Timestamp of the result for a message Prolog could not decode, nor tell which goal it belonged to */
+	protected static final int UNKNOWN_GOAL = -1;
+	
+	/** Results end their goals, in any order; javaMessages run in their own threads, which send back their results */
+	protected Object handleConcurrentCallback(Object x){
+		if (x instanceof ResultFromProlog){
+			ResultFromProlog rfp = (ResultFromProlog)x;
+			GoalToExecute gte;
+			synchronized(this){
+				gte = concurrentGoals.remove(new Integer(rfp.timestamp));
+				if (concurrentGoals.isEmpty()) notifyAll();
+			}
+			if (gte==null && rfp.timestamp==UNKNOWN_GOAL){
+				// with no way to tell which goal it belonged to:
+				endAllTasks(new IPException("Prolog could not decode a message: "+rfp.error));
+				return null;
+			}
+			if (gte==null) throw new IPException("Could not find goal "+rfp.timestamp);
+			goalResultArrived(gte);
+			gte.setResult(rfp);
+		} else if (x instanceof MessageFromProlog){
+			final MessageFromProlog mfp = (MessageFromProlog)x;
+			Runnable callback = new Runnable(){
+				public void run(){
+					EngineMetrics m = metrics;
+					long start = (m==null ? 0 : System.nanoTime());
+					ResultFromJava r = doCallback(mfp);
+					if (m!=null) m.recordTime(EngineMetrics.CALLBACK_EXECUTION,System.nanoTime()-start);
+					try{
+						sendObject(r);
+					} catch (IOException e){
+						endAllTasks(new IPException("Could not send javaMessage result", e));
+					}
+				}
+			};
+			if (threadedCallbacks && !callbackExecutor.isCallerRuns()) callbackExecutor.execute(callback);
+			else new Thread(callbackExecutor.instrument(callback)).start();
+		} else if (x instanceof ClassNotFoundException) 
+			// with no way to tell which goal it belonged to:
+			endAllTasks(new IPException("Prolog sent an object of an unknown class", (ClassNotFoundException)x));
+		else throw new IPException("bad object in handleCallback:"+x);
+		return null;
+	}
+	
+	/** Not available with concurrent goals, as Prolog's interrupt would hit the thread reading the socket rather than goals */
+	public void interrupt(){
+		if (concurrentGoals!=null) throw new IPException("interrupt() is not available with concurrent goals, use goal timeouts instead");
+		super.interrupt();
+	}
+	
+	public synchronized void endAllTasks(Exception e){
+		if (concurrentGoals!=null){
+			GoalToExecute[] goals = concurrentGoals.values().toArray(new GoalToExecute[0]);
+			concurrentGoals.clear();
+			notifyAll();
+			for (int i=0; i<goals.length; i++)
+				goals[i].fail(new ResultFromProlog(goals[i].getTimestamp(), false, 0, e));
+		}
+		super.endAllTasks(e);
+	}
+	
 	/** Shuts down the background Prolog process as well as the dependent Java threads.
 	*/
 	public synchronized void shutdown(){
@@ -266,8 +708,13 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 		stdoutHandler.setIgnoreStreamEnd(true);
 		stderrHandler.setIgnoreStreamEnd(true);
         try{
-            socket.close();
-            serverSocket.close();
+            if (sharedMemory!=null) sharedMemory.close();
+            if (unixSocket!=null) unixSocket.close();
+            else {
+            	socket.close();
+            	serverSocket.close();
+            }
+            if (unixInterruptSocket!=null) unixInterruptSocket.close();
         }catch(IOException e) {throw new IPException("Problems closing sockets:"+e);}
         
         if(intServerSocket!=null){
@@ -312,7 +759,8 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
         a top goal, or input to an ongoing computation */
 	public synchronized void sendAndFlush(String s){
 		available=false;
-		prologStdin.print(s); prologStdin.flush();
+		prologStdin.print(s); 
+		if (!pipeliningCommands) prologStdin.flush();
 	}
 	
 	public void sendAndFlushLn(String s){
@@ -324,6 +772,9 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 			intServerSocket = new ServerSocket(0);
 			command("setupWindowsInterrupt('"+myHost+"',"+intServerSocket.getLocalPort()+")");
 			intSocket = intServerSocket.accept();
+		} else if (peer.launchesPrologDirectly() && processID()!=null){
+			// no need to ask Prolog
+			interruptCommand = "/bin/kill -s INT "+processID();
 		} else {
 			//available=true; // sort of a hack... but when will the state of 'available' become valid ?
 			waitUntilAvailable();
@@ -335,6 +786,15 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 		}
 	}
 
+	/** The operating system's ID for the launched process, or null if this JVM (before Java 9) can not tell it */
+	protected Long processID(){
+		try{
+			return (Long)Process.class.getMethod("pid",new Class[0]).invoke(prolog,new Object[0]);
+		} catch (Exception e){
+			return null;
+		}
+	}
+	
 	protected abstract void doInterrupt();
 	
 	/** This implementation may get stuck if the command includes variables, because the Prolog
@@ -346,6 +806,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 	}
 	
 	public Object[] deterministicGoal(String G, String OVar, Object[] objectsP, String RVars){
+		if (concurrentGoals!=null) return concurrentGoal(G, OVar, objectsP, RVars);
 		boolean first=false;
 		synchronized(this){
 		if (!topGoalHasStarted){
@@ -365,7 +826,7 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
 
         Object[] resultToReturn=null;
  		int mytimestamp = incGoalTimestamp();
-        
+        boolean sent = false;
         try{
        	GoalFromJava GO = makeDGoalObject(G, OVar, objectsP, RVars, mytimestamp);
        	progressMessage("Prepared GoalFromJava:"+GO);
@@ -373,14 +834,15 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
             progressMessage("Schedulling (first) goal "+G+", timestamp "+mytimestamp+" in thread "+Thread.currentThread().getName());
             GoalToExecute goalToDo = new GoalToExecute(GO);
             goalToDo.setFirstGoalStatus();
+            goalToDo.prologWasCalled(); // before scheduling, so the Prolog handler never picks it
             scheduleGoal(goalToDo);
- 			goalToDo.prologWasCalled();
                         //if(this.isWindowsOS()){
- 			pushDGthread(goalToDo.getCallerThread());
+ 			pushDGoal(goalToDo);
 			    //}
             //setupErrorHandling();
             sendObject(GO);
  			realCommand("deterministicGoal"); // assynchronous
+ 			sent = true;
            	ResultFromProlog result = goalToDo.waitForResult();
             // goalToDo is forgotten by handleCallback
             progressMessage("got dG result for timestamp "+mytimestamp);         
@@ -400,21 +862,109 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
         } catch (Exception e) {
             throw new IPException("Problem in deterministicGoal:"+e);
         } finally{
-			topGoalHasStarted = false; // is this OK? this assumes no initiative from the Prolog side, which is probably correct
+			// once sent, the end of the top goal is handled by endTopGoal, in the Prolog handler thread
+			if (!sent) topGoalHasStarted = false;
 			//removeErrorHandling();
 			progressMessage("Leaving firstGoal for "+G+", timestamp "+mytimestamp+" isIdle()=="+isIdle());
         }
         return resultToReturn;
     }
 
+	protected GoalToExecute startAsynchronousGoal(String G, String OVar, Object[] objectsP, String RVars, CompletableFuture<Object[]> future){
+		if (concurrentGoals!=null){
+			GoalToExecute goalToDo = makeAsynchronousGoal(makeDGoalObject(G, OVar, objectsP, RVars, incGoalTimestamp()),G,future);
+			startConcurrentGoal(goalToDo);
+			return goalToDo;
+		}
+		boolean first=false;
+		synchronized(this){
+			if (!topGoalHasStarted){
+				topGoalHasStarted = true;
+				first=true;
+			}
+		}
+		if (first){
+			if (!isIdle()) throw new IPException("Inconsistency in deterministicGoalAsync:");
+			return firstGoalAsync(G, OVar, objectsP, RVars, future);
+		} else return super.startAsynchronousGoal(G, OVar, objectsP, RVars, future);
+	}
+	
+	/** Asynchronous variant of firstGoal */
+	protected GoalToExecute firstGoalAsync(String G, String OVar, Object[] objectsP, String RVars, CompletableFuture<Object[]> future){
+		int mytimestamp = incGoalTimestamp();
+		GoalToExecute goalToDo;
+		try{
+			GoalFromJava GO = makeDGoalObject(G, OVar, objectsP, RVars, mytimestamp);
+			progressMessage("Schedulling (first) asynchronous goal "+G+", timestamp "+mytimestamp);
+			goalToDo = makeAsynchronousGoal(GO,G,future);
+			goalToDo.setFirstGoalStatus();
+			goalToDo.prologWasCalled();
+			scheduleGoal(goalToDo);
+			pushDGoal(goalToDo);
+			sendObject(GO);
+			realCommand("deterministicGoal"); // assynchronous
+		} catch (IOException e) {
+			topGoalHasStarted = false;
+			throw new IPException("Problem in deterministicGoalAsync:"+e);
+		} catch (IPException e) {
+			topGoalHasStarted = false;
+			throw e;
+		}
+		return goalToDo;
+	}
+
+	/** Results of top goals are handled by endTopGoal, as Prolog is then back at its top level rather than waiting for a socket reply */
+	public Object handleCallback(Object x){
+		if (concurrentGoals!=null) return handleConcurrentCallback(x);
+		if (x instanceof ResultFromProlog){
+			GoalToExecute gte = findGoal(((ResultFromProlog)x).timestamp);
+			if (gte!=null && gte.isFirstGoal()) {
+				endTopGoal(gte,(ResultFromProlog)x);
+				return null;
+			}
+		}
+		return super.handleCallback(x);
+	}
+	
+	/** Goals scheduled by other threads while the top goal ran, with no javaMessage to carry them to Prolog as nested goals, 
+	can not be sent as replies to the finished top goal; the more recent one is started as the new top goal instead */
+	protected void endTopGoal(GoalToExecute gte,ResultFromProlog rfp){
+		GoalToExecute next;
+		synchronized(this){
+			popDGoal();
+			forgetGoal(rfp.timestamp);
+			next = moreRecentToExecute();
+			if (next==null) topGoalHasStarted = false; // this assumes no initiative from the Prolog side, which is probably correct
+			else {
+				next.setFirstGoalStatus();
+				next.prologWasCalled();
+				pushDGoal(next);
+			}
+		}
+		progressMessage("handling top goal "+rfp+"; next top goal is "+next);
+		goalResultArrived(gte);
+		gte.setResult(rfp);
+		if (next!=null){
+			try{
+				sendObject(next.getGoal());
+			} catch (IOException e){
+				IPException toThrow = new IPException("Could not start the next top goal", e);
+				endAllTasks(toThrow);
+				throw toThrow;
+			}
+			realCommand("deterministicGoal"); // assynchronous
+		}
+	}
+
 	protected Object doSomething(){
 		if (onlyFirstGoalSchedulled()) return null;
 		else return super.doSomething();
 	}
 	
 	protected synchronized boolean onlyFirstGoalSchedulled(){
-		return isIdle() || (messagesExecuting.size()==0 && goalsToExecute.size()==1 && 
-			((GoalToExecute)goalsToExecute.elementAt(0)).isFirstGoal());
+		if (isIdle()) return true;
+		GoalToExecute top = goalsToExecute.innermostStarted();
+		return messagesExecuting.size()==0 && goalsToExecute.size()==1 && top!=null && top.isFirstGoal();
 	}
 	
 	// deterministicGoal helpers
@@ -443,4 +993,27 @@ public abstract class SubprocessEngine extends AbstractPrologEngine{
     private RecognizerListener errorHandler=null;
     Recognizer errorTrigger = new Recognizer("++Error",true); // was "++Error: " for XSB 2.4
     private String abortMessage;
+    
+    /** Counts the bytes received, for EngineMetrics */
+    static class CountingInputStream extends FilterInputStream{
+    	long count = 0;
+    	CountingInputStream(InputStream in){
+    		super(in);
+    	}
+    	public int read() throws IOException{
+    		int b = super.read();
+    		if (b>=0) count++;
+    		return b;
+    	}
+    	public int read(byte[] b, int off, int len) throws IOException{
+    		int n = super.read(b,off,len);
+    		if (n>0) count += n;
+    		return n;
+    	}
+    	public long skip(long n) throws IOException{
+    		long skipped = super.skip(n);
+    		count += skipped;
+    		return skipped;
+    	}
+    }
 }
@@ -8,6 +8,7 @@
 package com.declarativa.interprolog;
 import junit.framework.*;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import com.declarativa.interprolog.util.*;
 
 public abstract class SubprocessEngineTest extends PrologEngineTest {
@@ -51,6 +52,171 @@ public abstract class SubprocessEngineTest extends PrologEngineTest {
 		for (int i=0;i<engines.length;i++) 
 			engines[i].shutdown();
 	}
+	public void testStartAsync(){
+		int nengines = 4;
+		SubprocessEngine[] engines = new SubprocessEngine[nengines];
+		long start = System.currentTimeMillis();
+		for (int i=0;i<nengines;i++) 
+			engines[i] = (SubprocessEngine)buildNewEngine();
+		long sequential = System.currentTimeMillis()-start;
+		for (int i=0;i<nengines;i++) 
+			engines[i].shutdown();
+		start = System.currentTimeMillis();
+		CompletableFuture[] futures = new CompletableFuture[nengines];
+		for (int i=0;i<nengines;i++) 
+			futures[i] = SubprocessEngine.startAsync(((SubprocessEngine)engine).getClass(),null,false,true);
+		try{
+			CompletableFuture.allOf(futures).join();
+			long concurrent = System.currentTimeMillis()-start;
+			System.out.println("Starting "+nengines+" engines took "+sequential/(float)nengines+" mS/engine in sequence, "+
+				concurrent/(float)nengines+" mS/engine concurrently");
+			for (int i=0;i<nengines;i++) 
+				assertTrue(((SubprocessEngine)futures[i].join()).deterministicGoal("true"));
+		} finally{
+			for (int i=0;i<nengines;i++) 
+				if (futures[i].isDone() && !futures[i].isCompletedExceptionally()) 
+					((SubprocessEngine)futures[i].join()).shutdown();
+		}
+	}
+	public void testEnginePool(){
+		PrologEnginePool pool = new PrologEnginePool(3){
+			protected AbstractPrologEngine makeEngine(){
+				return buildNewEngine();
+			}
+		};
+		try{
+			assertEquals(3,pool.size());
+			assertTrue(pool.command("assert((ipPoolSpin(0):-!)), assert((ipPoolSpin(N):-N1 is N-1, ipPoolSpin(N1)))"));
+			assertTrue(engine.command("assert((ipPoolSpin(0):-!)), assert((ipPoolSpin(N):-N1 is N-1, ipPoolSpin(N1)))"));
+			Object[] bindings = pool.deterministicGoal("X is 6*7, ipObjectSpec('java.lang.Integer',I,[X],_)","[I]");
+			assertEquals(new Integer(42),bindings[0]);
+			
+			AbstractPrologEngine borrowed = pool.borrowEngine();
+			assertTrue(borrowed.command("assert(ipPoolFact(1))"));
+			assertTrue(borrowed.deterministicGoal("ipPoolFact(1)"));
+			pool.returnEngine(borrowed);
+			
+			int ngoals = 30;
+			long t0 = System.currentTimeMillis();
+			CompletableFuture[] single = new CompletableFuture[ngoals];
+			for (int g=0; g<ngoals; g++) 
+				single[g] = engine.deterministicGoalAsync("ipPoolSpin(100000)","[]");
+			CompletableFuture.allOf(single).join();
+			long t1 = System.currentTimeMillis();
+			CompletableFuture[] pooled = new CompletableFuture[ngoals];
+			for (int g=0; g<ngoals; g++) 
+				pooled[g] = pool.deterministicGoalAsync("ipPoolSpin(100000)","[]");
+			CompletableFuture.allOf(pooled).join();
+			long t2 = System.currentTimeMillis();
+			for (int g=0; g<ngoals; g++) assertNotNull(pooled[g].join());
+			System.out.println("Engine pool torture: 1 engine took "+((t1-t0)/ngoals)+" mS/goal, "+pool.size()+" engines took "+((t2-t1)/ngoals)+" mS/goal");
+		} finally{
+			pool.shutdown();
+		}
+	}
+	public void testEngineSupervisor() throws Exception{
+		EngineSupervisor supervisor = new EngineSupervisor(1,1){
+			protected AbstractPrologEngine makeEngine(){
+				return buildNewEngine();
+			}
+		};
+		java.io.File program = java.io.File.createTempFile("ipsupervised",".P");
+		try{
+			java.io.FileWriter writer = new java.io.FileWriter(program);
+			writer.write("ipSupervisedFact(42).\n");
+			writer.close();
+			assertTrue(supervisor.consultAbsolute(program));
+			int myID = supervisor.registerJavaObject(this);
+			String goal = "ipSupervisedFact(X), javaMessage("+myID+",R,luckyNumber), ipObjectSpec('java.lang.Integer',I,[X],_)";
+			assertEquals(new Integer(42),supervisor.deterministicGoal(goal,"[I,R]")[0]);
+			long deadline = System.currentTimeMillis()+60000;
+			while (supervisor.standbysReady()==0 && System.currentTimeMillis()<deadline) Thread.sleep(50);
+			assertEquals(1,supervisor.standbysReady());
+			
+			SubprocessEngine crashing = (SubprocessEngine)supervisor.getEngine(0);
+			crashing.prolog.destroy();
+			while (crashing.isAlive()) Thread.sleep(10);
+			long start = System.currentTimeMillis();
+			Object[] bindings = supervisor.deterministicGoal(goal,"[I,R]");
+			System.out.println("Supervised engine answered "+(System.currentTimeMillis()-start)+" mS after its Prolog process died");
+			assertEquals(new Integer(42),bindings[0]);
+			assertEquals(new Integer(13),bindings[1]);
+			assertEquals(1,supervisor.getReplacements());
+			assertNotSame(crashing,supervisor.getEngine(0));
+		} finally{
+			supervisor.shutdown();
+			program.delete();
+		}
+	}
+	public void testBinaryTerms(){
+		SubprocessEngine subprocess = (SubprocessEngine)engine;
+		boolean supported = engine.getImplementationPeer().supportsBinaryTerms();
+		assertEquals(supported,subprocess.isUsingBinaryTerms());
+		Object[] objects = {"a\u00e7\u00e3o",new Integer(-7),new Float(2.5),Boolean.TRUE,null};
+		Object[] bindings = engine.deterministicGoal("Objs=[A,B,C,D,E]","Objs",objects,"[A,B,C,D,E]");
+		assertTrue(Arrays.equals(objects,bindings));
+		String bigGoal = "findall(f(X,abc,g(X,abc),[1.5]),between(1,2000,X),L)";
+		DefaultEngineMetrics metrics = engine.enableMetrics();
+		try{
+			long t0 = System.currentTimeMillis();
+			TermModel binary = (TermModel)engine.deterministicGoal(bigGoal,null)[0];
+			long t1 = System.currentTimeMillis();
+			long binaryBytes = metrics.getBytesReceived();
+			// with binary terms, Term solutions are decoded with no TermModels
+			Term X = Term.variable(1);
+			Term termGoal = Term.compound("findall",new Term[]{Term.compound("f",new Term[]{X,Term.atom("abc")}),
+				Term.compound("between",new Term[]{Term.integer(1),Term.integer(2000),X}),Term.variable(2)});
+			Term binaryTerm = engine.deterministicGoal(termGoal);
+			assertEquals(2000,binaryTerm.getArg(2).listElements().length);
+			assertTrue(subprocess.setBinaryTerms(false)==false);
+			assertEquals(engine.deterministicGoal(termGoal).getArg(2),binaryTerm.getArg(2));
+			metrics.reset();
+			long t2 = System.currentTimeMillis();
+			TermModel serialized = (TermModel)engine.deterministicGoal(bigGoal,null)[0];
+			long t3 = System.currentTimeMillis();
+			assertEquals(serialized.toString(),binary.toString());
+			System.out.println("Big TermModel result: "+binaryBytes+" bytes in "+(t1-t0)+" mS with binary terms, "+
+				metrics.getBytesReceived()+" bytes in "+(t3-t2)+" mS serialized");
+			assertEquals(supported,subprocess.setBinaryTerms(true));
+		} finally{
+			engine.setMetrics(null);
+		}
+	}
+	public void testSessionStreams(){
+		SubprocessEngine subprocess = (SubprocessEngine)engine;
+		boolean binary = subprocess.isUsingBinaryTerms();
+		subprocess.setBinaryTerms(false);
+		DefaultEngineMetrics metrics = engine.enableMetrics();
+		try{
+			Object[] objects = {"abc",new Integer(3),new Float(2.5),Boolean.TRUE};
+			String goal = "Objs=[A,B,C,D]";
+			engine.deterministicGoal(goal,"Objs",objects,"[A,B,C,D]");
+			metrics.reset();
+			Object[] bindings = engine.deterministicGoal(goal,"Objs",objects,"[A,B,C,D]");
+			long oneOffSent = metrics.getBytesSent(), oneOffReceived = metrics.getBytesReceived();
+			String termGoal = "T=f(b,[a,1.5],g(b))";
+			TermModel oneOff = (TermModel)engine.deterministicGoal(termGoal,"[T]")[0];
+			if (!subprocess.setSessionStreams(true)) return; // older Prolog file
+			assertTrue(subprocess.isUsingSessionStreams());
+			// the first messages carry the class descriptors
+			assertTrue(Arrays.equals(bindings,engine.deterministicGoal(goal,"Objs",objects,"[A,B,C,D]")));
+			metrics.reset();
+			for (int i=0; i<10; i++)
+				assertTrue(Arrays.equals(bindings,engine.deterministicGoal(goal,"Objs",objects,"[A,B,C,D]")));
+			assertEquals(oneOff.toString(),engine.deterministicGoal(termGoal,"[T]")[0].toString());
+			assertEquals(new Integer(21),engine.deterministicGoal("X is 7*3","[X]")[0]);
+			long sessionSent = metrics.getBytesSent()/12, sessionReceived = metrics.getBytesReceived()/12;
+			System.out.println("Bytes per message sent/received: "+oneOffSent+"/"+oneOffReceived+" in one-off streams, about "+
+				sessionSent+"/"+sessionReceived+" in session streams");
+			assertTrue(sessionSent<oneOffSent && sessionReceived<oneOffReceived);
+			assertTrue(subprocess.setSessionStreams(false)==false);
+			assertTrue(Arrays.equals(bindings,engine.deterministicGoal(goal,"Objs",objects,"[A,B,C,D]")));
+		} finally{
+			engine.setMetrics(null);
+			subprocess.setSessionStreams(false);
+			subprocess.setBinaryTerms(binary);
+		}
+	}
 	StringBuffer buffer;
 	public void testOutputListening(){
 		buffer = new StringBuffer();
@@ -0,0 +1,339 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog;
+import com.declarativa.interprolog.util.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** A compact, immutable Prolog term, for large terms that need not be displayed or edited as TermModels.
+Atoms and functors are interned, so each appears once in memory; integers and floats are kept as primitive long and double values;
+and as terms never change, subterms may be shared among several terms. Terms convert to and from TermModels:
+<pre>
+Term T = Term.fromTermModel((TermModel)engine.deterministicGoal("buildTermModel(f(a,[1,2.5]),M)","[M]")[0]);
+Term S = engine.deterministicGoal(Term.compound("append",new Term[]{Term.variable(1),Term.variable(2),T.getArg(1)}));
+</pre>
+To pass a Term to Prolog as a goal object, for recoverTermModel/2, use toTermModel(). Variables are numbered, as with VariableNodes,
+and equal numbers in a term denote the same variable. Lists are made of list cells, cons(Head,Tail), ending with NIL.<p>
+TermModels sent to Prolog may only carry Integer and Float numbers, so toTermModel() throws an IPException for integers 
+outside the int range and doubles that are not exact floats, rather than losing precision; deterministicGoal(Term) sends 
+them exactly if the engine uses binary terms (cf. SubprocessEngine.setBinaryTerms). */
+public abstract class Term implements Serializable{
+	private static final long serialVersionUID = 1L;
+	/** Interned atoms, which also name functors. Atoms are never released, as Prolog's own atom table until its garbage collection, 
+	so this grows with every distinct name; terms with unbounded numbers of distinct atoms, e.g. made from user data, are better kept as TermModels */
+	static final ConcurrentHashMap<String,Atom> atoms = new ConcurrentHashMap<String,Atom>();
+	static final Int[] smallIntegers = new Int[1024+128];
+	static {
+		for (int i=0; i<smallIntegers.length; i++) smallIntegers[i] = new Int(i-128);
+	}
+	/** The empty list */
+	public static final Term NIL = new Atom("[]",true);
+	static final Atom DOT = atom(".");
+
+	Term(){}
+
+	/** The atom with this name, always the same object for the same name */
+	public static Atom atom(String name){
+		Atom a = atoms.get(name);
+		if (a!=null) return a;
+		a = new Atom(name,false);
+		Atom previous = atoms.putIfAbsent(name,a);
+		return (previous!=null ? previous : a);
+	}
+
+	public static Term integer(long value){
+		if (value>=-128 && value<smallIntegers.length-128) return smallIntegers[(int)value+128];
+		return new Int(value);
+	}
+
+	public static Term real(double value){
+		return new Real(value);
+	}
+
+	public static Term variable(int number){
+		return new Var(number);
+	}
+
+	/** A compound term, or an atom if args is null or empty; args is not copied, and must not be changed */
+	public static Term compound(String functor, Term[] args){
+		if (args==null || args.length==0) return atom(functor);
+		for (int a=0; a<args.length; a++)
+			if (args[a]==null) throw new IPException("Null argument in compound term");
+		return new Compound(atom(functor),args,false);
+	}
+
+	/** A list cell */
+	public static Term cons(Term head, Term tail){
+		if (head==null || tail==null) throw new IPException("Null argument in list cell");
+		return new Compound(DOT,new Term[]{head,tail},true);
+	}
+
+	public static Term list(Term[] elements){
+		Term list = NIL;
+		for (int e=elements.length-1; e>=0; e--) list = cons(elements[e],list);
+		return list;
+	}
+
+	/** The atom name or compound term functor, or null for numbers and variables */
+	public String getName(){ return null; }
+
+	/** Number of arguments, 0 except for compound terms */
+	public int getArity(){ return 0; }
+
+	/** Argument i, starting from 0 as TermModel.getChild(int) */
+	public Term getArg(int i){
+		throw new IPException("Term has no arguments: "+this);
+	}
+
+	public boolean isAtom(){ return false; }
+	public boolean isInteger(){ return false; }
+	public boolean isNumber(){ return false; }
+	public boolean isVar(){ return false; }
+	public boolean isCompound(){ return false; }
+	/** A list cell or the empty list */
+	public boolean isList(){ return false; }
+	public boolean isListEnd(){ return this==NIL; }
+
+	public long longValue(){
+		throw new IPException("Not a number: "+this);
+	}
+
+	public int intValue(){
+		return (int)longValue();
+	}
+
+	public double doubleValue(){
+		return longValue();
+	}
+
+	public int getVarNumber(){
+		throw new IPException("Not a variable: "+this);
+	}
+
+	/** Elements of this list, not including its tail if it is a partial list */
+	public Term[] listElements(){
+		ArrayList<Term> elements = new ArrayList<Term>();
+		Term t = this;
+		while (t instanceof Compound && ((Compound)t).listCell){
+			elements.add(t.getArg(0));
+			t = t.getArg(1);
+		}
+		return elements.toArray(new Term[elements.size()]);
+	}
+
+	/** A new TermModel tree with the same term, with Integer and Float numbers only. Lists are converted iteratively, 
+	so they may be as long as memory allows 
+	@throws IPException if a number can not be represented exactly */
+	public TermModel toTermModel(){
+		return toTermModel(false);
+	}
+
+	/** Same as toTermModel(), but if wideNumbers integers outside the int range and inexact doubles become Long and Double nodes,
+	which only BinaryTermCodec can send to Prolog */
+	TermModel toTermModel(boolean wideNumbers){
+		if (isList() && !isListEnd()){
+			Term[] elements = listElements();
+			Term t = this;
+			for (int e=0; e<elements.length; e++) t = t.getArg(1);
+			TermModel list = t.toTermModel(wideNumbers);
+			for (int e=elements.length-1; e>=0; e--)
+				list = new TermModel(".",new TermModel[]{elements[e].toTermModel(wideNumbers),list},true);
+			return list;
+		}
+		return toTermModelNode(wideNumbers);
+	}
+
+	abstract TermModel toTermModelNode(boolean wideNumbers);
+
+	/** The term represented by t, whose atoms and small integers are shared with other Terms */
+	public static Term fromTermModel(TermModel t){
+		if (t.isList() && t.getChildCount()==2){
+			ArrayList<Term> elements = new ArrayList<Term>();
+			while (t.isList() && t.getChildCount()==2){
+				elements.add(fromTermModel(t.children[0]));
+				t = t.children[1];
+			}
+			Term list = fromTermModel(t);
+			for (int e=elements.size()-1; e>=0; e--) list = cons(elements.get(e),list);
+			return list;
+		}
+		Term[] args = new Term[t.getChildCount()];
+		for (int a=0; a<args.length; a++) args[a] = fromTermModel(t.children[a]);
+		return fromNode(t.node,args,t.isList());
+	}
+
+	/** The term for a TermModel with this node and the children already converted, for decoders that build Terms 
+	with no TermModels in between, e.g. BinaryTermCodec; args may be null, and is not copied */
+	public static Term fromNode(Object node, Term[] args, boolean isList){
+		if (args==null || args.length==0){
+			if (isList) return NIL;
+			if (node instanceof String) return atom((String)node);
+			if (node instanceof Float || node instanceof Double) return real(((Number)node).doubleValue());
+			if (node instanceof Number) return integer(((Number)node).longValue());
+			if (node instanceof VariableNode) return variable(((VariableNode)node).getNumber());
+			throw new IPException("Bad TermModel node type: "+node);
+		}
+		if (isList && args.length==2) return cons(args[0],args[1]);
+		return compound(node.toString(),args);
+	}
+
+	public static Term[] fromTermModels(TermModel[] models){
+		Term[] terms = new Term[models.length];
+		for (int t=0; t<terms.length; t++) terms[t] = fromTermModel(models[t]);
+		return terms;
+	}
+
+	/** Edinburgh syntax, as TermModel.toString() */
+	public String toString(){
+		return toTermModel(true).toString();
+	}
+
+	public static class Atom extends Term{
+		private static final long serialVersionUID = 1L;
+		final String name;
+		/** this is NIL */
+		final boolean listEnd;
+
+		Atom(String name,boolean listEnd){
+			this.name = name;
+			this.listEnd = listEnd;
+		}
+		public String getName(){ return name; }
+		public boolean isAtom(){ return true; }
+		public boolean isList(){ return listEnd; }
+		TermModel toTermModelNode(boolean wideNumbers){
+			return new TermModel(name,listEnd);
+		}
+		/** Atoms stay interned after deserialization */
+		Object readResolve(){
+			return (listEnd ? NIL : atom(name));
+		}
+		public int hashCode(){ return name.hashCode(); }
+	}
+
+	public static class Int extends Term{
+		private static final long serialVersionUID = 1L;
+		final long value;
+		Int(long value){
+			this.value = value;
+		}
+		public boolean isInteger(){ return true; }
+		public boolean isNumber(){ return true; }
+		public long longValue(){ return value; }
+		/** An Integer, or a Long if out of int range and wideNumbers */
+		TermModel toTermModelNode(boolean wideNumbers){
+			if (value==(int)value) return new TermModel(new Integer((int)value));
+			if (wideNumbers) return new TermModel(new Long(value));
+			throw new IPException("Integer out of the range of TermModels sent to Prolog: "+value);
+		}
+		public boolean equals(Object x){
+			return x instanceof Int && ((Int)x).value==value;
+		}
+		public int hashCode(){ return (int)(value^(value>>>32)); }
+	}
+
+	public static class Real extends Term{
+		private static final long serialVersionUID = 1L;
+		final double value;
+		Real(double value){
+			this.value = value;
+		}
+		public boolean isNumber(){ return true; }
+		public long longValue(){ return (long)value; }
+		public double doubleValue(){ return value; }
+		/** A Float if exact, or a Double if wideNumbers */
+		TermModel toTermModelNode(boolean wideNumbers){
+			if ((float)value==value || Double.isNaN(value)) return new TermModel(new Float((float)value));
+			if (wideNumbers) return new TermModel(new Double(value));
+			throw new IPException("Float not exactly representable in TermModels sent to Prolog: "+value);
+		}
+		public boolean equals(Object x){
+			return x instanceof Real && Double.compare(((Real)x).value,value)==0;
+		}
+		public int hashCode(){ return Double.valueOf(value).hashCode(); }
+	}
+
+	public static class Var extends Term{
+		private static final long serialVersionUID = 1L;
+		final int number;
+		Var(int number){
+			this.number = number;
+		}
+		public boolean isVar(){ return true; }
+		public int getVarNumber(){ return number; }
+		TermModel toTermModelNode(boolean wideNumbers){
+			return new TermModel(new VariableNode(number));
+		}
+		public boolean equals(Object x){
+			return x instanceof Var && ((Var)x).number==number;
+		}
+		public int hashCode(){ return 31*number+7; }
+	}
+
+	public static class Compound extends Term{
+		private static final long serialVersionUID = 1L;
+		final Atom functor;
+		final Term[] args;
+		/** this is a list cell */
+		final boolean listCell;
+		private int hash = 0;
+
+		Compound(Atom functor, Term[] args, boolean listCell){
+			this.functor = functor;
+			this.args = args;
+			this.listCell = listCell;
+		}
+		public String getName(){ return functor.name; }
+		public int getArity(){ return args.length; }
+		public Term getArg(int i){ return args[i]; }
+		public boolean isCompound(){ return true; }
+		public boolean isList(){ return listCell; }
+		TermModel toTermModelNode(boolean wideNumbers){
+			TermModel[] children = new TermModel[args.length];
+			for (int a=0; a<args.length; a++) children[a] = args[a].toTermModel(wideNumbers);
+			return new TermModel(functor.name,children,listCell);
+		}
+		/** Lists are compared iteratively */
+		public boolean equals(Object x){
+			Term t = this;
+			while (true){
+				if (t==x) return true;
+				if (!(t instanceof Compound) || !(x instanceof Compound)) return t.equals(x);
+				Compound c = (Compound)t, other = (Compound)x;
+				if (c.functor!=other.functor || c.listCell!=other.listCell || c.args.length!=other.args.length) return false;
+				int last = c.args.length-1;
+				for (int a=0; a<last; a++)
+					if (!c.args[a].equals(other.args[a])) return false;
+				t = c.args[last];
+				x = other.args[last];
+			}
+		}
+		/** Computed once, iteratively over the last argument */
+		public int hashCode(){
+			if (hash!=0) return hash;
+			ArrayList<Compound> spine = new ArrayList<Compound>();
+			Term t = this;
+			while (t instanceof Compound && ((Compound)t).hash==0){
+				spine.add((Compound)t);
+				t = ((Compound)t).args[((Compound)t).args.length-1];
+			}
+			int h = t.hashCode();
+			for (int s=spine.size()-1; s>=0; s--){
+				Compound c = spine.get(s);
+				int ch = 31*c.functor.hashCode()+c.args.length;
+				for (int a=0; a<c.args.length-1; a++) ch = 31*ch+c.args[a].hashCode();
+				ch = 31*ch+h;
+				if (ch==0) ch = 1;
+				c.hash = ch;
+				h = ch;
+			}
+			return h;
+		}
+	}
+}
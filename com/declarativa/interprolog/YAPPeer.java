@@ -81,4 +81,8 @@ public class YAPPeer extends PrologImplementationPeer{
 		//System.out.println("error=="+error);
 		return error.toString().indexOf("interprolog_interrupt")!=-1; // TODO! error.toString().startsWith("?????");
 	}
+	/** Uses time_out/3, cf. ipCallWithTimeLimit/2 in interprolog.yap */
+	public String timeLimitedGoal(String G, long milliseconds){
+		return "ipCallWithTimeLimit("+(milliseconds/1000.0)+", ( "+G+" ))";
+	}
 }
\ No newline at end of file
@@ -34,6 +34,9 @@ public class YAPSubprocessEngine extends SubprocessEngine{
 	protected PrologOutputObjectStream buildPrologOutputObjectStream(OutputStream os) throws IOException{
 		return new PrologOutputObjectStream(os,true /* use escape byte mechanism */);
 	}	
+	protected PrologSessionOutputStream buildPrologSessionOutputStream() throws IOException{
+		return new PrologSessionOutputStream(true /* use escape byte mechanism */);
+	}
 	public boolean realCommand(String s){
 		progressMessage("COMMAND:"+s+".");
 		sendAndFlushLn("("+s+"), write('"+YAPPeer.REGULAR_PROMPT+"'), flush_output, !, fail."); // to make sure YAP doesn't hang showing variables
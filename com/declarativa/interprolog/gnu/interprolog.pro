@@ -6,6 +6,12 @@ socket_put(Sockfd,C)  :- put_byte(Sockfd,C).
 
 writeAllSocketChars(More,S) :- writeAllSocketChars_(More,S), flush_output(S).
 
+readNSocketChars(0,_,[]) :- !.
+readNSocketChars(N,S,[C|Cn]) :- socket_get0(S,C), NN is N-1, readNSocketChars(NN,S,Cn).
+
+writeAllSocketChars_([],_).
+writeAllSocketChars_([C|More],S) :- socket_put(S,C), writeAllSocketChars_(More,S).
+
 ipinitsockets(Host,Sport) :-
     working_directory(D), write(directory-D), nl,
 	ipProgressMessage('Creating socket'-socket('AF_INET',S)),
@@ -70,6 +76,16 @@ extractMantissa(N,Float,Rem,MantI,Mant) :-
 		extractMantissa(N1,Float1,Rem,MantI1,Mant)
 	).
 
+% Wire format of messages, cf. ipEncodeMessage/2 in swi/interprolog.pl; this Prolog only handles Java serialization
+ipEncodeMessage(Object,Bytes) :- ipStreamMessage(Object,Bytes).
+ipDecodeMessage(Bytes,Object) :- ipStreamMessage(Object,Bytes).
+
+ipNegotiateWireFormat(serialization).
+
+% Only SWI runs goals concurrently, cf. ipServeConcurrentGoals/0 in swi/interprolog.pl
+ipAtomically(G) :- call(G).
+ipWorkerSendReceive(_Bytes,_Timestamp,_NewBytes) :- fail.
+
 
 /*** GENERIC STUFF - SAME FOR ALL SUPPORTED PROLOGS ***/
 
@@ -101,15 +117,17 @@ ipPeekTerminal(T,[T|L],[T|L]).
 
 /****** Socket Utilities ******/
 
-readNSocketChars(0,_,[]) :- !.
-readNSocketChars(N,S,[C|Cn]) :- socket_get0(S,C), NN is N-1, readNSocketChars(NN,S,Cn).
-
-writeAllSocketChars_([],_).
-writeAllSocketChars_([C|More],S) :- socket_put(S,C), writeAllSocketChars_(More,S).
+% readNSocketChars(+N,+Stream,-Bytes) and writeAllSocketChars(+Bytes,+Stream) are Prolog dependent, see above
 
 
 /****** Initialization ******/
 
+% ipinitialize(Host,Sport,EngineID,Debug,LearnedObjects): LearnedObjects is a file saved by ipSaveLearnedObjects/2
+% for the same startup examples, which Java then does not send; or snapshot, if Prolog was started from a saved state that has them
+ipinitialize(Host,Sport,EngineID,Debug,LearnedObjects) :-
+	asserta(ipLearnedObjectsFile(LearnedObjects)),
+	ipinitialize(Host,Sport,EngineID,Debug).
+
 ipinitialize(Host,Sport,EngineID,Debug) :-
 	(Debug=true->asserta(ipIsDebugging);true),
 	ipinitsockets(Host,Sport), 
@@ -122,8 +140,14 @@ ipinitialize(Host,Sport,EngineID,Debug) :-
 :- dynamic(ipinterruptsocketstreams/2).
 :- dynamic(ipObjectSpec/4).
 :- dynamic(ipObjectTemplate/5).
+:- dynamic(ipLearnedObjectsFile/1).
 
-% Fetches all examples available from the callback socket
+% Fetches all examples available from the callback socket, unless their facts were cached
+ipLearnExamples :- retract(ipLearnedObjectsFile(File)), !,
+	(File==snapshot -> true ; 
+		ipLoadLearnedObjects(File),
+		ipProgressMessage('Loaded ipObjectXXX facts'-File)
+	).
 ipLearnExamples :-
 	ipsocketstreams(Input,_Output),
 	ipProgressMessage('Reading four bytes'),
@@ -187,6 +211,42 @@ ipWholeTerm(double(_,_,_,_,_,_,_,_)).
 
 ipIsObjectReference(object(class('com.declarativa.interprolog.util.InvisibleObject',_,_),_)).
 
+% ipReleaseObjects(+Objects): Prolog no longer references these objects, InvisibleObject specifications or their integer IDs,
+% so that a weak object registry (cf. AbstractPrologEngine.setWeakObjectRegistry) may forget them
+ipReleaseObjects(Objects) :-
+	ipReleasedIDs(Objects,IDs),
+	ipObjectSpec('ArrayOfObject',IDs,Array),
+	ipPrologEngine(E), javaMessage(E,releaseJavaObjects(Array)).
+
+ipReleasedIDs([],[]).
+ipReleasedIDs([O|Objects],[I|IDs]) :-
+	(integer(O) -> ID=O ; ipObjectSpec('InvisibleObject',O,[ID],_)),
+	ipObjectSpec('java.lang.Integer',I,[ID],_),
+	ipReleasedIDs(Objects,IDs).
+
+/****** Cache of the facts learned from examples, cf. AbstractPrologEngine.setLearnedObjectsCache ******/
+
+% ipSaveLearnedObjects(+File,+Names): writes the ipObjectSpec/4 and ipObjectTemplate/5 facts for the example names in list Names, 
+% or for all if Names is all
+ipSaveLearnedObjects(File,Names) :-
+	open(File,write,S),
+	(ipObjectSpec(N,G,V,E), ipLearnedName(N,Names), writeq(S,ipObjectSpec(N,G,V,E)), write(S,'.'), nl(S), fail ; true),
+	(ipObjectTemplate(N,T,A,V,TS), ipLearnedName(N,Names), writeq(S,ipObjectTemplate(N,T,A,V,TS)), write(S,'.'), nl(S), fail ; true),
+	close(S).
+
+ipLearnedName(_,all) :- !.
+ipLearnedName(N,[N|_]) :- !.
+ipLearnedName(N,[_|Names]) :- ipLearnedName(N,Names).
+
+% ipLoadLearnedObjects(+File)
+ipLoadLearnedObjects(File) :-
+	open(File,read,S),
+	repeat,
+		read(S,Fact),
+		(Fact==end_of_file -> ! 
+		; (Fact=ipObjectSpec(_,_,_,_) ; Fact=ipObjectTemplate(_,_,_,_,_)), assertz(Fact), fail),
+	close(S).
+
 /****** Support for Prolog -> Java goal calls (callbacks) ******/
 
 % javaMessage, non-sugared version   
@@ -195,13 +255,13 @@ javaMessage(Target,Result,Exception,MessageName,ArgList,ReturnArgs,NewArgList) :
 	(atom(MessageName) -> true ; write('*** MessageName must be an atom'), fail),
 	ip_inc_jm_counter(Timestamp),
 	specifyJavaCallback(ReturnArgs,Timestamp,Target,MessageName,ArgList,MessageFromProlog),
-	( streamContents([MessageFromProlog],handles(_,_),Bytes,[]) -> true
-	; write('*** streamContents failed'),nl, fail),
+	( ipEncodeMessage(MessageFromProlog,Bytes) -> true
+	; write('*** ipEncodeMessage failed'),nl, fail),
 	javaMessage2(Bytes,Timestamp,Result,Exception,NewArgList).
 
 javaMessage2(Bytes,Timestamp,Result,Exception,NewArgList):-
-	interprologSendReceive(Bytes,ResultBytes),
-	streamContents([Contents],_,ResultBytes,[]), !,
+	(ipWorkerSendReceive(Bytes,Timestamp,ResultBytes) -> true ; interprologSendReceive(Bytes,ResultBytes)),
+	ipDecodeMessage(ResultBytes,Contents), !,
 	handleCallbackResult(Contents,Timestamp,Result,Exception,NewArgList).
 
 interprologSendReceive(Bytes, NewBytes) :- 
@@ -240,7 +300,7 @@ extractResultParts(ResultFromJava,Timestamp,Result,Exception,Arguments) :-
 :- initialization(asserta(ip_jm_counter(1))).
 
 % To make sure we number Prolog variables uniquely in a XJ session
-ip_inc_jm_counter(N) :- retract(ip_jm_counter(N)), !,  N1 is N+1, asserta(ip_jm_counter(N1)).
+ip_inc_jm_counter(N) :- ipAtomically((retract(ip_jm_counter(N)), !,  N1 is N+1, asserta(ip_jm_counter(N1)))).
 
 
 
@@ -297,8 +357,18 @@ mayPrepareGoalBindings(RVars,G,RVars,G).
 
 handleDeterministicGoal(_Goal,_RVars,Error,Timestamp,NewBytes) :- nonvar(Error), !,
 	specifyPrologResult(Timestamp,0,[],Result,Error),
-	streamContents([Result],_,NewBytes,[]).
+	ipEncodeMessage(Result,NewBytes).
 handleDeterministicGoal(Goal,RVars,Error,Timestamp,NewBytes)  :- 
+	callDeterministicGoal(Goal,RVars,Timestamp,Result,Error2),
+	(	ipProgressMessage(aboutToCall-ipEncodeMessage(Result,NewBytes)), ipEncodeMessage(Result,NewBytes) -> 
+		Error2=Error
+		;
+		Error = string('IP grammar failure, probably bad object specification'), 
+		specifyPrologResult(Timestamp,0,[],Result2,Error), ipEncodeMessage(Result2,NewBytes)) .
+
+% callDeterministicGoal(Goal,RVars,Timestamp,Result,Error)
+% Calls Goal once, catching its failure or exception, and specifies its ResultFromProlog
+callDeterministicGoal(Goal,RVars,Timestamp,Result,Error2) :- 
 	mayPrepareGoalBindings(RVars,Goal,RVars2,Goal2),
 	ipProgressMessage('Calling dg '-Goal2),
 	%( call(Goal2) -> Succeeded=1, NewRVars=RVars2 ; Succeeded=0, NewRVars=[]),
@@ -311,11 +381,7 @@ handleDeterministicGoal(Goal,RVars,Error,Timestamp,NewBytes)  :-
 		( call(Goal2) -> Succeeded=1, NewRVars=RVars2 ; Succeeded=0, NewRVars=[]), Error2=_
 	),
 	ipProgressMessage(dg_result-Goal2-Succeeded/PE),
-	(	specifyPrologResult(Timestamp,Succeeded,NewRVars,Result,Error2), ipProgressMessage(aboutToCall-streamContents([Result],_,NewBytes,[])), streamContents([Result],_,NewBytes,[]) -> 
-		Error2=Error
-		;
-		Error = string('IP grammar failure, probably bad object specification'), 
-		specifyPrologResult(Timestamp,0,[],Result,Error), streamContents([Result],_,NewBytes,[])) .
+	specifyPrologResult(Timestamp,Succeeded,NewRVars,Result,Error2).
 
 
 % The next clauses must be kept in sync with the corresponding Java Classes:
@@ -334,6 +400,49 @@ specifyPrologResult(Timestamp,_Succeeded,_RVars,Result,Error) :- var(Error),
 	ipObjectSpec('ResultFromProlog',Result,[0,Timestamp,string('Bad specification of result bindings'),[]],_).
 
 
+/****** Support for batches of deterministicGoals, cf. AbstractPrologEngine.deterministicGoals ******/
+
+% ipDeterministicGoals(GoalsFromJava,ResultsFromProlog)
+% Each goal is called as by deterministicGoal, its failure or exception affecting only its own result
+ipDeterministicGoals([],[]).
+ipDeterministicGoals([Object|Objects],[Result|Results]) :-
+	(extractGoalVars(Object,Timestamp,Goal,RVars,Error) -> true ; Timestamp=0, Error=string('Bad goal in batch')),
+	(nonvar(Error) -> specifyPrologResult(Timestamp,0,[],Result,Error)
+		; callDeterministicGoal(Goal,RVars,Timestamp,Result,_)),
+	!, ipDeterministicGoals(Objects,Results).
+
+
+/****** Support for nondeterministicGoal, solutions streamed in chunks to a Java SolutionIterator ******/
+
+:- dynamic(ipSolutionBuffer/2).
+:- dynamic(ipSolutionCount/2).
+
+% ipStreamSolutions(Cursor,Goal,RVars,ChunkSize)
+% Cursor is the registered ID of the SolutionIterator; each chunk of ChunkSize solutions is sent to it while Goal's
+% choice point is kept, and backtracking stops when the iterator is closed
+ipStreamSolutions(Cursor,G,RVars,ChunkSize) :-
+	mayPrepareGoalBindings(RVars,G,RVars2,G2),
+	retractall(ipSolutionBuffer(Cursor,_)), retractall(ipSolutionCount(Cursor,_)),
+	assert(ipSolutionCount(Cursor,0)),
+	( call(G2), ipBufferSolution(Cursor,RVars2,ChunkSize,Continue), Continue==0 -> true
+	; ipFlushSolutions(Cursor,1,_) ),
+	retractall(ipSolutionBuffer(Cursor,_)), retractall(ipSolutionCount(Cursor,_)).
+
+ipBufferSolution(Cursor,RVars,ChunkSize,Continue) :-
+	assertz(ipSolutionBuffer(Cursor,RVars)),
+	retract(ipSolutionCount(Cursor,N)), N1 is N+1,
+	(N1 >= ChunkSize -> assert(ipSolutionCount(Cursor,0)), ipFlushSolutions(Cursor,0,Continue)
+	; assert(ipSolutionCount(Cursor,N1)), Continue=1).
+
+% ipFlushSolutions(Cursor,Last,Continue)
+ipFlushSolutions(Cursor,Last,Continue) :-
+	findall(Solution, (retract(ipSolutionBuffer(Cursor,RVars)), ipObjectSpec('ArrayOfObject',RVars,Solution)), Solutions),
+	ipObjectSpec('ArrayOfObject',Solutions,Chunk),
+	ipObjectSpec(int,LastSpec,[Last],_),
+	(javaMessage(Cursor,R,addSolutions(Chunk,LastSpec)) -> ipObjectSpec('java.lang.Integer',R,[Continue],_)
+	; Continue=0).
+
+
 /****** Support for Java -> Prolog TOP deterministicGoal over sockets ******/
 
 deterministicGoal :-
@@ -343,7 +452,7 @@ deterministicGoal :-
    int(Size,FourBytes,[]), % stick to our grammar...
    readNSocketChars(Size,Input,Bytes), 
    % tell('lastBytes.txt'),write(Bytes),nl,told,
-   (streamContents([Contents],_,Bytes,[]) -> extractGoalVars(Contents,NewTimestamp,Goal,RVars,Error) ; Error=string('Could not understand objects sent from Java')),
+   (ipDecodeMessage(Bytes,Contents) -> extractGoalVars(Contents,NewTimestamp,Goal,RVars,Error) ; Error=string('Could not understand objects sent from Java')),
    handleDeterministicGoal(Goal,RVars,Error,NewTimestamp,NewBytes),
    writeAllSocketChars(NewBytes,Output),
    ipProgressMessage('Exiting deterministicGoal '-Goal).
@@ -403,7 +512,7 @@ buildTermModelArray(T,ArrayModel) :-
 :- initialization(asserta(ip_var_counter(0))).
 
 % To make sure we number Prolog variables uniquely in a XJ session
-ip_inc_var_counter(N) :- retract(ip_var_counter(N)), !,  N1 is N+1, asserta(ip_var_counter(N1)).
+ip_inc_var_counter(N) :- ipAtomically((retract(ip_var_counter(N)), !,  N1 is N+1, asserta(ip_var_counter(N1)))).
 
 
 
@@ -530,6 +639,69 @@ streamContents(C,Handles,Bytes0,Bytes) :- ipIsDebugging,
 streamContents0(C,Handles) --> 
 	magic, streamversion, contents(C,handles(-1,[]),Handles), !.
 
+% Session streams: once agreed with Java (cf. SubprocessEngine.setSessionStreams), serialized messages in each direction
+% belong to a single stream, whose header (with version 'IP' rather than 5) comes only with its first message; each message starts 
+% with a reset, and each class descriptor is sent in full only once, later as an index (cf. PrologSessionOutputStream.java)
+
+:- dynamic(ipSessionStreams/1). % new (the next message to Java starts a stream) or started
+:- dynamic(ipSessionDescriptors/1). % in or out, while parsing or generating a session message
+:- dynamic(ipSessionClassIn/5). % Index,Name,VUID,Fields,Flags of a descriptor received from Java
+:- dynamic(ipSessionKnownIn/1). % Name of a descriptor received from Java
+:- dynamic(ipSessionClassOut/2). % Name,Index of a descriptor sent to Java
+
+ipNegotiateSessionStreams(true) :- retractall(ipSessionStreams(_)), assert(ipSessionStreams(new)).
+ipNegotiateSessionStreams(false) :- retractall(ipSessionStreams(_)).
+
+% ipStreamMessage(?Object,?Bytes): Bytes, without the size prefix, serialize Object; 
+% messages to Java go in the session stream if there is one, messages from Java say themselves which stream they belong to
+ipStreamMessage(Object,Bytes) :- nonvar(Bytes), !, ipParseMessage(Bytes,Object).
+ipStreamMessage(Object,Bytes) :- ipSessionStreams(State), ipGenerateSessionMessage(State,Object,Bytes), !.
+ipStreamMessage(Object,Bytes) :- streamContents([Object],_,Bytes,[]).
+
+ipParseMessage([172,237,73,80|Bytes],Object) :- !,
+	retractall(ipSessionClassIn(_,_,_,_,_)), retractall(ipSessionKnownIn(_)),
+	ipSessionContents(in,Object,Bytes).
+ipParseMessage([121|Bytes],Object) :- !, ipSessionContents(in,Object,[121|Bytes]).
+ipParseMessage(Bytes,Object) :- streamContents([Object],_,Bytes,[]).
+
+ipGenerateSessionMessage(new,Object,[172,237,73,80|Bytes]) :-
+	retractall(ipSessionClassOut(_,_)),
+	ipSessionContents(out,Object,Bytes),
+	retractall(ipSessionStreams(_)), assert(ipSessionStreams(started)).
+ipGenerateSessionMessage(started,Object,Bytes) :- ipSessionContents(out,Object,Bytes).
+
+ipSessionContents(Direction,Object,Bytes) :-
+	reset_dcg_mode,
+	asserta(ipSessionDescriptors(Direction)),
+	(sessionContents(Object,Bytes,[]) -> retract(ipSessionDescriptors(Direction)) 
+	; retract(ipSessionDescriptors(Direction)), fail),
+	ipLearnSessionClasses(Object,Direction).
+
+sessionContents(C) --> tC_RESET, contents([C],handles(-1,[]),_), !.
+
+% ipLearnSessionClasses(+Object,+Direction): indexes the descriptors not known yet, in the order they were serialized
+ipLearnSessionClasses(X,_) :- var(X), !.
+ipLearnSessionClasses(class(Name,VUID,classDescInfo(Fields,Flags,Super)),Direction) :- !,
+	(ipSessionKnownClass(Direction,Name) -> true
+	; ipSessionAddClass(Direction,Name,VUID,Fields,Flags), ipLearnSessionClasses(Super,Direction)).
+ipLearnSessionClasses(X,Direction) :- compound(X), !, X =.. [_|Args], ipLearnSessionClassesList(Args,Direction).
+ipLearnSessionClasses(_,_).
+
+ipLearnSessionClassesList([],_).
+ipLearnSessionClassesList([X],Direction) :- !, ipLearnSessionClasses(X,Direction). % last call, for long lists
+ipLearnSessionClassesList([X|Xs],Direction) :- 
+	ipLearnSessionClasses(X,Direction), ipLearnSessionClassesList(Xs,Direction).
+
+ipSessionKnownClass(in,Name) :- ipSessionKnownIn(Name).
+ipSessionKnownClass(out,Name) :- ipSessionClassOut(Name,_).
+
+ipSessionAddClass(in,Name,VUID,Fields,Flags) :-
+	findall(I,ipSessionClassIn(I,_,_,_,_),L), length(L,N),
+	assert(ipSessionClassIn(N,Name,VUID,Fields,Flags)), assert(ipSessionKnownIn(Name)).
+ipSessionAddClass(out,Name,_,_,_) :-
+	findall(I,ipSessionClassOut(_,I),L), length(L,N),
+	assert(ipSessionClassOut(Name,N)).
+
 % Slightly different recursion pattern at the top level:
 contents([C|More],H1,Hn) --> content(C,H1,H2), moreContents(More,H2,Hn).
 
@@ -558,16 +730,31 @@ classDesc(D,H1,Hn) --> newClassDesc(D,H1,Hn).
 
 superClassDesc(D,H1,Hn) --> classDesc(D,H1,Hn).
 
-newClassDesc(class(Name,VUID,Info),H1,Hn) --> 
-	tC_CLASSDESC, className(Name,H1,H2), 
+newClassDesc(D,H1,Hn) -->
+	tC_CLASSDESC, {ipSessionDescriptors(Direction)}, !, sessionClassDesc(Direction,D,H1,Hn).
+newClassDesc(D,H1,Hn) --> tC_CLASSDESC, fullClassDesc(D,H1,Hn).
+newClassDesc(_Class,H,H) -->
+      tC_PROXYCLASSDESC, { /* ipProgressMessage('Not handling proxy class descriptions'),*/ fail}.
+
+fullClassDesc(class(Name,VUID,Info),H1,Hn) --> 
+	className(Name,H1,H2), 
 	{ipProgressMessage(newClassDesc-Name)},
 	% ipShowTerminalsIf(Name='[Ljava.lang.String;'),
 	serialVersionUID(VUID,H2,H3), 
 	newHandle(class(Name,VUID,Info),H3,H4), 
 	% {ipProgressMessageIf('added handle',Name=='[Ljava.lang.String;')},
 	classDescInfo(Info,H4,Hn).
-newClassDesc(_Class,H,H) -->
-      tC_PROXYCLASSDESC, { /* ipProgressMessage('Not handling proxy class descriptions'),*/ fail}.
+
+% In a session stream, a descriptor sent before is just its index after a 1 byte; others come in full after a 0 byte
+sessionClassDesc(in,class(Name,VUID,classDescInfo(Fields,Flags,Super)),H1,Hn) -->
+	[1], !, int(Index), {ipSessionClassIn(Index,Name,VUID,Fields,Flags)},
+	newHandle(class(Name,VUID,classDescInfo(Fields,Flags,Super)),H1,H2), 
+	classAnnotation(H2,H3), superClassDesc(Super,H3,Hn).
+sessionClassDesc(out,class(Name,VUID,classDescInfo(Fields,Flags,Super)),H1,Hn) -->
+	{ipSessionClassOut(Name,Index)}, !, [1], int(Index),
+	newHandle(class(Name,VUID,classDescInfo(Fields,Flags,Super)),H1,H2), 
+	classAnnotation(H2,H3), superClassDesc(Super,H3,Hn).
+sessionClassDesc(_,D,H1,Hn) --> [0], fullClassDesc(D,H1,Hn).
 
 classDescInfo(classDescInfo(Fields,Flags,Super),H1,Hn) --> 
 	classDescFlags(Flags,H1,H2), fields(Fields,H2,H3), classAnnotation(H3,H4), 
@@ -2,11 +2,12 @@
 
 :- module(interprolog, [
 	% Initialization:
-	ipinitialize/4, setupWindowsInterrupt/2, getPrologPID/1, ipLearnExamples/0, ipProcessExamples/1,
+	ipinitialize/4, ipinitialize/5, setupWindowsInterrupt/2, ipUseSharedMemory/1, getPrologPID/1, ipLearnExamples/0, ipProcessExamples/1,
+	ipSaveLearnedObjects/2, ipLoadLearnedObjects/1, ipSnapshotScript/3,
 	% Glorified remote procedure calling:
-	deterministicGoal/0,javaMessage/7, javaMessage/6, javaMessage/3, javaMessage/2,
+	deterministicGoal/0,ipDeterministicGoals/2,ipStartConcurrentGoals/1,ipServeConcurrentGoals/0,ipStopConcurrentGoals/0,ipStreamSolutions/4,ipCallWithTimeLimit/2,ipNegotiateWireFormat/1,ipNegotiateSessionStreams/1,javaMessage/7, javaMessage/6, javaMessage/3, javaMessage/2,
 	% Runtime object structures and references, grammar:
-	ipObjectSpec/3,ipObjectSpec/4, ipObjectTemplate/5, ipPrologEngine/1,ipIsObjectReference/1,streamContents/4,
+	ipObjectSpec/3,ipObjectSpec/4, ipObjectTemplate/5, ipPrologEngine/1,ipIsObjectReference/1,ipReleaseObjects/1,streamContents/4,
 	% Term<->TermModel:
 	buildTermModel/2, buildTermModels/2, buildTermModel_/2, buildTermModelList_/2, buildTermModelList_2/2, buildTermModelArray/2,
 	ip_inc_var_counter/1,recoverTermModel/2, recoverTermModels/2, recoverTermModelArray/2,
@@ -23,22 +24,50 @@ socket_get0(Sockfd,C) :- get_byte(Sockfd,C).
 
 socket_put(Sockfd,C)  :- put_byte(Sockfd,C).
 
-writeAllSocketChars(More,S) :- writeAllSocketChars_(More,S), flush_output(S).
+% Messages are read and written with one builtin call each, rather than a byte at a time; 
+% the socket streams have octet encoding, so characters are bytes.
+% After ipUseSharedMemory/1 the "streams" are shm(Handle), see below
+readNSocketChars(N,shm(H),Bytes) :- !, ip_shm_read(H,N,Bytes).
+readNSocketChars(N,S,Bytes) :- read_string(S,N,String), string_length(String,N), string_codes(String,Bytes).
+
+writeAllSocketChars(Bytes,shm(H)) :- !, ip_shm_write(H,Bytes).
+writeAllSocketChars(Bytes,S) :- format(S,'~s',[Bytes]), flush_output(S).
+
+% ipUseSharedMemory(+File): maps the rings of a com.declarativa.interprolog.util.SharedMemoryChannel with the foreign library
+% built from ipshm.c, and moves messages there; the (AF_UNIX) socket is left carrying only wake up bytes.
+% Tells Java through the socket whether it succeeded, with Y or N
+ipUseSharedMemory(File) :-
+	ipsocketstreams(InStream,OutStream),
+	(	catch(( use_foreign_library(foreign(ipshm)), 
+			stream_property(InStream,file_no(Fd)), 
+			ip_shm_open(File,Fd,H) ),E,(ipProgressMessage(E),fail))
+	->	put_byte(OutStream,0'Y), flush_output(OutStream),
+		retractall(ipsocketstreams(_,_)), asserta(ipsocketstreams(shm(H),shm(H))),
+		ipProgressMessage('Using shared memory'-File)
+	;	put_byte(OutStream,0'N), flush_output(OutStream)
+	).
 
 ipinitsockets(Host,Sport) :-
 	ipProgressMessage('Creating socket'),
-	tcp_socket(S),
-	(tcp_connect(S, Host:Sport)->true;write('Weird socket connect failure 1'),nl,fail),
-	tcp_open_socket(S, InStream, OutStream),
-	ipProgressMessage('Created socket'-S),
+	(ipConnectSocket(Host,Sport,InStream,OutStream)->true;write('Weird socket connect failure 1'),nl,fail),
+	set_stream(InStream,encoding(octet)), set_stream(OutStream,encoding(octet)),
+	ipProgressMessage('Created socket'-Host:Sport),
 	asserta(ipsocketstreams(InStream, OutStream)),
 	ipLearnExamples.
 
+% ipConnectSocket(+Host,+Port,-InStream,-OutStream): Host unix means an AF_UNIX socket, whose file path is Port
+ipConnectSocket(unix,Path,InStream,OutStream) :- !,
+	unix_domain_socket(S),
+	tcp_connect(S, Path),
+	tcp_open_socket(S, InStream, OutStream).
+ipConnectSocket(Host,Port,InStream,OutStream) :-
+	tcp_socket(S),
+	tcp_connect(S, Host:Port),
+	tcp_open_socket(S, InStream, OutStream).
+
 % Actually will be used for Unix too:
 setupWindowsInterrupt(Host,INTport) :-
-	tcp_socket(IntS),
-	(tcp_connect(IntS, Host:INTport)->true;write('Weird socket connect failure 3'),nl,fail),
-	tcp_open_socket(IntS, InStream, _OutStream),
+	(ipConnectSocket(Host,INTport,InStream,_OutStream)->true;write('Weird socket connect failure 3'),nl,fail),
 	setupJavaInterrupt(InStream),
 	ipProgressMessage('interrupt was setup').
 
@@ -46,6 +75,22 @@ setupWindowsInterrupt(Host,INTport) :-
 % This is specific for UNIX, does not apply to Windows 95/NT
 getPrologPID(N) :- current_prolog_flag(pid,N).
 
+% ipSnapshotScript(+Script,+LearnedObjects,+State): writes in Script the goals for a fresh Prolog process to build State, 
+% a stand alone saved state with InterProlog, the files consulted here (except Prolog's own) and the objects learned here; 
+% this process can not save itself, as it has threads and sockets. Cf. SWISubprocessEngine.snapshot(File)
+ipSnapshotScript(Script,LearnedObjects,State) :-
+	ipSaveLearnedObjects(LearnedObjects,all),
+	module_property(interprolog,file(IPFile)),
+	current_prolog_flag(home,Home),
+	findall(F, (source_file(F), F\==IPFile, \+ sub_atom(F,0,_,_,Home)), Files),
+	findall(assertz(library_directory(D)), library_directory(D), Directories),
+	findall(consult(F), member(F,[IPFile|Files]), Consults),
+	append(Directories,Consults,Loads),
+	append(Loads,[interprolog:ipLoadLearnedObjects(LearnedObjects), qsave_program(State,[stand_alone(true)]), halt],Goals),
+	open(Script,write,S),
+	forall(member(G,Goals), (writeq(S,G), write(S,'.'), nl(S))),
+	close(S).
+
 atomRead(Atom,Term) :- catch(atom_to_term(Atom,Term,_),_E,Term=end_of_file).
 
 reset_dcg_mode. % do nothing, only necessary in SWI Prolog
@@ -65,9 +110,128 @@ interprolog_callback(_Length,_Bytes,_NewBytes) :- true. % needs to invoke the "I
 
 supportsExceptions.
 
+:- use_module(library(time)).
+
+% ipCallWithTimeLimit(Seconds,Goal): calls Goal once, raising interprolog_timeout if it takes longer, cf. SWIPeer.timeLimitedGoal
+ipCallWithTimeLimit(Seconds,G) :-
+	catch(call_with_time_limit(Seconds,G), time_limit_exceeded, throw(interprolog_timeout)).
+
 get_ip_exception_description(E, E).
 
 
+/*** Compact binary wire format, cf. com.declarativa.interprolog.util.BinaryTermCodec ***/
+
+:- use_module(library(utf8)).
+:- use_module(library(assoc)).
+
+:- dynamic(ipWireFormat/1).
+
+% ipNegotiateWireFormat(+Format): tlv1 or serialization, for messages sent to Java; messages from Java are recognized by their first byte
+ipNegotiateWireFormat(Format) :- memberchk(Format,[tlv1,serialization]),
+	retractall(ipWireFormat(_)), assert(ipWireFormat(Format)).
+
+% ipEncodeMessage(+Object,-Bytes): Object is a ResultFromProlog or MessageFromProlog specification;
+% objects the binary format does not cover are serialized as usual
+ipEncodeMessage(Object,[0'T,1,L3,L2,L1,L0|Bytes]) :- ipWireFormat(tlv1),
+	empty_assoc(Atoms), phrase(ipTLVWriteMessage(Object,t(0,Atoms),_),Bytes), !,
+	length(Bytes,L), phrase(ipTLVWriteInt(L),[L3,L2,L1,L0]).
+ipEncodeMessage(Object,Bytes) :- ipStreamMessage(Object,Bytes).
+
+% ipDecodeMessage(+Bytes,-Object)
+ipDecodeMessage([0'T,1|Bytes],Object) :- !,
+	empty_assoc(Atoms), phrase(ipTLVReadMessage(Object,t(0,Atoms),_),Bytes).
+ipDecodeMessage(Bytes,Object) :- ipStreamMessage(Object,Bytes).
+
+% The atom table t(Count,Assoc) maps atoms to their indexes when writing, and indexes to atoms when reading.
+% Objects are built and dissected with ipObjectSpec, so their specifications are the same as with serialization.
+
+ipTLVReadMessage(Object,S0,S) --> [0'G], !, ipTLVReadInt(T), ipTLVReadAtom(G,S0,S1), ipTLVReadValues(Objects,S1,S),
+	{ipObjectSpec('GoalFromJava',Object,[T,G,Objects],_)}.
+ipTLVReadMessage(Object,S0,S) --> [0'J], ipTLVReadInt(T), ipTLVReadValue(Result,S0,S1), ipTLVReadValue(Exception,S1,S2), 
+	ipTLVReadValues(Arguments,S2,S),
+	{ipObjectSpec('ResultFromJava',Object,[T,Arguments,Exception,Result],_)}.
+
+ipTLVReadValues(Values,S0,S) --> ipTLVReadInt(N), ipTLVReadValues(N,Values,S0,S).
+
+ipTLVReadValues(0,[],S,S) --> !.
+ipTLVReadValues(N,[V|Values],S0,S) --> ipTLVReadValue(V,S0,S1), {N1 is N-1}, ipTLVReadValues(N1,Values,S1,S).
+
+ipTLVReadValue(V,S0,S) --> [Tag], ipTLVReadValue(Tag,V,S0,S).
+
+ipTLVReadValue(0'N,null,S,S) --> !.
+ipTLVReadValue(0'S,string(A),S0,S) --> !, ipTLVReadNewAtom(A,S0,S).
+ipTLVReadValue(0'A,string(A),S,S) --> !, ipTLVReadAtomRef(A,S).
+ipTLVReadValue(0'I,O,S,S) --> !, ipTLVReadInt(N), {ipObjectSpec('java.lang.Integer',O,[N],_)}.
+ipTLVReadValue(0'F,O,S,S) --> !, [L], ipTLVBytes(L,Codes), {number_codes(X,Codes), ipObjectSpec('java.lang.Float',O,[X],_)}.
+ipTLVReadValue(0'Z,O,S,S) --> !, [B], {ipObjectSpec('java.lang.Boolean',O,[B],_)}.
+ipTLVReadValue(0'V,O,S,S) --> !, ipTLVReadInt(ID), {ipObjectSpec('InvisibleObject',O,[ID],_)}.
+ipTLVReadValue(0'C,O,S0,S) --> !, ipTLVReadAtom(C,S0,S), {ipObjectSpec('IPClassObject',O,[C],_)}.
+ipTLVReadValue(0'K,O,S0,S) --> !, ipTLVReadAtom(C,S0,S1), ipTLVReadAtom(V,S1,S), {ipObjectSpec('IPClassVariable',O,[C,V],_)}.
+ipTLVReadValue(0'L,O,S0,S) --> !, ipTLVReadValues(L,S0,S), {ipObjectSpec('ArrayOfObject',L,O)}.
+ipTLVReadValue(0'T,O,S0,S) --> !, ipTLVReadValues(L,S0,S), {ipObjectSpec('ArrayOfTermModel',L,O)}.
+ipTLVReadValue(0'M,O,S0,S) --> !, [IsList], ipTLVReadValue(Node,S0,S1), ipTLVReadValue(Children,S1,S),
+	{ipObjectSpec('TermModel',O,[IsList,Children,Node],_)}.
+ipTLVReadValue(0'X,O,S,S) --> ipTLVReadInt(N), {ipObjectSpec('VariableNode',O,[N],_)}.
+
+ipTLVReadAtom(A,S0,S) --> [0'S], !, ipTLVReadNewAtom(A,S0,S).
+ipTLVReadAtom(A,S,S) --> [0'A], ipTLVReadAtomRef(A,S).
+
+ipTLVReadNewAtom(A,t(N,Atoms0),t(N1,Atoms)) --> ipTLVReadInt(L), ipTLVBytes(L,Bytes),
+	{phrase(utf8_codes(Codes),Bytes), atom_codes(A,Codes), put_assoc(N,Atoms0,A,Atoms), N1 is N+1}.
+
+ipTLVReadAtomRef(A,t(_,Atoms)) --> ipTLVReadInt(I), {get_assoc(I,Atoms,A)}.
+
+ipTLVReadInt(X) --> [B3,B2,B1,B0],
+	{X0 is (B3<<24) \/ (B2<<16) \/ (B1<<8) \/ B0, (X0 >= 0x80000000 -> X is X0-0x100000000 ; X = X0)}.
+
+% ipTLVBytes(+Length,?Bytes)
+ipTLVBytes(L,Bytes,S0,S) :- length(Bytes,L), append(Bytes,S,S0).
+
+ipTLVWriteMessage(Object,S0,S) --> {Object = object(class(Class,_,_),_)}, ipTLVWriteMessage(Class,Object,S0,S).
+
+ipTLVWriteMessage('com.declarativa.interprolog.util.ResultFromProlog',Object,S0,S) -->
+	{ipObjectSpec('ResultFromProlog',Object,[Succeeded,T,Error,RVars],_)},
+	[0'R], ipTLVWriteInt(T), [Succeeded], ipTLVWriteValue(Error,S0,S1), ipTLVWriteValues(RVars,S1,S).
+ipTLVWriteMessage('com.declarativa.interprolog.util.MessageFromProlog',Object,S0,S) -->
+	{ipObjectSpec('MessageFromProlog',Object,[ReturnArgs,T,Arguments,Name,Target],_)},
+	[0'P], ipTLVWriteInt(T), [ReturnArgs], ipTLVWriteValue(Target,S0,S1), ipTLVWriteAtom(Name,S1,S2), 
+	ipTLVWriteValues(Arguments,S2,S).
+
+ipTLVWriteValues(Values,S0,S) --> {length(Values,N)}, ipTLVWriteInt(N), ipTLVWriteValueList(Values,S0,S).
+
+ipTLVWriteValueList([],S,S) --> [].
+ipTLVWriteValueList([V|Values],S0,S) --> ipTLVWriteValue(V,S0,S1), ipTLVWriteValueList(Values,S1,S).
+
+ipTLVWriteValue(V,_,_) --> {var(V)}, !, {fail}.
+ipTLVWriteValue(null,S,S) --> !, [0'N].
+ipTLVWriteValue(string(A),S0,S) --> !, ipTLVWriteAtom(A,S0,S).
+ipTLVWriteValue(arrayObject(class('[Ljava.lang.Object;',_,_),L),S0,S) --> !, [0'L], ipTLVWriteValues(L,S0,S).
+ipTLVWriteValue(arrayObject(class('[Lcom.declarativa.interprolog.TermModel;',_,_),L),S0,S) --> !, [0'T], ipTLVWriteValues(L,S0,S).
+ipTLVWriteValue(O,S0,S) --> {O = object(class(Class,_,_),_)}, ipTLVWriteObject(Class,O,S0,S).
+
+ipTLVWriteObject('java.lang.Integer',O,S,S) --> {ipObjectSpec('java.lang.Integer',O,[N],_)}, [0'I], ipTLVWriteInt(N).
+ipTLVWriteObject('java.lang.Float',O,S,S) --> {ipObjectSpec('java.lang.Float',O,[X],_), number_codes(X,Codes), length(Codes,L)},
+	[0'F,L], ipTLVBytes(L,Codes).
+ipTLVWriteObject('java.lang.Boolean',O,S,S) --> {ipObjectSpec('java.lang.Boolean',O,[B],_)}, [0'Z,B].
+ipTLVWriteObject('com.declarativa.interprolog.util.InvisibleObject',O,S,S) --> 
+	{ipObjectSpec('InvisibleObject',O,[ID],_)}, [0'V], ipTLVWriteInt(ID).
+ipTLVWriteObject('com.declarativa.interprolog.util.IPClassObject',O,S0,S) --> 
+	{ipObjectSpec('IPClassObject',O,[C],_)}, [0'C], ipTLVWriteAtom(C,S0,S).
+ipTLVWriteObject('com.declarativa.interprolog.util.IPClassVariable',O,S0,S) --> 
+	{ipObjectSpec('IPClassVariable',O,[C,V],_)}, [0'K], ipTLVWriteAtom(C,S0,S1), ipTLVWriteAtom(V,S1,S).
+ipTLVWriteObject('com.declarativa.interprolog.TermModel',O,S0,S) -->
+	{ipObjectSpec('TermModel',O,[IsList,Children,Node],_)}, [0'M,IsList], ipTLVWriteValue(Node,S0,S1), ipTLVWriteValue(Children,S1,S).
+ipTLVWriteObject('com.declarativa.interprolog.util.VariableNode',O,S,S) --> 
+	{ipObjectSpec('VariableNode',O,[N],_)}, [0'X], ipTLVWriteInt(N).
+
+ipTLVWriteAtom(A,t(N,Atoms),t(N,Atoms)) --> {get_assoc(A,Atoms,I)}, !, [0'A], ipTLVWriteInt(I).
+ipTLVWriteAtom(A,t(N,Atoms0),t(N1,Atoms)) --> 
+	{atom(A), atom_codes(A,Codes), phrase(utf8_codes(Codes),Bytes), length(Bytes,L), put_assoc(A,Atoms0,N,Atoms), N1 is N+1},
+	[0'S], ipTLVWriteInt(L), ipTLVBytes(L,Bytes).
+
+ipTLVWriteInt(X) --> {B3 is (X>>24) /\ 255, B2 is (X>>16) /\ 255, B1 is (X>>8) /\ 255, B0 is X /\ 255}, [B3,B2,B1,B0].
+
+
 float_to_intrep(Sign,Power,Mantissa,Float) :-
 	(Float < 0.0
          ->     FloatA is - Float,
@@ -96,6 +260,91 @@ extractMantissa(N,Float,Rem,MantI,Mant) :-
 	).
 
 
+/*** Concurrent goals, cf. com.declarativa.interprolog.SubprocessEngine.setConcurrentGoals(int) ***/
+
+% The main thread reads all messages from Java (ipServeConcurrentGoals), passing goals to a queue served by worker threads, 
+% and javaMessage results to the worker waiting for each; workers write their messages to Java under the ipSocketOutput mutex.
+% When all workers are busy, e.g. waiting for javaMessages that call Prolog again, a goal gets a temporary worker of its own
+
+:- dynamic(ipConcurrentWorker/1).
+:- dynamic(ipCallbackWaiter/2).
+:- thread_local(ipInWorker/0).
+
+ipAtomically(G) :- with_mutex(ip_counters,G).
+
+% ipStartConcurrentGoals(+N)
+ipStartConcurrentGoals(N) :- integer(N), N>0, \+ ipConcurrentWorker(_),
+	message_queue_create(_,[alias(ipGoalQueue)]),
+	flag(ipIdleWorkers,_,0),
+	forall(between(1,N,_), (thread_create(ipGoalWorker,Id,[]), assertz(ipConcurrentWorker(Id)))).
+
+% Called with no goals pending; the main thread then returns to the top level
+ipStopConcurrentGoals :-
+	forall(ipConcurrentWorker(_), thread_send_message(ipGoalQueue,stop)),
+	forall(retract(ipConcurrentWorker(Id)), thread_join(Id,_)),
+	message_queue_destroy(ipGoalQueue).
+
+ipServeConcurrentGoals :-
+	ipsocketstreams(Input,Output),
+	readNSocketChars(4,Input,FourBytes),
+	int(Size,FourBytes,[]),
+	readNSocketChars(Size,Input,Bytes),
+	(ipDecodeMessage(Bytes,Message) -> true ; ipUndecodableMessage(Bytes,Message)),
+	!,
+	(	Message = undecodable(T) ->
+		specifyPrologResult(T,0,[],Result,string('Could not understand objects sent from Java')), ipEncodeMessage(Result,ResultBytes),
+		with_mutex(ipSocketOutput,writeAllSocketChars(ResultBytes,Output)),
+		ipServeConcurrentGoals
+	;	extractResultParts(Message,T,_,_,_) ->
+		(retract(ipCallbackWaiter(T,Thread)) -> thread_send_message(Thread,ipCallbackResult(Bytes))
+		; ipProgressMessage('Nobody waiting for javaMessage result'-T)),
+		ipServeConcurrentGoals
+	;	extractGoalVars(Message,T,ipStopConcurrentGoals,_,_) ->
+		ipStopConcurrentGoals,
+		specifyPrologResult(T,1,[],Result,_), ipEncodeMessage(Result,ResultBytes),
+		with_mutex(ipSocketOutput,writeAllSocketChars(ResultBytes,Output))
+	;	thread_send_message(ipGoalQueue,goal(Message)),
+		message_queue_property(ipGoalQueue,size(Queued)), flag(ipIdleWorkers,Idle,Idle),
+		(Queued > Idle -> thread_create(ipTemporaryWorker,_,[detached(true)]) ; true),
+		ipServeConcurrentGoals
+	).
+
+% ipUndecodableMessage(+Bytes,-Message): the timestamp of a binary goal is at a fixed place in its frame;
+% otherwise it is -1, for which Java fails all pending goals, as nobody can tell whose message this was
+ipUndecodableMessage([0'T,1,0'G,B3,B2,B1,B0|_],undecodable(T)) :- !, phrase(ipTLVReadInt(T),[B3,B2,B1,B0]).
+ipUndecodableMessage(_,undecodable(-1)).
+
+ipGoalWorker :-
+	assert(ipInWorker),
+	repeat,
+	flag(ipIdleWorkers,I,I+1),
+	thread_get_message(ipGoalQueue,Message),
+	flag(ipIdleWorkers,J,J-1),
+	(Message==stop -> ! ; ipWorkerGoal(Message), fail).
+
+% Serves one goal, if no other worker took it meanwhile
+ipTemporaryWorker :-
+	assert(ipInWorker),
+	(thread_get_message(ipGoalQueue,Message,[timeout(0)]) ->
+		(Message==stop -> thread_send_message(ipGoalQueue,stop) ; ipWorkerGoal(Message))
+	; true).
+
+ipWorkerGoal(goal(Object)) :-
+	(extractGoalVars(Object,Timestamp,Goal,RVars,Error) -> true ; Timestamp = -1, Error=string('Could not understand objects sent from Java')),
+	handleDeterministicGoal(Goal,RVars,Error,Timestamp,NewBytes),
+	ipsocketstreams(_,Output),
+	with_mutex(ipSocketOutput,writeAllSocketChars(NewBytes,Output)),
+	!.
+ipWorkerGoal(Message) :- ipProgressMessage('Concurrent goal failed badly'-Message).
+
+% ipWorkerSendReceive(+Bytes,+Timestamp,-NewBytes): a javaMessage from a worker, whose result arrives through the thread's queue
+ipWorkerSendReceive(Bytes,Timestamp,NewBytes) :- ipInWorker,
+	thread_self(Me), assertz(ipCallbackWaiter(Timestamp,Me)),
+	ipsocketstreams(_,Output),
+	with_mutex(ipSocketOutput,writeAllSocketChars(Bytes,Output)),
+	thread_get_message(ipCallbackResult(NewBytes)).
+
+
 /*** GENERIC STUFF - SAME FOR ALL SUPPORTED PROLOGS ***/
 
 handle_ip_exception(Exception, ExceptionModel):-
@@ -127,15 +376,17 @@ ipPeekTerminal(T,[T|L],[T|L]).
 
 /****** Socket Utilities ******/
 
-readNSocketChars(0,_,[]) :- !.
-readNSocketChars(N,S,[C|Cn]) :- socket_get0(S,C), NN is N-1, readNSocketChars(NN,S,Cn).
-
-writeAllSocketChars_([],_).
-writeAllSocketChars_([C|More],S) :- socket_put(S,C), writeAllSocketChars_(More,S).
+% readNSocketChars(+N,+Stream,-Bytes) and writeAllSocketChars(+Bytes,+Stream) are Prolog dependent, see above
 
 
 /****** Initialization ******/
 
+% ipinitialize(Host,Sport,EngineID,Debug,LearnedObjects): LearnedObjects is a file saved by ipSaveLearnedObjects/2
+% for the same startup examples, which Java then does not send; or snapshot, if Prolog was started from a saved state that has them
+ipinitialize(Host,Sport,EngineID,Debug,LearnedObjects) :-
+	asserta(ipLearnedObjectsFile(LearnedObjects)),
+	ipinitialize(Host,Sport,EngineID,Debug).
+
 ipinitialize(Host,Sport,EngineID,Debug) :-
 	(Debug=true->asserta(ipIsDebugging);true),
 	ipinitsockets(Host,Sport),
@@ -148,8 +399,14 @@ ipinitialize(Host,Sport,EngineID,Debug) :-
 :- dynamic(ipinterruptsocketstreams/2).
 :- dynamic(ipObjectSpec/4).
 :- dynamic(ipObjectTemplate/5).
+:- dynamic(ipLearnedObjectsFile/1).
 
-% Fetches all examples available from the callback socket
+% Fetches all examples available from the callback socket, unless their facts were cached
+ipLearnExamples :- retract(ipLearnedObjectsFile(File)), !,
+	(File==snapshot -> true ; 
+		ipLoadLearnedObjects(File),
+		ipProgressMessage('Loaded ipObjectXXX facts'-File)
+	).
 ipLearnExamples :-
 	ipsocketstreams(Input,_Output),
 	ipProgressMessage('Reading four bytes'),
@@ -213,6 +470,42 @@ ipWholeTerm(double(_,_,_,_,_,_,_,_)).
 
 ipIsObjectReference(object(class('com.declarativa.interprolog.util.InvisibleObject',_,_),_)).
 
+% ipReleaseObjects(+Objects): Prolog no longer references these objects, InvisibleObject specifications or their integer IDs,
+% so that a weak object registry (cf. AbstractPrologEngine.setWeakObjectRegistry) may forget them
+ipReleaseObjects(Objects) :-
+	ipReleasedIDs(Objects,IDs),
+	ipObjectSpec('ArrayOfObject',IDs,Array),
+	ipPrologEngine(E), javaMessage(E,releaseJavaObjects(Array)).
+
+ipReleasedIDs([],[]).
+ipReleasedIDs([O|Objects],[I|IDs]) :-
+	(integer(O) -> ID=O ; ipObjectSpec('InvisibleObject',O,[ID],_)),
+	ipObjectSpec('java.lang.Integer',I,[ID],_),
+	ipReleasedIDs(Objects,IDs).
+
+/****** Cache of the facts learned from examples, cf. AbstractPrologEngine.setLearnedObjectsCache ******/
+
+% ipSaveLearnedObjects(+File,+Names): writes the ipObjectSpec/4 and ipObjectTemplate/5 facts for the example names in list Names, 
+% or for all if Names is all
+ipSaveLearnedObjects(File,Names) :-
+	open(File,write,S),
+	(ipObjectSpec(N,G,V,E), ipLearnedName(N,Names), writeq(S,ipObjectSpec(N,G,V,E)), write(S,'.'), nl(S), fail ; true),
+	(ipObjectTemplate(N,T,A,V,TS), ipLearnedName(N,Names), writeq(S,ipObjectTemplate(N,T,A,V,TS)), write(S,'.'), nl(S), fail ; true),
+	close(S).
+
+ipLearnedName(_,all) :- !.
+ipLearnedName(N,[N|_]) :- !.
+ipLearnedName(N,[_|Names]) :- ipLearnedName(N,Names).
+
+% ipLoadLearnedObjects(+File)
+ipLoadLearnedObjects(File) :-
+	open(File,read,S),
+	repeat,
+		read(S,Fact),
+		(Fact==end_of_file -> ! 
+		; (Fact=ipObjectSpec(_,_,_,_) ; Fact=ipObjectTemplate(_,_,_,_,_)), assertz(Fact), fail),
+	close(S).
+
 /****** Support for Prolog -> Java goal calls (callbacks) ******/
 
 % javaMessage, non-sugared version
@@ -221,13 +514,13 @@ javaMessage(Target,Result,Exception,MessageName,ArgList,ReturnArgs,NewArgList) :
 	(atom(MessageName) -> true ; write('*** MessageName must be an atom'), fail),
 	ip_inc_jm_counter(Timestamp),
 	specifyJavaCallback(ReturnArgs,Timestamp,Target,MessageName,ArgList,MessageFromProlog),
-	( streamContents([MessageFromProlog],handles(_,_),Bytes,[]) -> true
-	; write('*** streamContents failed'),nl, fail),
+	( ipEncodeMessage(MessageFromProlog,Bytes) -> true
+	; write('*** ipEncodeMessage failed'),nl, fail),
 	javaMessage2(Bytes,Timestamp,Result,Exception,NewArgList).
 
 javaMessage2(Bytes,Timestamp,Result,Exception,NewArgList):-
-	interprologSendReceive(Bytes,ResultBytes),
-	streamContents([Contents],_,ResultBytes,[]), !,
+	(ipWorkerSendReceive(Bytes,Timestamp,ResultBytes) -> true ; interprologSendReceive(Bytes,ResultBytes)),
+	ipDecodeMessage(ResultBytes,Contents), !,
 	handleCallbackResult(Contents,Timestamp,Result,Exception,NewArgList).
 
 interprologSendReceive(Bytes, NewBytes) :-
@@ -266,7 +559,7 @@ extractResultParts(ResultFromJava,Timestamp,Result,Exception,Arguments) :-
 :- initialization(asserta(ip_jm_counter(1))).
 
 % To make sure we number Prolog variables uniquely in a XJ session
-ip_inc_jm_counter(N) :- retract(ip_jm_counter(N)), !,  N1 is N+1, asserta(ip_jm_counter(N1)).
+ip_inc_jm_counter(N) :- ipAtomically((retract(ip_jm_counter(N)), !,  N1 is N+1, asserta(ip_jm_counter(N1)))).
 
 
 
@@ -323,8 +616,18 @@ mayPrepareGoalBindings(RVars,G,RVars,G).
 
 handleDeterministicGoal(_Goal,_RVars,Error,Timestamp,NewBytes) :- nonvar(Error), !,
 	specifyPrologResult(Timestamp,0,[],Result,Error),
-	streamContents([Result],_,NewBytes,[]).
+	ipEncodeMessage(Result,NewBytes).
 handleDeterministicGoal(Goal,RVars,Error,Timestamp,NewBytes)  :-
+	callDeterministicGoal(Goal,RVars,Timestamp,Result,Error2),
+	(	ipEncodeMessage(Result,NewBytes) ->
+		Error2=Error
+		;
+		Error = string('IP grammar failure, probably bad object specification'),
+		specifyPrologResult(Timestamp,0,[],Result2,Error), ipEncodeMessage(Result2,NewBytes)) .
+
+% callDeterministicGoal(Goal,RVars,Timestamp,Result,Error)
+% Calls Goal once, catching its failure or exception, and specifies its ResultFromProlog
+callDeterministicGoal(Goal,RVars,Timestamp,Result,Error2) :-
 	mayPrepareGoalBindings(RVars,Goal,RVars2,Goal2),
 	ipProgressMessage('Calling dg '-Goal2),
 	%( call(Goal2) -> Succeeded=1, NewRVars=RVars2 ; Succeeded=0, NewRVars=[]),
@@ -337,11 +640,7 @@ handleDeterministicGoal(Goal,RVars,Error,Timestamp,NewBytes)  :-
 		( call(Goal2) -> Succeeded=1, NewRVars=RVars2 ; Succeeded=0, NewRVars=[]), Error2=_
 	),
 	ipProgressMessage(dg_result-Goal2-Succeeded/PE),
-	(	specifyPrologResult(Timestamp,Succeeded,NewRVars,Result,Error2), streamContents([Result],_,NewBytes,[]) ->
-		Error2=Error
-		;
-		Error = string('IP grammar failure, probably bad object specification'),
-		specifyPrologResult(Timestamp,0,[],Result,Error), streamContents([Result],_,NewBytes,[])) .
+	specifyPrologResult(Timestamp,Succeeded,NewRVars,Result,Error2).
 
 
 % The next clauses must be kept in sync with the corresponding Java Classes:
@@ -360,6 +659,49 @@ specifyPrologResult(Timestamp,_Succeeded,_RVars,Result,Error) :- var(Error),
 	ipObjectSpec('ResultFromProlog',Result,[0,Timestamp,string('Bad specification of result bindings'),[]],_).
 
 
+/****** Support for batches of deterministicGoals, cf. AbstractPrologEngine.deterministicGoals ******/
+
+% ipDeterministicGoals(GoalsFromJava,ResultsFromProlog)
+% Each goal is called as by deterministicGoal, its failure or exception affecting only its own result
+ipDeterministicGoals([],[]).
+ipDeterministicGoals([Object|Objects],[Result|Results]) :-
+	(extractGoalVars(Object,Timestamp,Goal,RVars,Error) -> true ; Timestamp=0, Error=string('Bad goal in batch')),
+	(nonvar(Error) -> specifyPrologResult(Timestamp,0,[],Result,Error)
+		; callDeterministicGoal(Goal,RVars,Timestamp,Result,_)),
+	!, ipDeterministicGoals(Objects,Results).
+
+
+/****** Support for nondeterministicGoal, solutions streamed in chunks to a Java SolutionIterator ******/
+
+:- dynamic(ipSolutionBuffer/2).
+:- dynamic(ipSolutionCount/2).
+
+% ipStreamSolutions(Cursor,Goal,RVars,ChunkSize)
+% Cursor is the registered ID of the SolutionIterator; each chunk of ChunkSize solutions is sent to it while Goal's
+% choice point is kept, and backtracking stops when the iterator is closed
+ipStreamSolutions(Cursor,G,RVars,ChunkSize) :-
+	mayPrepareGoalBindings(RVars,G,RVars2,G2),
+	retractall(ipSolutionBuffer(Cursor,_)), retractall(ipSolutionCount(Cursor,_)),
+	assert(ipSolutionCount(Cursor,0)),
+	( call(G2), ipBufferSolution(Cursor,RVars2,ChunkSize,Continue), Continue==0 -> true
+	; ipFlushSolutions(Cursor,1,_) ),
+	retractall(ipSolutionBuffer(Cursor,_)), retractall(ipSolutionCount(Cursor,_)).
+
+ipBufferSolution(Cursor,RVars,ChunkSize,Continue) :-
+	assertz(ipSolutionBuffer(Cursor,RVars)),
+	retract(ipSolutionCount(Cursor,N)), N1 is N+1,
+	(N1 >= ChunkSize -> assert(ipSolutionCount(Cursor,0)), ipFlushSolutions(Cursor,0,Continue)
+	; assert(ipSolutionCount(Cursor,N1)), Continue=1).
+
+% ipFlushSolutions(Cursor,Last,Continue)
+ipFlushSolutions(Cursor,Last,Continue) :-
+	findall(Solution, (retract(ipSolutionBuffer(Cursor,RVars)), ipObjectSpec('ArrayOfObject',RVars,Solution)), Solutions),
+	ipObjectSpec('ArrayOfObject',Solutions,Chunk),
+	ipObjectSpec(int,LastSpec,[Last],_),
+	(javaMessage(Cursor,R,addSolutions(Chunk,LastSpec)) -> ipObjectSpec('java.lang.Integer',R,[Continue],_)
+	; Continue=0).
+
+
 /****** Support for Java -> Prolog TOP deterministicGoal over sockets ******/
 
 deterministicGoal :-
@@ -369,7 +711,7 @@ deterministicGoal :-
    int(Size,FourBytes,[]), % stick to our grammar...
    readNSocketChars(Size,Input,Bytes),
    % tell('lastBytes.txt'),write(Bytes),nl,told,
-   (streamContents([Contents],_,Bytes,[]) -> extractGoalVars(Contents,NewTimestamp,Goal,RVars,Error) ; Error=string('Could not understand objects sent from Java')),
+   (ipDecodeMessage(Bytes,Contents) -> extractGoalVars(Contents,NewTimestamp,Goal,RVars,Error) ; Error=string('Could not understand objects sent from Java')),
    handleDeterministicGoal(Goal,RVars,Error,NewTimestamp,NewBytes),
    writeAllSocketChars(NewBytes,Output),
    ipProgressMessage('Exiting deterministicGoal '-Goal).
@@ -429,7 +771,7 @@ buildTermModelArray(T,ArrayModel) :-
 :- initialization(asserta(ip_var_counter(0))).
 
 % To make sure we number Prolog variables uniquely in a XJ session
-ip_inc_var_counter(N) :- retract(ip_var_counter(N)), !,  N1 is N+1, asserta(ip_var_counter(N1)).
+ip_inc_var_counter(N) :- ipAtomically((retract(ip_var_counter(N)), !,  N1 is N+1, asserta(ip_var_counter(N1)))).
 
 
 
@@ -556,6 +898,69 @@ streamContents(C,Handles,Bytes0,Bytes) :- ipIsDebugging,
 streamContents0(C,Handles) -->
 	magic, streamversion, contents(C,handles(-1,[]),Handles), !.
 
+% Session streams: once agreed with Java (cf. SubprocessEngine.setSessionStreams), serialized messages in each direction
+% belong to a single stream, whose header (with version 'IP' rather than 5) comes only with its first message; each message starts 
+% with a reset, and each class descriptor is sent in full only once, later as an index (cf. PrologSessionOutputStream.java)
+
+:- dynamic(ipSessionStreams/1). % new (the next message to Java starts a stream) or started
+:- dynamic(ipSessionDescriptors/1). % in or out, while parsing or generating a session message
+:- dynamic(ipSessionClassIn/5). % Index,Name,VUID,Fields,Flags of a descriptor received from Java
+:- dynamic(ipSessionKnownIn/1). % Name of a descriptor received from Java
+:- dynamic(ipSessionClassOut/2). % Name,Index of a descriptor sent to Java
+
+ipNegotiateSessionStreams(true) :- retractall(ipSessionStreams(_)), assert(ipSessionStreams(new)).
+ipNegotiateSessionStreams(false) :- retractall(ipSessionStreams(_)).
+
+% ipStreamMessage(?Object,?Bytes): Bytes, without the size prefix, serialize Object; 
+% messages to Java go in the session stream if there is one, messages from Java say themselves which stream they belong to
+ipStreamMessage(Object,Bytes) :- nonvar(Bytes), !, ipParseMessage(Bytes,Object).
+ipStreamMessage(Object,Bytes) :- ipSessionStreams(State), ipGenerateSessionMessage(State,Object,Bytes), !.
+ipStreamMessage(Object,Bytes) :- streamContents([Object],_,Bytes,[]).
+
+ipParseMessage([172,237,73,80|Bytes],Object) :- !,
+	retractall(ipSessionClassIn(_,_,_,_,_)), retractall(ipSessionKnownIn(_)),
+	ipSessionContents(in,Object,Bytes).
+ipParseMessage([121|Bytes],Object) :- !, ipSessionContents(in,Object,[121|Bytes]).
+ipParseMessage(Bytes,Object) :- streamContents([Object],_,Bytes,[]).
+
+ipGenerateSessionMessage(new,Object,[172,237,73,80|Bytes]) :-
+	retractall(ipSessionClassOut(_,_)),
+	ipSessionContents(out,Object,Bytes),
+	retractall(ipSessionStreams(_)), assert(ipSessionStreams(started)).
+ipGenerateSessionMessage(started,Object,Bytes) :- ipSessionContents(out,Object,Bytes).
+
+ipSessionContents(Direction,Object,Bytes) :-
+	reset_dcg_mode,
+	asserta(ipSessionDescriptors(Direction)),
+	(sessionContents(Object,Bytes,[]) -> retract(ipSessionDescriptors(Direction)) 
+	; retract(ipSessionDescriptors(Direction)), fail),
+	ipLearnSessionClasses(Object,Direction).
+
+sessionContents(C) --> tC_RESET, contents([C],handles(-1,[]),_), !.
+
+% ipLearnSessionClasses(+Object,+Direction): indexes the descriptors not known yet, in the order they were serialized
+ipLearnSessionClasses(X,_) :- var(X), !.
+ipLearnSessionClasses(class(Name,VUID,classDescInfo(Fields,Flags,Super)),Direction) :- !,
+	(ipSessionKnownClass(Direction,Name) -> true
+	; ipSessionAddClass(Direction,Name,VUID,Fields,Flags), ipLearnSessionClasses(Super,Direction)).
+ipLearnSessionClasses(X,Direction) :- compound(X), !, X =.. [_|Args], ipLearnSessionClassesList(Args,Direction).
+ipLearnSessionClasses(_,_).
+
+ipLearnSessionClassesList([],_).
+ipLearnSessionClassesList([X],Direction) :- !, ipLearnSessionClasses(X,Direction). % last call, for long lists
+ipLearnSessionClassesList([X|Xs],Direction) :- 
+	ipLearnSessionClasses(X,Direction), ipLearnSessionClassesList(Xs,Direction).
+
+ipSessionKnownClass(in,Name) :- ipSessionKnownIn(Name).
+ipSessionKnownClass(out,Name) :- ipSessionClassOut(Name,_).
+
+ipSessionAddClass(in,Name,VUID,Fields,Flags) :-
+	findall(I,ipSessionClassIn(I,_,_,_,_),L), length(L,N),
+	assert(ipSessionClassIn(N,Name,VUID,Fields,Flags)), assert(ipSessionKnownIn(Name)).
+ipSessionAddClass(out,Name,_,_,_) :-
+	findall(I,ipSessionClassOut(_,I),L), length(L,N),
+	assert(ipSessionClassOut(Name,N)).
+
 % Slightly different recursion pattern at the top level:
 contents([C|More],H1,Hn) --> content(C,H1,H2), moreContents(More,H2,Hn).
 
@@ -584,16 +989,31 @@ classDesc(D,H1,Hn) --> newClassDesc(D,H1,Hn).
 
 superClassDesc(D,H1,Hn) --> classDesc(D,H1,Hn).
 
-newClassDesc(class(Name,VUID,Info),H1,Hn) -->
-	tC_CLASSDESC, className(Name,H1,H2),
+newClassDesc(D,H1,Hn) -->
+	tC_CLASSDESC, {ipSessionDescriptors(Direction)}, !, sessionClassDesc(Direction,D,H1,Hn).
+newClassDesc(D,H1,Hn) --> tC_CLASSDESC, fullClassDesc(D,H1,Hn).
+newClassDesc(_Class,H,H) -->
+      tC_PROXYCLASSDESC, { /* ipProgressMessage('Not handling proxy class descriptions'),*/ fail}.
+
+fullClassDesc(class(Name,VUID,Info),H1,Hn) -->
+	className(Name,H1,H2),
 	% {ipProgressMessage(newClassDesc-Name)},
 	% ipShowTerminalsIf(Name='[Ljava.lang.String;'),
 	serialVersionUID(VUID,H2,H3),
 	newHandle(class(Name,VUID,Info),H3,H4),
 	% {ipProgressMessageIf('added handle',Name=='[Ljava.lang.String;')},
 	classDescInfo(Info,H4,Hn).
-newClassDesc(_Class,H,H) -->
-      tC_PROXYCLASSDESC, { /* ipProgressMessage('Not handling proxy class descriptions'),*/ fail}.
+
+% In a session stream, a descriptor sent before is just its index after a 1 byte; others come in full after a 0 byte
+sessionClassDesc(in,class(Name,VUID,classDescInfo(Fields,Flags,Super)),H1,Hn) -->
+	[1], !, int(Index), {ipSessionClassIn(Index,Name,VUID,Fields,Flags)},
+	newHandle(class(Name,VUID,classDescInfo(Fields,Flags,Super)),H1,H2), 
+	classAnnotation(H2,H3), superClassDesc(Super,H3,Hn).
+sessionClassDesc(out,class(Name,VUID,classDescInfo(Fields,Flags,Super)),H1,Hn) -->
+	{ipSessionClassOut(Name,Index)}, !, [1], int(Index),
+	newHandle(class(Name,VUID,classDescInfo(Fields,Flags,Super)),H1,H2), 
+	classAnnotation(H2,H3), superClassDesc(Super,H3,Hn).
+sessionClassDesc(_,D,H1,Hn) --> [0], fullClassDesc(D,H1,Hn).
 
 classDescInfo(classDescInfo(Fields,Flags,Super),H1,Hn) -->
 	classDescFlags(Flags,H1,H2), fields(Fields,H2,H3), classAnnotation(H3,H4),
@@ -0,0 +1,274 @@
+/*** SWI foreign helper for the shared memory transport; for copyright information read top of com/declarativa/interprolog/xsb/interprolog.P ***/
+
+/* Maps the rings created by com.declarativa.interprolog.util.SharedMemoryChannel, whose comment describes the layout:
+   ring 0 carries messages from Java, ring 1 messages to Java. The AF_UNIX socket given to ip_shm_open/3 carries only 
+   wake up bytes, for a sleeping reader on either side. Build with:
+	swipl-ld -shared -o ipshm ipshm.c
+   and place the resulting library where use_foreign_library(foreign(ipshm)) finds it, e.g. in SWI's lib directory.
+   Without it, ipUseSharedMemory/1 in interprolog.pl declines and messages keep flowing through the socket. */
+
+#include <SWI-Prolog.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <fcntl.h>
+#include <unistd.h>
+#include <errno.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sched.h>
+
+#define IP_SHM_MAGIC	0x49505348
+#define IP_SHM_VERSION	1
+#define HEADER		64
+#define CONTROL		192
+#define TAIL		0
+#define HEAD		64
+#define SLEEPING	128
+#define DATA		512
+#define SPINS		20000
+
+typedef struct
+{ volatile uint32_t *tail;
+  volatile uint32_t *head;
+  volatile int32_t *sleeping;
+  unsigned char *data;
+} ring;
+
+typedef struct
+{ void *base;
+  size_t size;
+  uint32_t capacity;
+  int doorbell;
+  int spins;				/* polls before sleeping, none on a single processor */
+  ring in;				/* ring 0, from Java */
+  ring out;				/* ring 1, to Java */
+} shm_channel;
+
+#define LOAD(p)		__atomic_load_n((p), __ATOMIC_SEQ_CST)
+#define STORE(p,v)	__atomic_store_n((p), (v), __ATOMIC_SEQ_CST)
+
+static void
+init_ring(shm_channel *ch, ring *r, int n)
+{ char *control = (char*)ch->base + HEADER + n*CONTROL;
+
+  r->tail     = (volatile uint32_t*)(control+TAIL);
+  r->head     = (volatile uint32_t*)(control+HEAD);
+  r->sleeping = (volatile int32_t*)(control+SLEEPING);
+  r->data     = (unsigned char*)ch->base + DATA + (size_t)n*ch->capacity;
+}
+
+static shm_channel *
+shm_open_channel(const char *file, int doorbell)
+{ int fd = open(file, O_RDWR);
+  struct stat st;
+  shm_channel *ch;
+  uint32_t *header;
+
+  if ( fd < 0 )
+    return NULL;
+  if ( fstat(fd, &st) < 0 || st.st_size < DATA )
+  { close(fd);
+    return NULL;
+  }
+  if ( !(ch = calloc(1, sizeof(*ch))) )
+  { close(fd);
+    return NULL;
+  }
+  ch->size = st.st_size;
+  ch->base = mmap(NULL, ch->size, PROT_READ|PROT_WRITE, MAP_SHARED, fd, 0);
+  close(fd);				/* the mapping stays valid */
+  if ( ch->base == MAP_FAILED )
+  { free(ch);
+    return NULL;
+  }
+  header = ch->base;
+  ch->capacity = header[2];
+  if ( LOAD(&header[0]) != IP_SHM_MAGIC || header[1] != IP_SHM_VERSION ||
+       ch->capacity == 0 || (ch->capacity & (ch->capacity-1)) != 0 ||
+       DATA + 2*(size_t)ch->capacity > ch->size )
+  { munmap(ch->base, ch->size);
+    free(ch);
+    return NULL;
+  }
+  ch->doorbell = doorbell;
+  ch->spins = sysconf(_SC_NPROCESSORS_ONLN) > 1 ? SPINS : 0;
+  init_ring(ch, &ch->in, 0);
+  init_ring(ch, &ch->out, 1);
+  return ch;
+}
+
+static void
+cpu_relax(void)
+{
+#if defined(__x86_64__) || defined(__i386__)
+  __builtin_ia32_pause();
+#endif
+}
+
+/* Blocks for a wake up byte; returns FALSE at end of file or on error */
+static int
+wait_doorbell(shm_channel *ch)
+{ char b;
+
+  for(;;)
+  { ssize_t n = read(ch->doorbell, &b, 1);
+
+    if ( n == 1 )
+      return TRUE;
+    if ( n < 0 && errno == EINTR )
+    { if ( PL_handle_signals() < 0 )
+	return FALSE;
+      continue;
+    }
+    return FALSE;
+  }
+}
+
+static void
+ring_doorbell(shm_channel *ch)
+{ char b = 1;
+
+  while ( write(ch->doorbell, &b, 1) < 0 && errno == EINTR )
+    ;
+}
+
+/* Waits for bytes in the ring: spins first, then flags itself as sleeping and rechecks before blocking */
+static uint32_t
+wait_for_data(shm_channel *ch, ring *r, uint32_t head)
+{ uint32_t available;
+  int spins = 0;
+
+  while ( (available = LOAD(r->tail) - head) == 0 )
+  { if ( spins++ < ch->spins )
+    { cpu_relax();
+      continue;
+    }
+    STORE(r->sleeping, 1);
+    if ( (available = LOAD(r->tail) - head) != 0 )
+    { STORE(r->sleeping, 0);
+      break;
+    }
+    if ( !wait_doorbell(ch) )
+    { STORE(r->sleeping, 0);
+      return 0;
+    }
+    STORE(r->sleeping, 0);
+    spins = 0;
+  }
+  return available;
+}
+
+static int
+shm_read(shm_channel *ch, unsigned char *buf, size_t n)
+{ ring *r = &ch->in;
+  size_t got = 0;
+
+  while ( got < n )
+  { uint32_t head = *r->head;
+    uint32_t available = wait_for_data(ch, r, head);
+    uint32_t offset = head & (ch->capacity-1);
+    size_t chunk = n-got;
+
+    if ( available == 0 )
+      return FALSE;
+    if ( chunk > available )
+      chunk = available;
+    if ( chunk > ch->capacity-offset )
+      chunk = ch->capacity-offset;
+    memcpy(buf+got, r->data+offset, chunk);
+    got += chunk;
+    STORE(r->head, head+(uint32_t)chunk);
+  }
+  return TRUE;
+}
+
+static int
+shm_write(shm_channel *ch, const unsigned char *buf, size_t n)
+{ ring *r = &ch->out;
+  size_t sent = 0;
+
+  while ( sent < n )
+  { uint32_t tail = *r->tail;
+    uint32_t free_bytes;
+    uint32_t offset = tail & (ch->capacity-1);
+    size_t chunk = n-sent;
+
+    while ( (free_bytes = ch->capacity - (tail - LOAD(r->head))) == 0 )
+    { if ( PL_handle_signals() < 0 )	/* the reader never sleeps on a full ring */
+	return FALSE;
+      sched_yield();
+    }
+    if ( chunk > free_bytes )
+      chunk = free_bytes;
+    if ( chunk > ch->capacity-offset )
+      chunk = ch->capacity-offset;
+    memcpy(r->data+offset, buf+sent, chunk);
+    sent += chunk;
+    STORE(r->tail, tail+(uint32_t)chunk);
+    if ( LOAD(r->sleeping) )		/* the reader may have fallen asleep before this chunk */
+      ring_doorbell(ch);
+  }
+  return TRUE;
+}
+
+static int
+get_channel(term_t t, shm_channel **ch)
+{ int64_t p;
+
+  if ( !PL_get_int64_ex(t, &p) )
+    return FALSE;
+  *ch = (shm_channel*)(intptr_t)p;
+  return TRUE;
+}
+
+/* ip_shm_open(+File,+DoorbellFd,-Handle) */
+static foreign_t
+ip_shm_open(term_t file, term_t fd, term_t handle)
+{ char *path;
+  int doorbell;
+  shm_channel *ch;
+
+  if ( !PL_get_file_name(file, &path, 0) || !PL_get_integer_ex(fd, &doorbell) )
+    return FALSE;
+  if ( !(ch = shm_open_channel(path, doorbell)) )
+    return PL_warning("ip_shm_open/3: could not map %s", path);
+  return PL_unify_int64(handle, (int64_t)(intptr_t)ch);
+}
+
+/* ip_shm_read(+Handle,+N,-Bytes) */
+static foreign_t
+ip_shm_read(term_t handle, term_t n, term_t bytes)
+{ shm_channel *ch;
+  size_t len;
+  unsigned char *buf;
+  int rc;
+
+  if ( !get_channel(handle, &ch) || !PL_get_size_ex(n, &len) )
+    return FALSE;
+  if ( !(buf = malloc(len ? len : 1)) )
+    return PL_resource_error("memory");
+  rc = shm_read(ch, buf, len) && PL_unify_list_ncodes(bytes, len, (char*)buf);
+  free(buf);
+  return rc;
+}
+
+/* ip_shm_write(+Handle,+Bytes) */
+static foreign_t
+ip_shm_write(term_t handle, term_t bytes)
+{ shm_channel *ch;
+  size_t len;
+  char *s;
+
+  if ( !get_channel(handle, &ch) ||
+       !PL_get_nchars(bytes, &len, &s, CVT_LIST|REP_ISO_LATIN_1|CVT_EXCEPTION) )
+    return FALSE;
+  return shm_write(ch, (unsigned char*)s, len);
+}
+
+install_t
+install_ipshm(void)
+{ PL_register_foreign("ip_shm_open", 3, ip_shm_open, 0);
+  PL_register_foreign("ip_shm_read", 3, ip_shm_read, 0);
+  PL_register_foreign("ip_shm_write", 2, ip_shm_write, 0);
+}
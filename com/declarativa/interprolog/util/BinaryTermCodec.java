@@ -0,0 +1,299 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import com.declarativa.interprolog.Term;
+import com.declarativa.interprolog.TermModel;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Compact tag-length-value alternative to Java serialization for the messages exchanged with Prolog
+(GoalFromJava, ResultFromProlog, MessageFromProlog, ResultFromJava) and the values they usually carry:
+null, String, Integer, Float, Boolean, InvisibleObject, IPClassObject, IPClassVariable, Object[], TermModel and TermModel[].
+Strings are interned in a per message table, so repeated functors in large TermModels are sent only once.
+A message containing anything else can not be encoded, and is sent serialized as before.
+Results of the goals whose timestamps the receiver asks for are decoded with Terms instead of TermModels, built directly.<p>
+An encoded message starts with the byte 'T' and a version byte, which never begin a serialization stream,
+so receivers recognize each message's format. Messages from Java are preceded by their size, as with serialization;
+messages from Prolog carry their size after the version byte.
+Integers are 4 byte big endian; floats are their decimal text, so that Prolog needs no bit arithmetic. TermModel nodes may also
+be Longs and Doubles, sent as decimal text too, so they reach Prolog exactly; in results decoded as Terms, floats are read as doubles.
+@see com.declarativa.interprolog.SubprocessEngine#setBinaryTerms(boolean)
+@see ipEncodeMessage/2 and ipDecodeMessage/2 in swi/interprolog.pl */
+public class BinaryTermCodec{
+	public static final byte MAGIC = 'T';
+	public static final byte VERSION = 1;
+
+	static final byte NULL='N', STRING='S', ATOM_REF='A', INTEGER='I', FLOAT='F', BOOLEAN='Z', INVISIBLE='V',
+		CLASS_OBJECT='C', CLASS_VARIABLE='K', OBJECT_ARRAY='L', TERMMODEL_ARRAY='T', TERMMODEL='M', VARIABLE='X';
+	static final byte GOAL='G', PROLOG_RESULT='R', PROLOG_MESSAGE='P', JAVA_RESULT='J';
+
+	/** Thrown internally when something can not be encoded */
+	static class Unencodable extends Exception{
+		private static final long serialVersionUID = 1L;
+		Unencodable(){super(null,null,false,false);}
+	}
+	private static final Unencodable UNENCODABLE = new Unencodable();
+
+	final DataOutputStream out;
+	final ByteArrayOutputStream bytes;
+	final HashMap<String,Integer> atoms;
+	final DataInputStream in;
+	final ArrayList<String> atomTable;
+	/** Timestamps of goals whose results carry Terms rather than TermModels, or null */
+	Set<Integer> compactResults = null;
+	/** TermModels being read become Terms */
+	boolean compact = false;
+
+	private BinaryTermCodec(){
+		bytes = new ByteArrayOutputStream(256);
+		out = new DataOutputStream(bytes);
+		atoms = new HashMap<String,Integer>();
+		in = null; atomTable = null;
+	}
+
+	private BinaryTermCodec(byte[] b, int offset, int length){
+		in = new DataInputStream(new ByteArrayInputStream(b,offset,length));
+		atomTable = new ArrayList<String>();
+		out = null; bytes = null; atoms = null;
+	}
+
+	/** Returns the message encoded, starting with MAGIC and VERSION, or null if it (or something inside it) can not be encoded */
+	public static byte[] encode(Object message){
+		BinaryTermCodec codec = new BinaryTermCodec();
+		try{
+			codec.out.writeByte(MAGIC);
+			codec.out.writeByte(VERSION);
+			codec.writeMessage(message);
+			codec.out.flush();
+		} catch (Unencodable e){
+			return null;
+		} catch (IOException e){
+			throw new IPException("Unexpected:"+e);
+		}
+		return codec.bytes.toByteArray();
+	}
+
+	/** Decodes the message in length bytes, which must start with MAGIC and VERSION */
+	public static Object decode(byte[] b, int offset, int length) throws IOException{
+		return decode(b,offset,length,null);
+	}
+
+	public static Object decode(byte[] b) throws IOException{
+		return decode(b,0,b.length,null);
+	}
+
+	/** Same as decode(byte[],int,int), but with Terms instead of TermModels if the message is the result of a goal 
+	whose timestamp is in compactResults, which is then removed from it */
+	public static Object decode(byte[] b, int offset, int length, Set<Integer> compactResults) throws IOException{
+		BinaryTermCodec codec = new BinaryTermCodec(b,offset,length);
+		codec.compactResults = compactResults;
+		if (codec.in.readByte()!=MAGIC) throw new IOException("Not a binary term message");
+		byte version = codec.in.readByte();
+		if (version!=VERSION) throw new IOException("Unsupported binary term version "+version);
+		return codec.readMessage();
+	}
+
+	void writeMessage(Object m) throws IOException, Unencodable{
+		if (m instanceof GoalFromJava){
+			GoalFromJava g = (GoalFromJava)m;
+			out.writeByte(GOAL); out.writeInt(g.timestamp);
+			writeAtom(g.G);
+			writeValues(g.objects);
+		} else if (m instanceof ResultFromProlog){
+			ResultFromProlog r = (ResultFromProlog)m;
+			out.writeByte(PROLOG_RESULT); out.writeInt(r.timestamp); out.writeBoolean(r.succeeded);
+			writeValue(r.error);
+			writeValues(r.rVars);
+		} else if (m instanceof MessageFromProlog){
+			MessageFromProlog mfp = (MessageFromProlog)m;
+			out.writeByte(PROLOG_MESSAGE); out.writeInt(mfp.timestamp); out.writeBoolean(mfp.returnArguments);
+			writeValue(mfp.target);
+			writeAtom(mfp.methodName);
+			writeValues(mfp.arguments);
+		} else if (m instanceof ResultFromJava){
+			ResultFromJava r = (ResultFromJava)m;
+			out.writeByte(JAVA_RESULT); out.writeInt(r.timestamp);
+			writeValue(r.result);
+			writeValue(r.exception);
+			writeValues(r.arguments);
+		} else throw UNENCODABLE;
+	}
+
+	Object readMessage() throws IOException{
+		byte tag = in.readByte();
+		switch (tag){
+			case GOAL:
+				GoalFromJava g = new GoalFromJava(in.readInt(),"true","_",null,null);
+				g.G = readAtom();
+				g.objects = readValues();
+				return g;
+			case PROLOG_RESULT:
+				ResultFromProlog r = new ResultFromProlog(in.readInt(),in.readBoolean(),0,null);
+				compact = compactResults!=null && compactResults.remove(new Integer(r.timestamp));
+				r.error = readValue();
+				r.rVars = readValues();
+				return r;
+			case PROLOG_MESSAGE:
+				MessageFromProlog m = new MessageFromProlog();
+				m.timestamp = in.readInt(); m.returnArguments = in.readBoolean();
+				m.target = readValue();
+				m.methodName = readAtom();
+				m.arguments = readValues();
+				return m;
+			case JAVA_RESULT:
+				int timestamp = in.readInt();
+				Object result = readValue();
+				Object exception = readValue();
+				return new ResultFromJava(timestamp,result,exception,readValues());
+			default: throw new IOException("Bad binary term message tag:"+(char)tag);
+		}
+	}
+
+	/** Message arrays are never null, and their size is written with no tag */
+	void writeValues(Object[] values) throws IOException, Unencodable{
+		if (values==null) throw UNENCODABLE;
+		out.writeInt(values.length);
+		for (int i=0; i<values.length; i++) writeValue(values[i]);
+	}
+
+	Object[] readValues() throws IOException{
+		Object[] values = new Object[in.readInt()];
+		for (int i=0; i<values.length; i++) values[i] = readValue();
+		return values;
+	}
+
+	void writeAtom(String s) throws IOException, Unencodable{
+		if (s==null) throw UNENCODABLE;
+		Integer index = atoms.get(s);
+		if (index!=null){
+			out.writeByte(ATOM_REF); out.writeInt(index.intValue());
+		} else {
+			atoms.put(s,new Integer(atoms.size()));
+			byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+			out.writeByte(STRING); out.writeInt(utf8.length); out.write(utf8);
+		}
+	}
+
+	String readAtom() throws IOException{
+		return readAtom(in.readByte());
+	}
+
+	String readAtom(byte tag) throws IOException{
+		if (tag==ATOM_REF) return atomTable.get(in.readInt());
+		if (tag!=STRING) throw new IOException("Bad binary term string tag:"+(char)tag);
+		byte[] utf8 = new byte[in.readInt()];
+		in.readFully(utf8);
+		String s = new String(utf8,StandardCharsets.UTF_8);
+		atomTable.add(s);
+		return s;
+	}
+
+	void writeValue(Object x) throws IOException, Unencodable{
+		if (x==null) out.writeByte(NULL);
+		else if (x instanceof String) writeAtom((String)x);
+		else {
+			Class c = x.getClass();
+			// exact classes only, as subclasses may carry more state
+			if (c==Integer.class){
+				out.writeByte(INTEGER); out.writeInt(((Integer)x).intValue());
+			} else if (c==Float.class){
+				float f = ((Float)x).floatValue();
+				if (Float.isNaN(f) || Float.isInfinite(f)) throw UNENCODABLE;
+				byte[] text = Float.toString(f).getBytes(StandardCharsets.US_ASCII);
+				out.writeByte(FLOAT); out.writeByte(text.length); out.write(text);
+			} else if (c==Boolean.class){
+				out.writeByte(BOOLEAN); out.writeBoolean(((Boolean)x).booleanValue());
+			} else if (c==InvisibleObject.class){
+				out.writeByte(INVISIBLE); out.writeInt(((InvisibleObject)x).ID);
+			} else if (c==IPClassObject.class){
+				out.writeByte(CLASS_OBJECT); writeAtom(((IPClassObject)x).classname);
+			} else if (c==IPClassVariable.class){
+				IPClassVariable v = (IPClassVariable)x;
+				out.writeByte(CLASS_VARIABLE); writeAtom(v.className); writeAtom(v.variableName);
+			} else if (c==Object[].class){
+				out.writeByte(OBJECT_ARRAY); writeValues((Object[])x);
+			} else if (c==TermModel[].class){
+				out.writeByte(TERMMODEL_ARRAY); writeValues((Object[])x);
+			} else if (c==TermModel.class){
+				TermModel t = (TermModel)x;
+				out.writeByte(TERMMODEL); out.writeBoolean(t.isList());
+				if (t.node!=null && (t.node.getClass()==Long.class || t.node.getClass()==Double.class)) writeNumberText((Number)t.node);
+				else writeValue(t.node);
+				writeValue(t.children);
+			} else if (c==VariableNode.class){
+				out.writeByte(VARIABLE); out.writeInt(((VariableNode)x).number.intValue());
+			} else throw UNENCODABLE;
+		}
+	}
+
+	/** Prolog reads this number, under the FLOAT tag, as the integer or float it denotes */
+	void writeNumberText(Number n) throws IOException, Unencodable{
+		if (n instanceof Double && (((Double)n).isNaN() || ((Double)n).isInfinite())) throw UNENCODABLE;
+		byte[] text = n.toString().getBytes(StandardCharsets.US_ASCII);
+		out.writeByte(FLOAT); out.writeByte(text.length); out.write(text);
+	}
+
+	Object readValue() throws IOException{
+		byte tag = in.readByte();
+		switch (tag){
+			case NULL: return null;
+			case STRING:
+			case ATOM_REF: return readAtom(tag);
+			case INTEGER: return new Integer(in.readInt());
+			case FLOAT:
+				byte[] text = new byte[in.readUnsignedByte()];
+				in.readFully(text);
+				if (compact) return new Double(parsePrologDouble(new String(text,StandardCharsets.US_ASCII)));
+				return new Float(parsePrologFloat(new String(text,StandardCharsets.US_ASCII)));
+			case BOOLEAN: return new Boolean(in.readBoolean());
+			case INVISIBLE: return new InvisibleObject(in.readInt());
+			case CLASS_OBJECT: return new IPClassObject(readAtom());
+			case CLASS_VARIABLE:
+				String className = readAtom();
+				return new IPClassVariable(className,readAtom());
+			case OBJECT_ARRAY: return readValues();
+			case TERMMODEL_ARRAY:
+				if (compact){
+					Term[] terms = new Term[in.readInt()];
+					for (int i=0; i<terms.length; i++) terms[i] = (Term)readValue();
+					return terms;
+				}
+				TermModel[] models = new TermModel[in.readInt()];
+				for (int i=0; i<models.length; i++) models[i] = (TermModel)readValue();
+				return models;
+			case TERMMODEL:
+				boolean isList = in.readBoolean();
+				Object node = readValue();
+				if (compact) return Term.fromNode(node,(Term[])readValue(),isList);
+				return new TermModel(node,(TermModel[])readValue(),isList);
+			case VARIABLE: return new VariableNode(in.readInt());
+			default: throw new IOException("Bad binary term tag:"+(char)tag);
+		}
+	}
+
+	/** Prolog prints special floats in its own way, e.g. inf or 1.5NaN */
+	static float parsePrologFloat(String s){
+		try{
+			return Float.parseFloat(s);
+		} catch (NumberFormatException e){
+			return (float)parsePrologDouble(s);
+		}
+	}
+
+	static double parsePrologDouble(String s){
+		try{
+			return Double.parseDouble(s);
+		} catch (NumberFormatException e){
+			String lower = s.toLowerCase();
+			if (lower.indexOf("nan")>=0) return Double.NaN;
+			if (lower.indexOf("inf")>=0) return lower.startsWith("-") ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import com.declarativa.interprolog.AbstractPrologEngine;
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Resolved methods and constructors for javaMessage callbacks, keyed by (target class, method name, argument classes),
+so that AbstractPrologEngine.doCallback does the reflective search only once per call site. Each entry holds a MethodHandle
+adapted to a uniform (Object target, Object[] arguments) signature. Class names are also resolved once.
+Hit and miss counters are kept for tuning and benchmarking. */
+public class CallSiteCache{
+	private static final MethodType UNIFORM = MethodType.methodType(Object.class, Object.class, Object[].class);
+	private final ConcurrentHashMap<String,Class> classes = new ConcurrentHashMap<String,Class>();
+	private final ConcurrentHashMap<Key,Entry> entries = new ConcurrentHashMap<Key,Entry>();
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	private volatile boolean enabled = true;
+
+	/** A resolved call site: the reflective member, and a handle to invoke it, or null if it is only reachable by reflection */
+	public static class Entry{
+		public final Member member;
+		final MethodHandle handle;
+		Entry(Member member, MethodHandle handle){
+			this.member = member; this.handle = handle;
+		}
+		/** Invokes the member; for static methods and constructors the target is ignored.
+		Exceptions thrown by the member are wrapped in an InvocationTargetException, as with Method.invoke */
+		public Object invoke(Object target, Object[] arguments) throws Exception{
+			if (handle==null){
+				if (member instanceof Constructor) return ((Constructor)member).newInstance(arguments);
+				else return ((Method)member).invoke(target,arguments);
+			}
+			try{
+				return (Object)handle.invokeExact(target,arguments);
+			} catch (Throwable t){
+				throw new InvocationTargetException(t);
+			}
+		}
+	}
+
+	static class Key{
+		final Class target; final String name; final Class[] arguments; final int hash;
+		Key(Class target, String name, Class[] arguments){
+			this.target = target; this.name = name; this.arguments = arguments;
+			hash = (target.hashCode()*31 + name.hashCode())*31 + Arrays.hashCode(arguments);
+		}
+		public int hashCode(){return hash;}
+		public boolean equals(Object o){
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return k.target==target && k.name.equals(name) && Arrays.equals(k.arguments,arguments);
+		}
+	}
+
+	/** Same as Class.forName, remembering the result */
+	public Class classForName(String name) throws ClassNotFoundException{
+		if (!enabled) return Class.forName(name);
+		Class c = classes.get(name);
+		if (c==null){
+			c = Class.forName(name);
+			classes.put(name,c);
+		}
+		return c;
+	}
+
+	/** The method named name of targetClass, or its constructor if constructor is true, applicable to the argument classes
+	@see AbstractPrologEngine#findMethod(Class,String,Class[]) */
+	public Entry lookup(Class targetClass, String name, Class[] formalArguments, boolean constructor) throws NoSuchMethodException{
+		if (!enabled) return resolve(targetClass,name,formalArguments,constructor,false);
+		Key key = new Key(targetClass,(constructor?"<init>":name),formalArguments);
+		Entry entry = entries.get(key);
+		if (entry!=null){
+			hits.incrementAndGet();
+			return entry;
+		}
+		misses.incrementAndGet();
+		entry = resolve(targetClass,name,formalArguments,constructor,true);
+		entries.put(new Key(targetClass,key.name,formalArguments.clone()),entry);
+		return entry;
+	}
+
+	Entry resolve(Class targetClass, String name, Class[] formalArguments, boolean constructor, boolean withHandle) throws NoSuchMethodException{
+		Member member;
+		if (constructor) member = AbstractPrologEngine.findConstructor(targetClass,formalArguments);
+		else member = AbstractPrologEngine.findMethod(targetClass,name,formalArguments);
+		if (!withHandle) return new Entry(member,null);
+		MethodHandle handle;
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		try{
+			if (constructor)
+				handle = MethodHandles.dropArguments(lookup.unreflectConstructor((Constructor)member),0,Object.class);
+			else {
+				handle = lookup.unreflect((Method)member);
+				if (Modifier.isStatic(member.getModifiers())) handle = MethodHandles.dropArguments(handle,0,Object.class);
+			}
+			handle = handle.asSpreader(Object[].class,formalArguments.length).asType(UNIFORM);
+		} catch (IllegalAccessException e){
+			// e.g. a public method of a non public class; leave it to reflection
+			handle = null;
+		}
+		return new Entry(member,handle);
+	}
+
+	/** If false, every lookup resolves reflectively, as before this cache existed; useful for benchmarking */
+	public void setEnabled(boolean yes){
+		enabled = yes;
+	}
+
+	public boolean isEnabled(){
+		return enabled;
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	/** Number of cached call sites */
+	public int size(){
+		return entries.size();
+	}
+
+	/** Forgets all resolved call sites and classes, and resets the counters */
+	public void clear(){
+		entries.clear();
+		classes.clear();
+		hits.set(0); misses.set(0);
+	}
+
+	public String toString(){
+		return "CallSiteCache: "+size()+" call sites, "+getHits()+" hits, "+getMisses()+" misses";
+	}
+}
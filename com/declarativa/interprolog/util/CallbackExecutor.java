@@ -0,0 +1,151 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Executes the javaMessage callbacks of a PrologEngine with threaded callbacks, according to a strategy chosen with one
+of the static factory methods; also names callback threads and keeps counts of queued and executing callbacks.
+Callbacks may call Prolog goals which in turn send nested javaMessages, so a strategy must never make a callback wait
+for another to end: the bounded pool therefore hands callbacks over to idle threads only, through a SynchronousQueue,
+and the callbacks it rejects because all its threads are busy run in extra (overflow) threads.
+@see com.declarativa.interprolog.AbstractPrologEngine#setCallbackExecutor(CallbackExecutor) */
+public class CallbackExecutor implements Executor{
+	final String name;
+	final String strategy;
+	/** null for caller-runs */
+	final Executor delegate;
+	final int poolSize;
+	final AtomicInteger threadCounter = new AtomicInteger();
+	final AtomicInteger queued = new AtomicInteger(), active = new AtomicInteger();
+	final AtomicLong submitted = new AtomicLong(), completed = new AtomicLong(), overflows = new AtomicLong();
+	volatile int maxQueued = 0;
+
+	protected CallbackExecutor(String name, String strategy, Executor delegate, int poolSize){
+		this.name = name; this.strategy = strategy; this.delegate = delegate; this.poolSize = poolSize;
+	}
+
+	/** A new thread for each callback; the traditional InterProlog behavior */
+	public static CallbackExecutor threadPerCallback(String name){
+		return new CallbackExecutor(name,"thread per callback",null,0){
+			void start(Runnable task){
+				new Thread(task).start();
+			}
+		};
+	}
+
+	/** A pool of size reusable daemon threads; callbacks arriving when all are busy run in new threads */
+	public static CallbackExecutor boundedPool(final String name, int size){
+		if (size<1) throw new IPException("Bad callback pool size:"+size);
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(size,size,60,TimeUnit.SECONDS,new SynchronousQueue<Runnable>(),new ThreadFactory(){
+			public Thread newThread(Runnable r){
+				Thread t = new Thread(r,name);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		final CallbackExecutor executor = new CallbackExecutor(name,"bounded pool of "+size,pool,size);
+		pool.setRejectedExecutionHandler(new RejectedExecutionHandler(){
+			public void rejectedExecution(Runnable task, ThreadPoolExecutor p){
+				executor.overflows.incrementAndGet();
+				new Thread(task).start();
+			}
+		});
+		return executor;
+	}
+
+	/** A virtual thread per callback, if the JDK supports them (Java 21 or later); otherwise same as threadPerCallback */
+	public static CallbackExecutor virtualThreadPerCallback(String name){
+		try{
+			Executor virtual = (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor",new Class[0]).invoke(null,new Object[0]);
+			return new CallbackExecutor(name,"virtual thread per callback",virtual,0);
+		} catch (Exception e){
+			// older JDK, or virtual threads disabled
+			return threadPerCallback(name);
+		}
+	}
+
+	/** Callbacks run in the Java thread that called the goal executing in Prolog, as with setThreadedCallbacks(false) */
+	public static CallbackExecutor callerRuns(String name){
+		return new CallbackExecutor(name,"caller runs",null,0){
+			void start(Runnable task){
+				throw new IPException("A caller-runs CallbackExecutor has no threads of its own");
+			}
+			public boolean isCallerRuns(){
+				return true;
+			}
+		};
+	}
+
+	/** Callbacks are to be executed by the thread waiting for the current goal, not by this executor */
+	public boolean isCallerRuns(){
+		return false;
+	}
+
+	public void execute(Runnable callback){
+		start(instrument(callback));
+	}
+
+	void start(Runnable task){
+		delegate.execute(task);
+	}
+
+	/** Wraps the callback so that its execution is counted and its thread named after this executor;
+	used directly for callbacks executed by other threads */
+	public Runnable instrument(final Runnable callback){
+		submitted.incrementAndGet();
+		int q = queued.incrementAndGet();
+		if (q>maxQueued) maxQueued = q;
+		return new Runnable(){
+			public void run(){
+				queued.decrementAndGet();
+				active.incrementAndGet();
+				Thread current = Thread.currentThread();
+				String oldName = current.getName();
+				current.setName(name+"-"+threadCounter.incrementAndGet());
+				try{
+					callback.run();
+				} finally{
+					current.setName(oldName);
+					active.decrementAndGet();
+					completed.incrementAndGet();
+				}
+			}
+		};
+	}
+
+	/** Callbacks submitted but not yet started */
+	public int getQueued(){return queued.get();}
+	/** Highest number of callbacks simultaneously waiting to start */
+	public int getMaxQueued(){return maxQueued;}
+	/** Callbacks executing now */
+	public int getActive(){return active.get();}
+	public long getSubmitted(){return submitted.get();}
+	public long getCompleted(){return completed.get();}
+	/** Callbacks that found all pool threads busy and ran in new threads */
+	public long getOverflows(){return overflows.get();}
+
+	/** Releases the threads of a pool; only needed if the executor is not used anymore and its threads must die before timing out */
+	public void shutdown(){
+		if (delegate instanceof ExecutorService) ((ExecutorService)delegate).shutdown();
+	}
+
+	public String getName(){
+		return name;
+	}
+
+	public String getStrategy(){
+		return strategy;
+	}
+
+	public String toString(){
+		return "CallbackExecutor "+name+" ("+strategy+"): "+getSubmitted()+" submitted, "+getCompleted()+" completed, "+
+			getActive()+" active, "+getQueued()+" queued (max "+getMaxQueued()+"), "+getOverflows()+" overflows";
+	}
+}
@@ -12,11 +12,17 @@ import com.declarativa.interprolog.*;
 public class GoalToExecute{
 	private GoalFromJava goal;
 	private ResultFromProlog result;
-	private boolean executing;
-	private boolean ended;
+	private volatile boolean executing;
+	private volatile boolean ended;
 	private boolean firstGoalStatus = false;
+	private volatile boolean timedOut = false;
+	// for EngineMetrics
+	private final long createdNanos = System.nanoTime();
+	private long calledNanos;
 	// something to do in the creator thread
 	private Runnable todo=null;
+	// objects registered for the duration of this goal, if any
+	private ObjectArena arena=null;
 	Thread callerThread;
 	
 	public GoalToExecute(GoalFromJava goal){
@@ -34,6 +40,11 @@ public class GoalToExecute{
 	}
 	
 	public synchronized void executeInThread(Runnable r){
+		// a previous Runnable may still be finishing in the caller thread:
+		while(todo!=null && !hasEnded()){
+			try { wait();}
+			catch(InterruptedException e){throw new IPException("Unexpected:"+e);}
+		}
 		if(todo!=null||!executing/* comented because of SubprocessEngine:||firstGoalStatus*/||result!=null || hasEnded()){
 			System.err.println("bad");
 			System.err.println("r=="+r);
@@ -45,34 +56,70 @@ public class GoalToExecute{
 			throw new IPException("bad execute");
 		}
 		todo=r;
-		notify();
+		notifyAll();
 	}
 	
 	/** Obtain result for a Prolog goal, blocking until it is available; meanwhile it will execute
-	Runnables if so requested */
-	public synchronized ResultFromProlog waitForResult(){
-		if (ended) return result;
+	Runnables if so requested. These run outside this object's monitor, as they may need to lock the engine */
+	public ResultFromProlog waitForResult(){
 		while(true){
-			if(todo!=null) {
-				todo.run();
-				todo=null;
+			Runnable r;
+			synchronized(this){
+				while(todo==null && !ended){
+					try { wait();}
+					catch(InterruptedException e){throw new IPException("Unexpected:"+e);}
+				}
+				if (todo==null) return result;
+				r = todo;
+			}
+			try { r.run(); }
+			finally{
+				synchronized(this){
+					todo=null;
+					notifyAll();
+				}
 			}
-			if(result!=null) break;
-			try { wait();}
-			catch(InterruptedException e){throw new IPException("Unexpected:"+e);}
-			// System.out.println("waitForResult loop: result=="+result+",todo=="+todo);
-			if (result==null && todo==null) throw new IPException("Inconsistency in GoalToExecute");
 		}
-		return result; 
 	}
 	
-	public synchronized void setResult(ResultFromProlog result){
-		if (this.result!=null || hasEnded() || todo!=null) {
-			throw new IPException("Inconsistency in GoalToExecute");
+	public void setResult(ResultFromProlog result){
+		synchronized(this){
+			// the Runnable that led to this result may still be finishing in the caller thread:
+			while(todo!=null && !hasEnded()){
+				try { wait();}
+				catch(InterruptedException e){throw new IPException("Unexpected:"+e);}
+			}
+			if (this.result!=null || hasEnded() || todo!=null) {
+				throw new IPException("Inconsistency in GoalToExecute");
+			}
+			releaseArena();
+			this.result=result;
+			ended=true;
+			notifyAll();
+		}
+		resultWasSet();
+	}
+	
+	/** Ends the goal with this result at once, rather than waiting as setResult for a Runnable executing in the caller thread, 
+	which may need the engine monitor held by whoever fails the goal, e.g. when Prolog died */
+	public void fail(ResultFromProlog result){
+		synchronized(this){
+			if (hasEnded()) return;
+			releaseArena();
+			this.result=result;
+			ended=true;
+			notifyAll();
 		}
-		this.result=result;
-		ended=true;
-		notify();
+		resultWasSet();
+	}
+	
+	/** Called (outside this object's monitor) once the result is set, or the goal interrupted or aborted. 
+	This default implementation does nothing; used by asynchronous goals, which have no caller thread in waitForResult() */
+	protected void resultWasSet(){}
+	
+	/** The result, or null if the goal has not ended yet */
+	public synchronized ResultFromProlog getResult(){
+		return result;
 	}
 	
 	public boolean wasInterrupted(){
@@ -84,27 +131,65 @@ public class GoalToExecute{
 	}
 
 	/** Used on the InterProlog Java side to "cascade" an interrupt over pending goals to execute */
-	public synchronized void interrupt(){
+	public void interrupt(){
 		raiseError("interrupted");
 	}
 	
+	/** The goal's deadline has passed; if it was not sent to Prolog yet, it ends now, otherwise the engine must interrupt it */
+	public void timeOut(){
+		timedOut = true;
+		if (!hasStarted()) raiseError("timed out");
+	}
+	
+	public boolean wasTimedOut(){
+		return timedOut;
+	}
+	
 	/** Used on the InterProlog Java side to "cascade" an abort over pending goals to execute */
-	public synchronized void abort(){
+	public void abort(){
 		raiseError("aborted");
 	}
 	
 	private void raiseError(String s){
-		if (result==null) result = new ResultFromProlog(-1,false,0,null);
-		result.error=s;
-		ended=true;
-		notify();
+		synchronized(this){
+			if (result==null) result = new ResultFromProlog(-1,false,0,null);
+			result.error=s;
+			releaseArena();
+			ended=true;
+			notifyAll();
+		}
+		resultWasSet();
 	}
 	
 	public GoalFromJava getGoal(){ return goal;}
 	
+	/** The arena for objects registered during this goal, created on first use */
+	public synchronized ObjectArena getArena(ObjectRegistry registry){
+		if (arena==null) arena = new ObjectArena(registry);
+		return arena;
+	}
+	
+	/** Unregisters the objects registered during this goal and not promoted; called as it ends, before its caller gets the result */
+	private synchronized void releaseArena(){
+		if (arena==null) return;
+		arena.release();
+		arena = null;
+	}
+	
 	public void prologWasCalled(){
 		if (executing) throw new IPException("Bad use of prologWasCalled");
 		executing=true;
+		calledNanos = System.nanoTime();
+	}
+	
+	/** System.nanoTime() when this goal was scheduled */
+	public long getCreatedNanos(){
+		return createdNanos;
+	}
+	
+	/** System.nanoTime() when this goal was sent to Prolog, or 0 if not yet */
+	public long getCalledNanos(){
+		return calledNanos;
 	}
 	
 	public boolean hasStarted(){
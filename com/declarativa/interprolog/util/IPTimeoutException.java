@@ -0,0 +1,14 @@
+/* 
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the 
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+/** An Exception thrown when a goal does not end before its deadline
+*/
+public class IPTimeoutException extends IPException{
+	private static final long serialVersionUID = 1L;
+	public IPTimeoutException(String s){super(s);}
+}
@@ -0,0 +1,82 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import java.util.concurrent.atomic.*;
+
+/** A lock-free histogram of durations in nanoseconds, in the style of HdrHistogram: buckets are linear within each power of 2,
+with 16 buckets per power, so values are kept with a relative error under 1/16 over the whole long range, in a fixed array. */
+public class LatencyHistogram{
+	static final int SUB_BUCKET_BITS = 4;
+	static final int SUB_BUCKETS = 1<<SUB_BUCKET_BITS;
+	private final AtomicLongArray counts = new AtomicLongArray((64-SUB_BUCKET_BITS+1)*SUB_BUCKETS);
+	private final LongAdder count = new LongAdder(), sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	static int bucketIndex(long value){
+		if (value<SUB_BUCKETS) return (int)value;
+		int shift = 63-Long.numberOfLeadingZeros(value)-SUB_BUCKET_BITS;
+		return (shift+1)*SUB_BUCKETS + (int)(value>>>shift) - SUB_BUCKETS;
+	}
+
+	/** Lowest value falling in the bucket */
+	static long bucketStart(int index){
+		int group = index/SUB_BUCKETS, sub = index%SUB_BUCKETS;
+		if (group==0) return sub;
+		return ((long)(SUB_BUCKETS+sub)) << (group-1);
+	}
+
+	public void record(long nanos){
+		if (nanos<0) nanos = 0;
+		counts.incrementAndGet(bucketIndex(nanos));
+		count.increment();
+		sum.add(nanos);
+		long m;
+		while (nanos>(m=max.get()) && !max.compareAndSet(m,nanos)) {}
+	}
+
+	public long getCount(){
+		return count.sum();
+	}
+
+	public long getMax(){
+		return max.get();
+	}
+
+	public double getMean(){
+		long n = count.sum();
+		return n==0 ? 0 : sum.sum()/(double)n;
+	}
+
+	/** An approximation (from above) of the value below which lie percentile % of the recorded values, or 0 if none
+	@param percentile between 0 and 100 */
+	public long getValueAtPercentile(double percentile){
+		long n = count.sum();
+		if (n==0) return 0;
+		long wanted = Math.max(1,(long)Math.ceil(n*percentile/100.0));
+		long seen = 0;
+		for (int i=0; i<counts.length(); i++){
+			seen += counts.get(i);
+			if (seen>=wanted) return Math.min(getMax(),bucketStart(i+1)-1);
+		}
+		return getMax();
+	}
+
+	public void reset(){
+		for (int i=0; i<counts.length(); i++) counts.set(i,0);
+		count.reset(); sum.reset(); max.set(0);
+	}
+
+	public String toString(){
+		return getCount()+" values, mean "+millis(getMean())+" mS, 50% "+millis(getValueAtPercentile(50))+" mS, 99% "+
+			millis(getValueAtPercentile(99))+" mS, max "+millis(getMax())+" mS";
+	}
+
+	static String millis(double nanos){
+		return String.valueOf(Math.round(nanos/1000.0)/1000.0);
+	}
+}
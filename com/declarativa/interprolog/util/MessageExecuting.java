@@ -15,11 +15,18 @@ public class MessageExecuting implements Runnable{
 	private ResultFromJava result;
 	private boolean ended;
 	private boolean threaded;
+	// the goal on whose behalf Prolog sent the message
+	private GoalToExecute goal;
 	
 	public MessageExecuting(MessageFromProlog m, AbstractPrologEngine engine){
+		this(m,engine,null);
+	}
+	
+	public MessageExecuting(MessageFromProlog m, AbstractPrologEngine engine, GoalToExecute goal){
 		this.m = m; 
 		result=null;
 		this.engine=engine;
+		this.goal=goal;
 		ended=false;
 	}
 	
@@ -30,7 +37,12 @@ public class MessageExecuting implements Runnable{
 	}
 	
 	public void run(){
-		setResult(engine.doCallback(m));
+		EngineMetrics metrics = engine.getMetrics();
+		long start = (metrics==null ? 0 : System.nanoTime());
+		ResultFromJava r = engine.doCallback(m,goal);
+		if (metrics!=null) metrics.recordTime(EngineMetrics.CALLBACK_EXECUTION,System.nanoTime()-start);
+		setResult(r);
+		engine.messageHasEnded(this);
 	}
 	public boolean hasEnded(){
 		return ended;
@@ -0,0 +1,45 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** Objects registered in an ObjectRegistry for the duration of a goal, unregistered together when it ends.
+Only objects first registered through the arena belong to it; those promoted stay registered after release().
+@see ObjectRegistry#registerJavaObject(Object,ObjectArena)
+@see ObjectRegistry#promote(int) */
+public class ObjectArena{
+	final ObjectRegistry registry;
+	/** IDs registered through this arena, some of which may since have been promoted or unregistered */
+	final ConcurrentLinkedQueue<Integer> IDs = new ConcurrentLinkedQueue<Integer>();
+
+	public ObjectArena(ObjectRegistry registry){
+		this.registry = registry;
+	}
+
+	void add(Integer ID){
+		IDs.add(ID);
+	}
+
+	/** Number of objects still in this arena */
+	public int size(){
+		int n = 0;
+		for (Integer ID : IDs)
+			if (registry.scopes.get(ID)==this) n++;
+		return n;
+	}
+
+	/** Unregisters the objects still in this arena
+	@return how many */
+	public int release(){
+		int released = 0;
+		Integer ID;
+		while ((ID=IDs.poll())!=null)
+			if (registry.scopes.remove(ID,this) && registry.unregisterJavaObject(ID.intValue())) released++;
+		return released;
+	}
+}
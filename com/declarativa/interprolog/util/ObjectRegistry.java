@@ -1,117 +1,253 @@
-/* 
+/*
 ** Author(s): Miguel Calejo
 ** Contact:   interprolog@declarativa.com, http://www.declarativa.com
 ** Copyright (C) Declarativa, Portugal, 2000-2002
-** Use and distribution, without any warranties, under the terms of the 
+** Use and distribution, without any warranties, under the terms of the
 ** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
 */
 package com.declarativa.interprolog.util;
 import com.declarativa.interprolog.*;
-import java.util.Vector;
+import java.lang.ref.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-/** Remembers a set of Java objects, allowing access to them by an (integer) ID */
+/** Remembers a set of Java objects, allowing access to them by an (integer) ID.
+Objects are found by identity (==) rather than equals(), through a hash map, and IDs index an array, so all operations take constant time.
+IDs of unregistered objects are reused, most recently freed first.
+Threads register, unregister and get objects concurrently. The array is split in segments of fixed size, which never move;
+growing it only allocates a segment and publishes a copy of the (small) array of segments, so getting an object by ID takes 
+no lock and never waits.<p>
+In weak mode (setWeak(true)) objects registered afterwards are held through weak references, and their IDs are freed once Java
+no longer references them. Objects made invisible, as they are meant for Prolog, are also pinned: held strongly until
+released, e.g. when Prolog calls ipReleaseObjects/1.<p>
+Objects may also be registered in an ObjectArena, which unregisters them together, unless promoted meanwhile. */
 public class ObjectRegistry{
-	Vector objects;
-	
+	/** Object to ID */
+	final ConcurrentHashMap<Key,Integer> IDs = new ConcurrentHashMap<Key,Integer>();
+	static final int SEGMENT_BITS = 10;
+	static final int SEGMENT_SIZE = 1<<SEGMENT_BITS;
+	/** ID to object, or to its WeakKey, null for free IDs: slot ID%SEGMENT_SIZE of segment ID/SEGMENT_SIZE; replaced when growing */
+	volatile AtomicReferenceArray[] segments = new AtomicReferenceArray[]{new AtomicReferenceArray(SEGMENT_SIZE)};
+	final AtomicInteger nextID = new AtomicInteger(0);
+	final ConcurrentLinkedDeque<Integer> freeIDs = new ConcurrentLinkedDeque<Integer>();
+	volatile boolean weak = false;
+	/** Objects held for Prolog in weak mode, by ID */
+	final ConcurrentHashMap<Integer,Object> pinned = new ConcurrentHashMap<Integer,Object>();
+	/** WeakKeys whose objects were collected */
+	final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+	/** Arenas owning objects, by ID */
+	final ConcurrentHashMap<Integer,ObjectArena> scopes = new ConcurrentHashMap<Integer,ObjectArena>();
+
+	/** Map keys compare their objects by identity */
+	interface Key{
+		Object referent();
+	}
+
+	static boolean sameReferent(Key key, Object x){
+		Object r = key.referent();
+		return r!=null && x instanceof Key && ((Key)x).referent()==r;
+	}
+
+	static final class IdentityKey implements Key{
+		final Object object;
+		final int hash;
+		IdentityKey(Object object){
+			this.object = object;
+			hash = System.identityHashCode(object);
+		}
+		public Object referent(){
+			return object;
+		}
+		public int hashCode(){
+			return hash;
+		}
+		public boolean equals(Object x){
+			return x==this || sameReferent(this,x);
+		}
+	}
+
+	/** Holds an object weakly, in weak mode; enqueued when the object is collected */
+	static final class WeakKey extends WeakReference<Object> implements Key{
+		final int hash;
+		WeakKey(Object object, ReferenceQueue<Object> queue){
+			super(object,queue);
+			hash = System.identityHashCode(object);
+		}
+		public Object referent(){
+			return get();
+		}
+		public int hashCode(){
+			return hash;
+		}
+		public boolean equals(Object x){
+			return x==this || sameReferent(this,x);
+		}
+	}
+
 	public ObjectRegistry(){
-		objects = new Vector();
 	}
-	
+
+	/** Objects registered from now on are held weakly (if true) or strongly */
+	public void setWeak(boolean weak){
+		this.weak = weak;
+	}
+
+	public boolean isWeak(){
+		return weak;
+	}
+
 	public Object getRealJavaObject(InvisibleObject o){
 		return getRealJavaObject(o.ID);
 	}
-	
+
 	public Object getRealJavaObject(int ID){
-		if (ID<0 | ID>objects.size()-1) 
+		if (ID<0 || ID>=nextID.get())
 			throw new RuntimeException("Bad object ID in ObjectRegistry");
-		return objects.elementAt(ID);
+		AtomicReferenceArray[] s = segments;
+		int segment = ID>>>SEGMENT_BITS;
+		// the ID may have just been taken by a registration still storing its object
+		if (segment>=s.length) return null;
+		Object x = s[segment].get(ID&(SEGMENT_SIZE-1));
+		if (x instanceof WeakKey) return ((WeakKey)x).get();
+		return x;
 	}
-	
+
+	/** Registers the object, pinning it in weak mode, and returns an InvisibleObject for it */
 	public Object makeInvisible(Object x){
-		return new InvisibleObject(registerJavaObject(x));
+		return makeInvisible(x,null);
+	}
+
+	/** Same as makeInvisible(Object), but registers the object in the arena if not yet registered */
+	public Object makeInvisible(Object x, ObjectArena arena){
+		int ID = registerJavaObject(x,arena);
+		if (weak) pinned.put(new Integer(ID),x);
+		return new InvisibleObject(ID);
 	}
-	
-	public synchronized int registerJavaObject(Object x){
+
+	public int registerJavaObject(Object x){
+		return registerJavaObject(x,null);
+	}
+
+	/** Registers the object, in the arena if not yet registered and arena is not null
+	@return its ID */
+	public int registerJavaObject(final Object x, final ObjectArena arena){
 		if (x==null)
 			throw new IPException("Null object in ObjectRegistry");
-		int i = getObjectID(x);
-		if (i>=0) return i;
-		objects.addElement(x);
-		return objects.size()-1;
-	}
-	
-	private int getObjectID(Object obj){
-            // commented next line because there might be null elements in the 
-            // registry that are there as a result of unregistering
-		//return objects.indexOf(obj); 
-            
-            if (obj == null) {
-                for (int i = 0 ; i < objects.size() ; i++)
-                    if (objects.elementAt(i)==null)
-                        return i;
-            } else {
-                for (int i = 0 ; i < objects.size() ; i++){
-                    Object elem = objects.elementAt(i);
-                    if(elem != null){ // this line is not there in Vector.indexOf
-                        if (obj.equals(elem))
-                            return i;
-                    }
-                }
-            }
-            return -1;
-	}
-        
-        public synchronized boolean unregisterJavaObject(int ID){
-            if ((ID < 0) || (ID > objects.size()-1)) {
-                return false;
-            } else {
-                // objects.remove(index) would not work since that operation
-                // shifts any subsequent elements to the left (subtracts one from their indices)
-                objects.setElementAt(null, ID);
-                return true;
-            }
+		expungeCollected();
+		Integer ID = IDs.get(new IdentityKey(x));
+		if (ID!=null) return ID.intValue();
+		Key key = (weak ? (Key)new WeakKey(x,collected) : (Key)new IdentityKey(x));
+		return IDs.computeIfAbsent(key, new java.util.function.Function<Key,Integer>(){
+			public Integer apply(Key key){
+				Integer newID = freeIDs.pollFirst();
+				if (newID==null) newID = new Integer(nextID.getAndIncrement());
+				setSlot(newID.intValue(), key instanceof WeakKey ? key : x);
+				if (arena!=null){
+					scopes.put(newID,arena);
+					arena.add(newID);
+				}
+				return newID;
+			}
+		}).intValue();
+	}
+
+	/** Number of objects registered */
+	public int size(){
+		expungeCollected();
+		return IDs.size();
+	}
+
+	/** Number of objects pinned for Prolog */
+	public int pinnedSize(){
+		return pinned.size();
+	}
+
+	/** Stops pinning the object with this ID, which Prolog no longer references
+	@return whether it was pinned */
+	public boolean release(int ID){
+		return pinned.remove(new Integer(ID))!=null;
+	}
+
+	/** Takes the object with this ID out of its arena, so that it stays registered after the arena is released
+	@return whether it was in an arena */
+	public boolean promote(int ID){
+		return scopes.remove(new Integer(ID))!=null;
+	}
+
+	public boolean promote(Object x){
+		Integer ID = IDs.get(new IdentityKey(x));
+		return ID!=null && promote(ID.intValue());
+	}
+
+	/** Stops pinning all objects */
+	public void releaseAll(){
+		pinned.clear();
+	}
+
+	/** Frees the IDs of weakly held objects that were garbage collected */
+	protected void expungeCollected(){
+		Reference r;
+		while ((r=collected.poll())!=null){
+			Integer ID = IDs.remove(r);
+			if (ID!=null) freeID(ID.intValue());
+		}
+	}
+
+	void setSlot(int ID, Object x){
+		int segment = ID>>>SEGMENT_BITS;
+		AtomicReferenceArray[] s = segments;
+		if (segment>=s.length) s = grow(segment);
+		s[segment].set(ID&(SEGMENT_SIZE-1),x);
+	}
+
+	/** Makes sure there are segments up to the given one
+	@return the new array of segments */
+	synchronized AtomicReferenceArray[] grow(int segment){
+		AtomicReferenceArray[] old = segments;
+		if (segment<old.length) return old;
+		AtomicReferenceArray[] bigger = new AtomicReferenceArray[Math.max(segment+1,old.length*2)];
+		System.arraycopy(old,0,bigger,0,old.length);
+		for (int i=old.length; i<bigger.length; i++) bigger[i] = new AtomicReferenceArray(SEGMENT_SIZE);
+		segments = bigger;
+		return bigger;
+	}
+
+	/** Forgets the object with the given ID, whose ID becomes free */
+	void freeID(int ID){
+		segments[ID>>>SEGMENT_BITS].set(ID&(SEGMENT_SIZE-1),null);
+		pinned.remove(new Integer(ID));
+		scopes.remove(new Integer(ID));
+		freeIDs.offerFirst(new Integer(ID));
+	}
+
+        public boolean unregisterJavaObject(int ID){
+            if ((ID < 0) || (ID >= nextID.get())) return false;
+            Object x = getRealJavaObject(ID);
+            // the slot stays allocated until its ID is freed, so that concurrent registrations do not reuse it
+            if (x==null || !IDs.remove(new IdentityKey(x),new Integer(ID))) return false;
+            freeID(ID);
+            return true;
         }
-        
-        public synchronized boolean unregisterJavaObject(Object obj){
-            boolean found = false;
-            if (obj != null){
-                int index = getObjectID(obj);
-                if(index >= 0){
-                    // objects.remove(index) would not work since that operation
-                    // shifts any subsequent elements to the left (subtracts one from their indices)
-                    objects.setElementAt(null, index);
-                    found = true;
-                }
-            }
-            return found;
+
+        public boolean unregisterJavaObject(Object obj){
+            if (obj == null) return false;
+            Integer ID = IDs.remove(new IdentityKey(obj));
+            if (ID==null) return false;
+            freeID(ID.intValue());
+            return true;
         }
-        
-        public synchronized boolean unregisterJavaObjects(Class cls){
+
+        public boolean unregisterJavaObjects(Class cls){
             boolean found = false;
             if (cls != null){
                 String className = cls.getName();
-                for(int iterator = 0; iterator < objects.size(); iterator++){
-                    Object currentObject = objects.elementAt(iterator);
-                    if(currentObject != null){
-                        if(currentObject.getClass().getName().equals(className)){
-                            objects.setElementAt(null, iterator);
-                            found = true;
-                        }
-                    }
-                }
-                
-                // discard null elements in the end of the object registry
-                // not sure that it is a good idea - on one hand, if people
-                // do not program clean and still refer to the old
-                // objects, they will get null pointer exception instead of
-                // unpredicatble results. On the other hand, the registry 
-                // might become very big and slow too soon. May be this
-                // part should go into separate method.
-               /* int newSize;
-                for(newSize = objects.size(); newSize > 0; newSize--){
-                    if(objects.elementAt(newSize - 1) != null) break;
+                Iterator<Key> keys = IDs.keySet().iterator();
+                while (keys.hasNext()){
+                    Object currentObject = keys.next().referent();
+                    if(currentObject != null && currentObject.getClass().getName().equals(className))
+                        found = unregisterJavaObject(currentObject) || found;
                 }
-                objects.setSize(newSize); */
             }
             return found;
 	}
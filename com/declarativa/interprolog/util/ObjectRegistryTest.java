@@ -0,0 +1,85 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import junit.framework.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** ObjectRegistry on its own, needing no Prolog engine */
+public class ObjectRegistryTest extends TestCase{
+	public ObjectRegistryTest(String name){
+		super(name);
+	}
+	/** Registration, lookup and unregistration costs should not depend on how many objects are registered */
+	public void testObjectRegistryScaling(){
+		long maxMemory = Runtime.getRuntime().maxMemory();
+		for (int size=1000; size<=10000000; size*=10){
+			if (size*200L > maxMemory/2){ // roughly the bytes per registered object, with its map entry
+				System.out.println("ObjectRegistry with "+size+" objects skipped, needs a larger heap");
+				continue;
+			}
+			ObjectRegistry registry = new ObjectRegistry();
+			Object[] objects = new Object[size];
+			for (int i=0; i<size; i++) objects[i] = new Integer(i); // equal Integers elsewhere must not be confused with these
+			long start = System.nanoTime();
+			for (int i=0; i<size; i++) assertEquals(i,registry.registerJavaObject(objects[i]));
+			long registering = System.nanoTime()-start;
+			start = System.nanoTime();
+			for (int i=0; i<size; i++) assertSame(objects[i],registry.getRealJavaObject(i));
+			for (int i=0; i<size; i++) assertEquals(i,registry.registerJavaObject(objects[i]));
+			long lookups = System.nanoTime()-start;
+			start = System.nanoTime();
+			for (int i=0; i<size; i+=2) assertTrue(registry.unregisterJavaObject(objects[i]));
+			for (int i=0; i<size; i+=2) registry.registerJavaObject(new Object());
+			long churn = System.nanoTime()-start;
+			assertEquals(size,registry.size());
+			assertEquals("freed IDs were all reused",size,registry.registerJavaObject(new Object()));
+			System.out.println("ObjectRegistry with "+size+" objects: "+(registering/size)+" nS/registration, "+
+				(lookups/(2*size))+" nS/lookup, "+(churn/size)+" nS/unregistration or reuse");
+		}
+	}
+	public void testObjectRegistryConcurrency() throws Exception{
+		final ObjectRegistry registry = new ObjectRegistry();
+		final int threads = 4, perThread = 200000;
+		final Object[] shared = new Object[5000];
+		for (int i=0; i<shared.length; i++) shared[i] = new Object();
+		for (int i=0; i<shared.length; i++) assertEquals(i,registry.registerJavaObject(shared[i]));
+		ExecutorService executor = Executors.newFixedThreadPool(threads*2);
+		java.util.List<Future<Long>> lookups = new ArrayList<Future<Long>>(), registrations = new ArrayList<Future<Long>>();
+		for (int t=0; t<threads; t++){
+			// registrations keep growing the registry while lookups go on:
+			registrations.add(executor.submit(new Callable<Long>(){
+				public Long call(){
+					for (int i=0; i<perThread; i++){
+						Object x = new Object();
+						int ID = registry.registerJavaObject(x);
+						if (registry.getRealJavaObject(ID)!=x) throw new IPException("Registered object not found");
+					}
+					return new Long(0);
+				}
+			}));
+			lookups.add(executor.submit(new Callable<Long>(){
+				public Long call(){
+					long start = System.nanoTime();
+					for (int i=0; i<perThread*5; i++)
+						if (registry.getRealJavaObject(i%shared.length)!=shared[i%shared.length]) throw new IPException("Wrong object");
+					return new Long(System.nanoTime()-start);
+				}
+			}));
+		}
+		long lookupNanos = 0;
+		for (int t=0; t<threads; t++){
+			registrations.get(t).get();
+			lookupNanos += lookups.get(t).get().longValue();
+		}
+		executor.shutdown();
+		assertEquals(shared.length+threads*perThread,registry.size());
+		System.out.println("ObjectRegistry with "+threads+" threads registering and "+threads+" looking up: "+
+			(lookupNanos/(threads*perThread*5L))+" nS/lookup");
+	}
+}
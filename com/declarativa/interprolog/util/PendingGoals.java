@@ -0,0 +1,97 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** The Prolog goals of an engine whose results have not yet been returned to their Java clients.
+Goals are indexed by timestamp; those not yet sent to Prolog wait in a separate deque, and those executing are kept in a stack
+mirroring their nesting on the Prolog side. All operations need no lock, and all but goals(), a snapshot, take constant time:
+goals removed before starting stay in the not started deque, and are skipped when polled. */
+public class PendingGoals{
+	private ConcurrentHashMap<Integer,GoalToExecute> byTimestamp = new ConcurrentHashMap<Integer,GoalToExecute>();
+	private ConcurrentLinkedDeque<GoalToExecute> notStarted = new ConcurrentLinkedDeque<GoalToExecute>();
+	private ConcurrentLinkedDeque<GoalToExecute> started = new ConcurrentLinkedDeque<GoalToExecute>();
+	/** Size of started, as ConcurrentLinkedDeque.size() traverses it */
+	private AtomicInteger startedCount = new AtomicInteger(0);
+
+	/** Adds a goal; unless already started, it will be returned by pollMoreRecentNotStarted() */
+	public void add(GoalToExecute g){
+		byTimestamp.put(new Integer(g.getTimestamp()),g);
+		if (!g.hasStarted()) notStarted.addLast(g);
+	}
+
+	/** Returns the goal with the timestamp, or null if none */
+	public GoalToExecute get(int timestamp){
+		return byTimestamp.get(new Integer(timestamp));
+	}
+
+	/** Removes and returns the goal with the timestamp, or null if none */
+	public GoalToExecute remove(int timestamp){
+		return byTimestamp.remove(new Integer(timestamp));
+	}
+
+	/** Removes from the not started goals the more recently added, or returns null if none */
+	public GoalToExecute pollMoreRecentNotStarted(){
+		GoalToExecute g;
+		// skipping goals removed meanwhile
+		while ((g=notStarted.pollLast())!=null && byTimestamp.get(new Integer(g.getTimestamp()))!=g);
+		return g;
+	}
+
+	/** The goal is now executing in Prolog, nested within the previous ones */
+	public void pushStarted(GoalToExecute g){
+		started.push(g);
+		startedCount.incrementAndGet();
+	}
+
+	/** The innermost executing goal has ended in Prolog */
+	public GoalToExecute popStarted(){
+		GoalToExecute g = started.pop();
+		startedCount.decrementAndGet();
+		return g;
+	}
+
+	/** The innermost goal executing in Prolog, or null if none */
+	public GoalToExecute innermostStarted(){
+		return started.peek();
+	}
+
+	/** Number of goals executing in Prolog */
+	public int startedSize(){
+		return startedCount.get();
+	}
+
+	public boolean isEmpty(){
+		return byTimestamp.isEmpty();
+	}
+
+	public int size(){
+		return byTimestamp.size();
+	}
+
+	/** A snapshot of all pending goals, taking time proportional to their number */
+	public GoalToExecute[] goals(){
+		return byTimestamp.values().toArray(new GoalToExecute[0]);
+	}
+
+	/** Forgets all goals, returning those that were executing in Prolog */
+	public GoalToExecute[] clear(){
+		GoalToExecute[] executing = started.toArray(new GoalToExecute[0]);
+		started.clear();
+		startedCount.set(0);
+		notStarted.clear();
+		byTimestamp.clear();
+		return executing;
+	}
+
+	public String toString(){
+		return "PendingGoals: "+size()+" goals, "+startedSize()+" executing";
+	}
+}
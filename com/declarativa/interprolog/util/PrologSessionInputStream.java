@@ -0,0 +1,53 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.*;
+import java.util.*;
+
+/** An ObjectInputStream which also understands session streams, as written by PrologSessionOutputStream or by Prolog: 
+its header tells which kind of stream it is. A session stream should be kept for reading the following messages, 
+which start with a reset (TC_RESET) and no header. */
+public class PrologSessionInputStream extends ObjectInputStream{
+	// no initializer, as readStreamHeader() runs in the superclass constructor
+	private boolean session;
+	private final ArrayList<ObjectStreamClass> descriptors = new ArrayList<ObjectStreamClass>();
+	
+	public PrologSessionInputStream(InputStream in) throws IOException{
+		super(in);
+	}
+	
+	protected void readStreamHeader() throws IOException{
+		short magic = readShort();
+		short version = readShort();
+		if (magic!=STREAM_MAGIC) 
+			throw new StreamCorruptedException("invalid stream header: "+Integer.toHexString(magic));
+		if (version==PrologSessionOutputStream.SESSION_VERSION) session = true;
+		else if (version!=STREAM_VERSION) 
+			throw new StreamCorruptedException("unsupported stream version: "+version);
+	}
+	
+	protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException{
+		if (!session) return super.readClassDescriptor();
+		int kind = readByte();
+		if (kind==PrologSessionOutputStream.FULL_DESCRIPTOR){
+			ObjectStreamClass desc = super.readClassDescriptor();
+			descriptors.add(desc);
+			return desc;
+		} else if (kind==PrologSessionOutputStream.DESCRIPTOR_INDEX){
+			int index = readInt();
+			if (index<0 || index>=descriptors.size()) 
+				throw new StreamCorruptedException("Unknown class descriptor index "+index);
+			return descriptors.get(index);
+		} else throw new StreamCorruptedException("Bad class descriptor kind "+kind);
+	}
+	
+	/** The stream header announced a session stream */
+	public boolean isSessionStream(){
+		return session;
+	}
+}
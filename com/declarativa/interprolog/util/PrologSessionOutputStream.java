@@ -0,0 +1,94 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.*;
+import java.util.*;
+
+/** A PrologOutputObjectStream for all messages of a connection, rather than for one: the stream header goes only with the first message, 
+and each class descriptor is sent in full only once, later as an index into the descriptors already sent. 
+Each message is a reset (TC_RESET) followed by one object, preceded by its size as usual. The header carries SESSION_VERSION
+rather than the serialization protocol version, so that receivers can tell a session stream from a one-off one. 
+If writing some object fails, the next message starts a new session stream.
+@see PrologSessionInputStream */
+public class PrologSessionOutputStream {
+	/** Stream version identifying session streams: 'I','P' */
+	public static final short SESSION_VERSION = 0x4950;
+	/** Byte preceding each class descriptor in a session stream */
+	static final int FULL_DESCRIPTOR = 0, DESCRIPTOR_INDEX = 1;
+	
+	final boolean usesEscapeByte;
+	ByteArrayOutputStream serializedTemp;
+	ObjectOutputStream tempObjects;
+	HashMap<String,Integer> descriptors;
+	
+	public PrologSessionOutputStream() throws IOException{
+		this(false);
+	}
+	
+	public PrologSessionOutputStream(boolean usesEscapeByte) throws IOException{
+		this.usesEscapeByte = usesEscapeByte;
+		startStream();
+	}
+	
+	void startStream() throws IOException{
+		if (usesEscapeByte) serializedTemp = new PrologOutputObjectStream.MyByteArrayOutputStream();
+		else serializedTemp = new ByteArrayOutputStream(256);
+		descriptors = new HashMap<String,Integer>();
+		tempObjects = new ObjectOutputStream(serializedTemp){
+			protected void writeStreamHeader() throws IOException{
+				writeShort(STREAM_MAGIC);
+				writeShort(SESSION_VERSION);
+			}
+			protected void writeClassDescriptor(ObjectStreamClass desc) throws IOException{
+				Integer index = descriptors.get(desc.getName());
+				if (index==null){
+					writeByte(FULL_DESCRIPTOR);
+					super.writeClassDescriptor(desc);
+					descriptors.put(desc.getName(),new Integer(descriptors.size()));
+				} else {
+					writeByte(DESCRIPTOR_INDEX);
+					writeInt(index.intValue());
+				}
+			}
+		};
+	}
+	
+	/** Serializes the next message; must be followed by flush(OutputStream) */
+	public void writeObject(Object obj) throws IOException{
+		try{
+			tempObjects.reset();
+			tempObjects.writeObject(obj);
+			tempObjects.flush();
+		} catch (IOException e){
+			// Descriptors of this message may have been indexed, but will never reach Prolog
+			startStream();
+			throw e;
+		}
+	}
+	
+	/** Writes the last serialized message to os, preceded by its byte count */
+	public void flush(OutputStream os) throws IOException{
+		int count = size();
+		if (usesEscapeByte) count -= ((PrologOutputObjectStream.MyByteArrayOutputStream)serializedTemp).escapeCount;
+		(new DataOutputStream(os)).writeInt(count);
+		serializedTemp.writeTo(os);
+		os.flush();
+		serializedTemp.reset();
+		if (usesEscapeByte) ((PrologOutputObjectStream.MyByteArrayOutputStream)serializedTemp).escapeCount = 0;
+	}
+	
+	/** Bytes of the message serialized but not yet flushed */
+	public int size(){
+		return serializedTemp.size();
+	}
+	
+	/** Number of different class descriptors sent in this session stream so far */
+	public int descriptorCount(){
+		return descriptors.size();
+	}
+}
@@ -0,0 +1,221 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+/** Two single producer, single consumer byte rings in a memory mapped file, carrying messages between Java and a Prolog process 
+on the same machine without system calls: ring 0 from Java to Prolog, ring 1 from Prolog to Java. 
+A reader spins briefly for data, and then flags itself as sleeping and blocks on a wake up stream (typically an AF_UNIX socket); 
+writers send a byte through it after publishing data for a sleeping reader. 
+Positions are published with volatile int accesses, requiring Java 9 or later (VarHandles), reached through reflection.
+The file layout is shared with swi/ipshm.c:<pre>
+0: magic, version, ring capacity (ints)
+64 + 192*ring: tail, at +64 head, at +128 sleeping flag (ints, on separate cache lines)
+512 + capacity*ring: ring data
+</pre>*/
+public class SharedMemoryChannel{
+	public static final int MAGIC = 0x49505348; // 'IPSH'
+	public static final int VERSION = 1;
+	public static final int DEFAULT_CAPACITY = 1<<20;
+	static final int HEADER = 64, CONTROL = 192, TAIL = 0, HEAD = 64, SLEEPING = 128, DATA = 512;
+	/** How long a reader polls before going to sleep; on a single processor that would only delay the writer */
+	static final long SPIN_NANOS = Runtime.getRuntime().availableProcessors()>1 ? 50000 : 0;
+	
+	private static MethodHandle getIntVolatile = null, setIntVolatile = null;
+	static{
+		try{
+			Class varHandleClass = Class.forName("java.lang.invoke.VarHandle");
+			Class accessModeClass = Class.forName("java.lang.invoke.VarHandle$AccessMode");
+			Method viewFactory = MethodHandles.class.getMethod("byteBufferViewVarHandle",new Class[]{Class.class,ByteOrder.class});
+			Object view = viewFactory.invoke(null,new Object[]{int[].class,ByteOrder.nativeOrder()});
+			Method toMethodHandle = varHandleClass.getMethod("toMethodHandle",new Class[]{accessModeClass});
+			getIntVolatile = (MethodHandle)toMethodHandle.invoke(view,new Object[]{Enum.valueOf(accessModeClass,"GET_VOLATILE")});
+			setIntVolatile = (MethodHandle)toMethodHandle.invoke(view,new Object[]{Enum.valueOf(accessModeClass,"SET_VOLATILE")});
+		} catch (Exception e){
+			getIntVolatile = null;
+		}
+	}
+	
+	private final File file;
+	private final int capacity;
+	private final ByteBuffer map;
+	private final InputStream wakeUpInput;
+	private final OutputStream wakeUpOutput;
+	private final InputStream input;
+	private final OutputStream output;
+	private volatile boolean closed = false;
+	
+	/** This JVM supports shared memory channels */
+	public static boolean isSupported(){
+		return getIntVolatile!=null;
+	}
+	
+	public SharedMemoryChannel(InputStream wakeUpInput, OutputStream wakeUpOutput) throws IOException{
+		this(wakeUpInput,wakeUpOutput,DEFAULT_CAPACITY);
+	}
+	
+	/** Creates the file, in /dev/shm if available, for the Prolog side to map
+	@param capacity bytes in each ring, a power of 2 */
+	public SharedMemoryChannel(InputStream wakeUpInput, OutputStream wakeUpOutput, int capacity) throws IOException{
+		if (!isSupported()) throw new IPException("Shared memory channels require Java 9 or later");
+		if (capacity<=0 || (capacity&(capacity-1))!=0) throw new IPException("Ring capacity must be a power of 2");
+		this.wakeUpInput = wakeUpInput; this.wakeUpOutput = wakeUpOutput;
+		this.capacity = capacity;
+		File shm = new File("/dev/shm");
+		file = File.createTempFile("interprolog",".shm",(shm.isDirectory() && shm.canWrite() ? shm : null));
+		RandomAccessFile raf = new RandomAccessFile(file,"rw");
+		try{
+			raf.setLength(DATA+2L*capacity);
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0,DATA+2L*capacity).order(ByteOrder.nativeOrder());
+		} finally{
+			raf.close(); // the mapping stays valid
+		}
+		map.putInt(4,VERSION);
+		map.putInt(8,capacity);
+		setInt(0,MAGIC);
+		input = new RingInputStream(1);
+		output = new RingOutputStream(0);
+	}
+	
+	public String getPath(){
+		return file.getPath();
+	}
+	
+	/** Once both sides have the file mapped, it no longer needs a name */
+	public void deleteFile(){
+		file.delete();
+	}
+	
+	public InputStream getInputStream(){
+		return input;
+	}
+	
+	public OutputStream getOutputStream(){
+		return output;
+	}
+	
+	/** Subsequent reads see end of file; the wake up streams are not closed here */
+	public void close(){
+		closed = true;
+		deleteFile();
+	}
+	
+	public String toString(){
+		return "SharedMemoryChannel("+file+", "+capacity+" bytes per ring)";
+	}
+	
+	int getInt(int index){
+		try{
+			return (int)getIntVolatile.invokeExact(map,index);
+		} catch (Throwable e){
+			throw new IPException("Unexpected:"+e);
+		}
+	}
+	
+	void setInt(int index, int value){
+		try{
+			setIntVolatile.invokeExact(map,index,value);
+		} catch (Throwable e){
+			throw new IPException("Unexpected:"+e);
+		}
+	}
+	
+	class RingInputStream extends InputStream{
+		final int control;
+		final ByteBuffer data;
+		int head;
+		RingInputStream(int ring){
+			control = HEADER+ring*CONTROL;
+			ByteBuffer d = map.duplicate();
+			d.position(DATA+ring*capacity); d.limit(DATA+(ring+1)*capacity);
+			data = d.slice();
+			head = getInt(control+HEAD);
+		}
+		public int read() throws IOException{
+			byte[] b = new byte[1];
+			int n = read(b,0,1);
+			return n<=0 ? -1 : b[0]&0xFF;
+		}
+		public synchronized int read(byte[] b, int off, int len) throws IOException{
+			if (len==0) return 0;
+			int available = waitForData();
+			if (available<0) return -1;
+			int offset = head&(capacity-1);
+			int n = Math.min(len,Math.min(available,capacity-offset));
+			data.position(offset);
+			data.get(b,off,n);
+			head += n;
+			setInt(control+HEAD,head);
+			return n;
+		}
+		public int available(){
+			return getInt(control+TAIL)-head;
+		}
+		/** Returns the number of bytes ready, or -1 at end of file */
+		int waitForData() throws IOException{
+			int available;
+			long start = System.nanoTime();
+			while ((available=getInt(control+TAIL)-head)==0){
+				if (closed) return -1;
+				if (System.nanoTime()-start<SPIN_NANOS) continue;
+				setInt(control+SLEEPING,1);
+				if ((available=getInt(control+TAIL)-head)!=0){
+					setInt(control+SLEEPING,0);
+					break;
+				}
+				int wakeUp = wakeUpInput.read();
+				setInt(control+SLEEPING,0);
+				if (wakeUp<0) return -1;
+				start = System.nanoTime();
+			}
+			return available;
+		}
+	}
+	
+	class RingOutputStream extends OutputStream{
+		final int control;
+		final ByteBuffer data;
+		int tail;
+		RingOutputStream(int ring){
+			control = HEADER+ring*CONTROL;
+			ByteBuffer d = map.duplicate();
+			d.position(DATA+ring*capacity); d.limit(DATA+(ring+1)*capacity);
+			data = d.slice();
+			tail = getInt(control+TAIL);
+		}
+		public void write(int b) throws IOException{
+			write(new byte[]{(byte)b},0,1);
+		}
+		public synchronized void write(byte[] b, int off, int len) throws IOException{
+			while (len>0){
+				int free;
+				while ((free=capacity-(tail-getInt(control+HEAD)))==0){
+					if (closed) throw new EOFException("Shared memory channel closed");
+					Thread.yield(); // the reader never sleeps on a full ring
+				}
+				int offset = tail&(capacity-1);
+				int n = Math.min(len,Math.min(free,capacity-offset));
+				data.position(offset);
+				data.put(b,off,n);
+				off += n; len -= n;
+				tail += n;
+				setInt(control+TAIL,tail);
+				// the reader may have fallen asleep before this chunk
+				if (getInt(control+SLEEPING)!=0){
+					wakeUpOutput.write(1);
+					wakeUpOutput.flush();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+** Author(s): Miguel Calejo
+** Contact:   interprolog@declarativa.com, http://www.declarativa.com
+** Copyright (C) Declarativa, Portugal, 2000-2005
+** Use and distribution, without any warranties, under the terms of the
+** GNU Library General Public License, readable in http://www.fsf.org/copyleft/lgpl.html
+*/
+package com.declarativa.interprolog.util;
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+/** A listening AF_UNIX socket and the single connection it accepts, as used for talking to a Prolog subprocess without loopback TCP. 
+The socket file is created in the temporary directory, and deleted on close(). 
+Requires Java 16 or later (UnixDomainSocketAddress), which is reached through reflection so that InterProlog still builds on older JDKs. */
+public class UnixDomainSocket{
+	private static Method addressFactory = null, channelFactory = null;
+	private static ProtocolFamily unixFamily = null;
+	static{
+		try{
+			addressFactory = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of",new Class[]{String.class});
+			channelFactory = ServerSocketChannel.class.getMethod("open",new Class[]{ProtocolFamily.class});
+			unixFamily = StandardProtocolFamily.valueOf("UNIX");
+		} catch (Exception e){
+			addressFactory = null;
+		}
+	}
+	
+	private final File file;
+	private final ServerSocketChannel server;
+	private SocketChannel channel = null;
+	private InputStream input = null;
+	private OutputStream output = null;
+	
+	/** This JVM can create AF_UNIX sockets */
+	public static boolean isSupported(){
+		return addressFactory!=null;
+	}
+	
+	/** Binds a new socket file, ready for accept() */
+	public UnixDomainSocket() throws IOException{
+		if (!isSupported()) throw new IPException("AF_UNIX sockets require Java 16 or later");
+		file = File.createTempFile("interprolog",".sock");
+		file.delete(); // bind creates it
+		try{
+			server = (ServerSocketChannel)channelFactory.invoke(null,new Object[]{unixFamily});
+			server.bind((SocketAddress)addressFactory.invoke(null,new Object[]{file.getPath()}));
+		} catch (IllegalAccessException e){
+			throw new IPException("Unexpected:"+e);
+		} catch (InvocationTargetException e){
+			Throwable cause = e.getTargetException();
+			if (cause instanceof IOException) throw (IOException)cause;
+			throw new IPException("Could not create AF_UNIX socket:"+cause);
+		}
+	}
+	
+	/** The socket file path, for the client to connect to */
+	public String getPath(){
+		return file.getPath();
+	}
+	
+	/** Waits for the (single) client connection */
+	public void accept() throws IOException{
+		channel = server.accept();
+		// our own streams, as those from java.nio.channels.Channels serialize reads and writes on the channel's blocking lock
+		input = new InputStream(){
+			public int read() throws IOException{
+				byte[] b = new byte[1];
+				int n = read(b,0,1);
+				return n<=0 ? -1 : b[0]&0xFF;
+			}
+			public int read(byte[] b, int off, int len) throws IOException{
+				if (len==0) return 0;
+				return channel.read(ByteBuffer.wrap(b,off,len));
+			}
+		};
+		output = new OutputStream(){
+			public void write(int b) throws IOException{
+				write(new byte[]{(byte)b},0,1);
+			}
+			public void write(byte[] b, int off, int len) throws IOException{
+				ByteBuffer buffer = ByteBuffer.wrap(b,off,len);
+				while (buffer.hasRemaining()) channel.write(buffer);
+			}
+		};
+	}
+	
+	public InputStream getInputStream(){
+		return input;
+	}
+	
+	public OutputStream getOutputStream(){
+		return output;
+	}
+	
+	/** Closes the connection and the listening socket, and deletes the socket file */
+	public void close() throws IOException{
+		try{
+			if (channel!=null) channel.close();
+			server.close();
+		} finally{
+			file.delete();
+		}
+	}
+	
+	public String toString(){
+		return "UnixDomainSocket("+file+")";
+	}
+}
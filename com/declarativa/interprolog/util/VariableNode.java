@@ -19,10 +19,14 @@ public class VariableNode implements Serializable{
 			new VariableNode(2)
 			);
 	}
-	VariableNode(int n){
+	public VariableNode(int n){
 		number = new Integer(n);
 	}
 	
+	public int getNumber(){
+		return number.intValue();
+	}
+	
 	public String toString(){
 		return "Var"+number;
 	}
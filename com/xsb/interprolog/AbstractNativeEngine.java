@@ -60,18 +60,20 @@ public abstract class AbstractNativeEngine extends AbstractPrologEngine{
             loadInitialFile();
             
             progressMessage("Teaching examples to Prolog...");
-            ByteArrayOutputStream serializedTemp = new ByteArrayOutputStream();
-            ObjectOutputStream bootObjects = new ObjectOutputStream(serializedTemp);
-            teachIPobjects(bootObjects);
-            teachBasicObjects(bootObjects);
-            bootObjects.flush();
-            
-            byte[] b = serializedTemp.toByteArray();
+            byte[] b = serializedStartupExamples();
             // more bytes in 1.4 with Throwable: System.out.println(b.length+" bytes to teach");
-            // this is the only teaching of objects not occurring over the deterministicGoal/javaMessage mechanism:
-            if(!commandWithArray("ipLearnExamples",b, b.length))
-            	throw new IPException("ipLearnExamples failed");
-            progressMessage("Initial examples taught.");
+            File learnedObjects = learnedObjectsFile(b);
+            if (isLearnedObjectsFile(learnedObjects)){
+            	if (!command("ipLoadLearnedObjects("+learnedObjectsPath(learnedObjects)+")"))
+            		throw new IPException("ipLoadLearnedObjects failed");
+            	progressMessage("Loaded learned objects from "+learnedObjects);
+            } else {
+	            // this is the only teaching of objects not occurring over the deterministicGoal/javaMessage mechanism:
+	            if(!commandWithArray("ipLearnExamples",b, b.length))
+	            	throw new IPException("ipLearnExamples failed");
+	            progressMessage("Initial examples taught.");
+	            if (learnedObjects!=null) saveLearnedObjects(learnedObjects,"all");
+            }
             if (!command("ipObjectSpec('InvisibleObject',E,["+registerJavaObject(this)+"],_), assert(ipPrologEngine(E))"))
             	throw new IPException("assert of ipPrologEngine/1 failed");
             if(debug&&!command("assert(ipIsDebugging)"))
@@ -8,7 +8,11 @@ mkdir -p tempCompiled/com/declarativa/interprolog/gui/images
 mkdir -p tempCompiled/com/declarativa/interprolog/swi
 mkdir -p tempCompiled/com/declarativa/interprolog/xsb
 cp com/declarativa/interprolog/*.P tempCompiled/com/declarativa/interprolog
-cp com/declarativa/interprolog/xsb/*.xwam tempCompiled/com/declarativa/interprolog/xsb
+cp com/declarativa/interprolog/xsb/*.P tempCompiled/com/declarativa/interprolog/xsb
+# interprolog.xwam exists only if compile_Ps.sh found XSB; otherwise XSB compiles interprolog.P when loading it
+if [ -f com/declarativa/interprolog/xsb/interprolog.xwam ]; then
+  cp com/declarativa/interprolog/xsb/interprolog.xwam tempCompiled/com/declarativa/interprolog/xsb
+fi
 cp com/declarativa/interprolog/swi/*.pl tempCompiled/com/declarativa/interprolog/swi
 cp com/declarativa/interprolog/gui/*.xwam tempCompiled/com/declarativa/interprolog/gui
 cp com/declarativa/interprolog/gui/*.P tempCompiled/com/declarativa/interprolog/gui
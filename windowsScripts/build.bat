@@ -34,7 +34,9 @@ mkdir tempCompiled\com\declarativa\interprolog\yap
 mkdir tempCompiled\com\declarativa\interprolog\gui\images
 
 copy com\declarativa\interprolog\yap\*.yap tempCompiled\com\declarativa\interprolog\yap
-copy com\declarativa\interprolog\xsb\*.xwam tempCompiled\com\declarativa\interprolog\xsb
+copy com\declarativa\interprolog\xsb\*.P tempCompiled\com\declarativa\interprolog\xsb
+rem interprolog.xwam exists only if compile_Ps.bat found XSB; otherwise XSB compiles interprolog.P when loading it
+if exist com\declarativa\interprolog\xsb\interprolog.xwam copy com\declarativa\interprolog\xsb\interprolog.xwam tempCompiled\com\declarativa\interprolog\xsb
 copy com\declarativa\interprolog\swi\*.pl tempCompiled\com\declarativa\interprolog\swi
 copy com\declarativa\interprolog\gui\*.xwam tempCompiled\com\declarativa\interprolog\gui
 copy com\declarativa\interprolog\gui\*.P tempCompiled\com\declarativa\interprolog\gui